@@ -21,5 +21,12 @@
                                   [yogthos/config "0.9"]]
                    :java-source-paths ["src/main/java" "src/test/java"]
                    :resource-paths ["src/test/resources"]
-                   :injections [(require 'spyscope.core)]}}
+                   :injections [(require 'spyscope.core)]}
+             ;; lein bench [JMH options], e.g. lein bench CommandBenchmark -f 1
+             :bench {:dependencies [[org.openjdk.jmh/jmh-core "1.19"]
+                                    [org.openjdk.jmh/jmh-generator-annprocess "1.19"]
+                                    [org.apache.sshd/sshd-core "1.7.0"]
+                                    [org.slf4j/slf4j-nop "1.7.25"]]
+                     :java-source-paths ["src/main/java" "src/bench/java"]}}
+  :aliases {"bench" ["with-profile" "+bench" "run" "-m" "org.openjdk.jmh.Main"]}
 )
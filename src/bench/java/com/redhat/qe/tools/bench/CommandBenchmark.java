@@ -0,0 +1,93 @@
+package com.redhat.qe.tools.bench;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.redhat.qe.tools.PersistentShellRunner;
+import com.redhat.qe.tools.SSHCommandResult;
+import com.redhat.qe.tools.SSHCommandRunner;
+import com.redhat.qe.tools.SSHExecutor;
+
+import net.schmizz.sshj.SSHClient;
+
+/**
+ * Latency and rate of short commands, one per mode of running them.
+ * A batch runs BATCH_SIZE commands per invocation, so its score is to be multiplied by BATCH_SIZE.
+ * @author jstavel
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 3)
+@Fork(1)
+public class CommandBenchmark {
+	public static final int BATCH_SIZE = 10;
+	public static final String COMMAND = "test -e /etc/hosts";
+
+	protected EmbeddedSSHServer server;
+	protected SSHClient connection;
+	protected SSHCommandRunner runner;
+	protected PersistentShellRunner shell;
+	protected SSHExecutor executor;
+	protected List<String> batch = new ArrayList<String>(Collections.nCopies(BATCH_SIZE, COMMAND));
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		server = new EmbeddedSSHServer();
+		connection = server.connect();
+		runner = new SSHCommandRunner(connection, null);
+		shell = new PersistentShellRunner(connection);
+		executor = new SSHExecutor(connection);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		executor.shutdown();
+		shell.close();
+		runner.close();
+		connection.disconnect();
+		server.stop();
+	}
+
+	@Benchmark
+	public SSHCommandResult runCommandAndWait() {
+		return runner.runCommandAndWait(COMMAND);
+	}
+
+	@Benchmark
+	public SSHCommandResult persistentShell() throws IOException {
+		return shell.runCommandAndWait(COMMAND);
+	}
+
+	@Benchmark
+	public List<SSHCommandResult> batch() {
+		return runner.runCommandsAndWait(batch);
+	}
+
+	@Benchmark
+	public List<SSHCommandResult> executorConcurrent() throws Exception {
+		List<CompletableFuture<SSHCommandResult>> futures = new ArrayList<CompletableFuture<SSHCommandResult>>();
+		for (int i = 0; i < BATCH_SIZE; i++) futures.add(executor.submit(COMMAND));
+		List<SSHCommandResult> results = new ArrayList<SSHCommandResult>();
+		for (CompletableFuture<SSHCommandResult> future: futures) results.add(future.get());
+		return results;
+	}
+}
@@ -0,0 +1,65 @@
+package com.redhat.qe.tools.bench;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.redhat.qe.tools.SSHConnectionPool;
+
+import net.schmizz.sshj.SSHClient;
+
+/**
+ * Connection setup time: a new connection (TCP, key exchange, password authentication) against a pooled one.
+ * @author jstavel
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 3)
+@Fork(1)
+public class ConnectBenchmark {
+
+	protected EmbeddedSSHServer server;
+	protected SSHConnectionPool pool;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		server = new EmbeddedSSHServer();
+		pool = new SSHConnectionPool();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		pool.close();
+		server.stop();
+	}
+
+	@Benchmark
+	public boolean connectAndAuthenticate() throws IOException {
+		SSHClient connection = server.connect();
+		boolean authenticated = connection.isAuthenticated();
+		connection.disconnect();
+		return authenticated;
+	}
+
+	@Benchmark
+	public boolean borrowFromPool() throws IOException {
+		SSHClient connection = pool.borrow(server.getHost(), server.getPort(), EmbeddedSSHServer.USER, null, null, EmbeddedSSHServer.PASSWORD);
+		boolean authenticated = connection.isAuthenticated();
+		pool.release(connection);
+		return authenticated;
+	}
+}
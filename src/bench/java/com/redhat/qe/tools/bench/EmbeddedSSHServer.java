@@ -0,0 +1,70 @@
+package com.redhat.qe.tools.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.apache.sshd.common.compression.BuiltinCompressions;
+import org.apache.sshd.server.Command;
+import org.apache.sshd.server.CommandFactory;
+import org.apache.sshd.server.SshServer;
+import org.apache.sshd.server.keyprovider.SimpleGeneratorHostKeyProvider;
+import org.apache.sshd.server.scp.ScpCommandFactory;
+import org.apache.sshd.server.shell.ProcessShellFactory;
+import org.apache.sshd.server.subsystem.sftp.SftpSubsystemFactory;
+
+import com.redhat.qe.tools.SSHClientFactory;
+
+import net.schmizz.sshj.SSHClient;
+
+/**
+ * Apache MINA SSHD on loopback for the benchmarks.  Commands are run by /bin/sh of the local machine,
+ * SCP and SFTP work on the local file system, the user `bench` logs in with a password `bench`.
+ * @author jstavel
+ */
+public class EmbeddedSSHServer {
+	public static final String USER = "bench";
+	public static final String PASSWORD = "bench";
+
+	protected SshServer sshd;
+
+	public EmbeddedSSHServer() throws IOException {
+		// the server generates a new host key, it cannot be in known_hosts
+		System.setProperty("ssh.verifyHosts", "false");
+		File hostKey = File.createTempFile("bench-hostkey-", ".ser");
+		hostKey.delete();
+		hostKey.deleteOnExit();
+		sshd = SshServer.setUpDefaultServer();
+		sshd.setHost("127.0.0.1");
+		sshd.setPort(0);
+		sshd.setKeyPairProvider(new SimpleGeneratorHostKeyProvider(hostKey.toPath()));
+		sshd.setPasswordAuthenticator((user, password, session) -> USER.equals(user) && PASSWORD.equals(password));
+		sshd.setShellFactory(new ProcessShellFactory(new String[] {"/bin/sh"}));
+		CommandFactory exec = new CommandFactory() {
+			public Command createCommand(String command) {
+				return new ProcessShellFactory(new String[] {"/bin/sh", "-c", command}).create();
+			}
+		};
+		sshd.setCommandFactory(new ScpCommandFactory.Builder().withDelegate(exec).build());
+		sshd.setSubsystemFactories(Collections.singletonList(new SftpSubsystemFactory()));
+		sshd.setCompressionFactories(Arrays.asList(BuiltinCompressions.none, BuiltinCompressions.zlib, BuiltinCompressions.delayedZlib));
+		sshd.start();
+	}
+
+	public String getHost() {
+		return "127.0.0.1";
+	}
+
+	public int getPort() {
+		return sshd.getPort();
+	}
+
+	public SSHClient connect() throws IOException {
+		return SSHClientFactory.connect(getHost(), getPort(), USER, null, null, PASSWORD);
+	}
+
+	public void stop() throws IOException {
+		sshd.stop(true);
+	}
+}
@@ -0,0 +1,112 @@
+package com.redhat.qe.tools.bench;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Forwards loopback TCP connections to a port and delays every piece of data by half the round trip in each direction,
+ * so that benchmarks against the embedded server see a long link without root, netem or a second host.
+ * Bandwidth is not limited.
+ * <pre>
+ * LatencyProxy proxy = new LatencyProxy(server.getPort(), 50);
+ * SSHClient connection = SSHClientFactory.connect(server.getHost(), proxy.getPort(), ...);
+ * </pre>
+ * @author jstavel
+ */
+public class LatencyProxy implements Closeable {
+
+	protected final ServerSocket listener;
+	protected final int targetPort;
+	protected final long delayNanos;
+
+	/**
+	 * @param targetPort - loopback port to forward to
+	 * @param rttMS - round trip added to the connections
+	 */
+	public LatencyProxy(int targetPort, int rttMS) throws IOException {
+		this.targetPort = targetPort;
+		this.delayNanos = TimeUnit.MILLISECONDS.toNanos(rttMS) / 2;
+		listener = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+		daemon("latency-proxy-" + listener.getLocalPort(), new Runnable() {
+			public void run() {
+				accept();
+			}
+		});
+	}
+
+	public int getPort() {
+		return listener.getLocalPort();
+	}
+
+	public void close() throws IOException {
+		listener.close();
+	}
+
+	protected void accept() {
+		try {
+			while (true) {
+				Socket client = listener.accept();
+				Socket server = new Socket(InetAddress.getLoopbackAddress(), targetPort);
+				client.setTcpNoDelay(true);
+				server.setTcpNoDelay(true);
+				forward(client, server);
+				forward(server, client);
+			}
+		} catch (IOException e) {
+			// closed
+		}
+	}
+
+	/**
+	 * One thread reads and stamps the data, another one writes it when its time has come, so the delay doesn't
+	 * stop the reading and the data keep their order.
+	 */
+	protected void forward(final Socket from, final Socket to) {
+		final LinkedBlockingQueue<Object[]> queue = new LinkedBlockingQueue<Object[]>();
+		daemon("latency-proxy-read", new Runnable() {
+			public void run() {
+				byte[] buffer = new byte[64 * 1024];
+				try {
+					InputStream in = from.getInputStream();
+					int n;
+					while ((n = in.read(buffer)) > 0) queue.put(new Object[] {System.nanoTime() + delayNanos, Arrays.copyOf(buffer, n)});
+				} catch (Exception e) {
+					// the connection has been closed
+				}
+				queue.add(new Object[] {System.nanoTime() + delayNanos, null});
+			}
+		});
+		daemon("latency-proxy-write", new Runnable() {
+			public void run() {
+				try {
+					OutputStream out = to.getOutputStream();
+					while (true) {
+						Object[] piece = queue.take();
+						long wait = (Long) piece[0] - System.nanoTime();
+						if (wait > 0) TimeUnit.NANOSECONDS.sleep(wait);
+						if (piece[1] == null) break;
+						out.write((byte[]) piece[1]);
+						out.flush();
+					}
+					to.shutdownOutput();
+				} catch (Exception e) {
+					// the connection has been closed
+				}
+			}
+		});
+	}
+
+	private static void daemon(String name, Runnable task) {
+		Thread thread = new Thread(task, name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+}
@@ -0,0 +1,88 @@
+package com.redhat.qe.tools.bench;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.redhat.qe.jul.TestRecords;
+import com.redhat.qe.tools.OutputLineListener;
+import com.redhat.qe.tools.SSHCommandResult;
+import com.redhat.qe.tools.SSHCommandRunner;
+import com.redhat.qe.tools.SplitStreamLogger;
+
+import net.schmizz.sshj.SSHClient;
+
+/**
+ * Cost of consuming a big output: captured at once, logged live by SplitStreamLogger, or streamed line by line.
+ * The loggers are switched off, so the live logging is measured without the cost of any handler.
+ * @author jstavel
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 3)
+@Fork(1)
+public class OutputBenchmark {
+
+	@Param({"100000"})
+	public int lines;
+
+	protected EmbeddedSSHServer server;
+	protected SSHClient connection;
+	protected SSHCommandRunner runner;
+	protected String command;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		Logger.getLogger(SplitStreamLogger.class.getName()).setLevel(java.util.logging.Level.OFF);
+		Logger.getLogger(SSHCommandRunner.class.getName()).setLevel(java.util.logging.Level.OFF);
+		server = new EmbeddedSSHServer();
+		connection = server.connect();
+		runner = new SSHCommandRunner(connection, null);
+		runner.setAsyncLaunch(true);
+		command = "seq 1 " + lines;
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		runner.close();
+		connection.disconnect();
+		server.stop();
+	}
+
+	@Benchmark
+	public SSHCommandResult captured() {
+		return runner.runCommandAndWait(command, null, TestRecords.fine(), false, false);
+	}
+
+	@Benchmark
+	public SSHCommandResult liveLogged() {
+		return runner.runCommandAndWait(command, null, TestRecords.fine(), true, true);
+	}
+
+	@Benchmark
+	public Integer streamed() {
+		return runner.runCommandAndStream(command, new OutputLineListener() {
+			public void stdoutLine(String line) {
+			}
+
+			public void stderrLine(String line) {
+			}
+		});
+	}
+}
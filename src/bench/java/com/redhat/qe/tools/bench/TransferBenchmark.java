@@ -0,0 +1,137 @@
+package com.redhat.qe.tools.bench;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.redhat.qe.tools.RemoteFileTasks;
+import com.redhat.qe.tools.SSHClientFactory;
+import com.redhat.qe.tools.SSHCommandRunner;
+import com.redhat.qe.tools.SSHCompression;
+import com.redhat.qe.tools.SSHTransportProfile;
+
+import net.schmizz.sshj.SSHClient;
+
+/**
+ * Throughput of RemoteFileTasks.putFiles/getFiles for every transport profile, with and without compression.
+ * The file is log-like text, so it compresses about as well as the logs we collect.
+ * MB/s = fileSizeMB * score (ops/s).
+ * <p>
+ * rttMS puts a LatencyProxy between the client and the server, engine and maxInFlight select the transfer engine
+ * and the SFTP requests in flight, e.g. -p rttMS=50 -p engine=SFTP -p maxInFlight=1,16,64.
+ * @author jstavel
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 3)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class TransferBenchmark {
+
+	@Param({"DEFAULT", "LOW_LATENCY", "BULK_THROUGHPUT"})
+	public String profile;
+
+	@Param({"OFF", "ON"})
+	public String compression;
+
+	@Param({"16"})
+	public int fileSizeMB;
+
+	@Param({"0"})
+	public int rttMS;
+
+	@Param({"SCP"})
+	public String engine;
+
+	@Param({"64"})
+	public int maxInFlight;
+
+	protected EmbeddedSSHServer server;
+	protected LatencyProxy proxy;
+	protected SSHClient connection;
+	protected SSHCommandRunner runner;
+	protected File localFile;
+	protected File remoteDir;
+	protected File downloadDir;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		System.setProperty("ssh.transfer.engine", engine);
+		System.setProperty("ssh.sftp.maxInFlight", String.valueOf(maxInFlight));
+		server = new EmbeddedSSHServer();
+		int port = server.getPort();
+		if (rttMS > 0) {
+			proxy = new LatencyProxy(port, rttMS);
+			port = proxy.getPort();
+		}
+		connection = SSHClientFactory.connect(server.getHost(), port, EmbeddedSSHServer.USER, null, null,
+				EmbeddedSSHServer.PASSWORD, 0, SSHTransportProfile.valueOf(profile));
+		SSHClientFactory.applyCompression(connection, SSHCompression.valueOf(compression), true);
+		runner = new SSHCommandRunner(connection, null);
+		localFile = File.createTempFile("bench-", ".log");
+		writeLogLikeFile(localFile, fileSizeMB * 1024L * 1024L);
+		remoteDir = Files.createTempDirectory("bench-remote-").toFile();
+		downloadDir = Files.createTempDirectory("bench-download-").toFile();
+		RemoteFileTasks.putFiles(runner, remoteDir.getPath(), localFile.getPath());
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		runner.close();
+		connection.disconnect();
+		if (proxy != null) proxy.close();
+		server.stop();
+		for (File dir: new File[] {remoteDir, downloadDir}) {
+			for (File file: dir.listFiles()) file.delete();
+			dir.delete();
+		}
+		localFile.delete();
+	}
+
+	@Benchmark
+	public void putFiles() throws IOException {
+		RemoteFileTasks.putFiles(runner, remoteDir.getPath(), localFile.getPath());
+	}
+
+	@Benchmark
+	public void getFiles() throws IOException {
+		RemoteFileTasks.getFiles(runner, downloadDir.getPath(), new File(remoteDir, localFile.getName()).getPath());
+	}
+
+	protected static void writeLogLikeFile(File file, long size) throws IOException {
+		Random random = new Random(42);
+		String[] levels = {"INFO", "DEBUG", "WARN", "ERROR"};
+		BufferedWriter writer = new BufferedWriter(new FileWriter(file));
+		try {
+			long written = 0;
+			for (long i = 0; written < size; i++) {
+				String line = String.format("2018-01-%02d 12:%02d:%02d %s [worker-%d] request %d served in %d ms%n",
+						1 + i % 28, i % 60, random.nextInt(60), levels[random.nextInt(levels.length)],
+						random.nextInt(16), i, random.nextInt(5000));
+				writer.write(line);
+				written += line.length();
+			}
+		} finally {
+			writer.close();
+		}
+	}
+}
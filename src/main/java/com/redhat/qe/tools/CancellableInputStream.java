@@ -0,0 +1,73 @@
+package com.redhat.qe.tools;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+
+/**
+ * An output stream of a command that can be ended from another thread.  After cancel() a read returns -1,
+ * a thread blocked in a read is woken up at once.
+ * <p>
+ * The channel stream itself is never closed here: sshj breaks the whole connection if data come
+ * to a closed stream of a channel that is still open.  It gets its end of file when the channel is closed.
+ * @author jstavel
+ */
+public class CancellableInputStream extends FilterInputStream {
+
+	private boolean cancelled = false;
+	private Thread reader = null;  // the thread blocked in a read, guarded by this
+
+	public CancellableInputStream(InputStream in) {
+		super(in);
+	}
+
+	public int read() throws IOException {
+		byte[] b = new byte[1];
+		int n = read(b, 0, 1);
+		return (n == -1) ? -1 : (b[0] & 0xff);
+	}
+
+	public int read(byte[] b, int off, int len) throws IOException {
+		synchronized (this) {
+			if (cancelled) return -1;
+			reader = Thread.currentThread();
+		}
+		try {
+			return super.read(b, off, len);
+		} catch (InterruptedIOException e) {
+			if (isCancelled()) return -1;
+			throw e;
+		} finally {
+			synchronized (this) {
+				reader = null;
+				// an interrupt by cancel() that came after the read must not hit the next task of this thread
+				if (cancelled) Thread.interrupted();
+			}
+		}
+	}
+
+	public int available() throws IOException {
+		return isCancelled() ? 0 : super.available();
+	}
+
+	/**
+	 * Ends the stream for its readers, the rest of the output is not read.
+	 */
+	public synchronized void cancel() {
+		if (cancelled) return;
+		cancelled = true;
+		if (reader != null) reader.interrupt();
+	}
+
+	public synchronized boolean isCancelled() {
+		return cancelled;
+	}
+
+	/**
+	 * Same as cancel(), see the class description.
+	 */
+	public void close() {
+		cancel();
+	}
+}
@@ -17,6 +17,7 @@ public class ForwardedPort {
   private int localPort;
   private String remoteHost;
   private int remotePort;
+  private SSHTiming timing;  // lifetime of the forward, see SSHInstrumentation
 
   public ForwardedPort(int remotePort, String remoteHost, int localPort,
       LocalPortForwarder forwarder) {
@@ -25,16 +26,21 @@ public class ForwardedPort {
     this.remoteHost = remoteHost;
     this.remotePort = remotePort;
     isForwarding = true;
+    this.timing = new SSHTiming(SSHTiming.Kind.FORWARD, remoteHost,
+        String.format("localhost:%d -> %s:%d", localPort, remoteHost, remotePort));
   }
 
   public void close() {
     try {
       forwarder.close();
       isForwarding = false;
+      timing.mark(SSHTiming.Phase.CLOSE);
     } catch (IOException e) {
       StringWriter sw = new StringWriter();
       e.printStackTrace(new PrintWriter(sw));
       log.warning(String.format("Failed to close %s: %s", this, sw));
+    } finally {
+      SSHInstrumentation.finish(timing);
     }
   }
 
@@ -0,0 +1,226 @@
+package com.redhat.qe.tools;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.SequenceInputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps the raw bytes of a command output.  Bytes are stored in chunks borrowed from a shared pool
+ * up to a memory limit, anything above the limit goes to a temporary file.  The output is decoded
+ * to a String only when toString() is called, and the decoded String is cached.
+ * <p>
+ * System properties:
+ * <ul>
+ * <li>`ssh.capture.memoryLimitBytes` - bytes kept in memory before the rest is spilled to a file, 8 MiB by default</li>
+ * </ul>
+ * Call release() when the output is not needed anymore, the chunks go back to the pool and the file is deleted.
+ * @author jstavel
+ */
+public class OutputCapture extends OutputStream {
+	protected static Logger log = Logger.getLogger(OutputCapture.class.getName());
+
+	public static final int CHUNK_SIZE = 32 * 1024;
+	public static final int MAX_POOLED_CHUNKS = 256;
+	public static final Charset CHARSET = StandardCharsets.UTF_8;
+
+	private static final ConcurrentLinkedQueue<byte[]> chunkPool = new ConcurrentLinkedQueue<byte[]>();
+	private static final AtomicInteger pooledChunks = new AtomicInteger();
+	// spill files not released yet, deleted at exit (File.deleteOnExit() would keep every path until then)
+	private static final Set<File> spillFiles = ConcurrentHashMap.newKeySet();
+	static {
+		Runtime.getRuntime().addShutdownHook(new Thread("ssh-output-cleanup") {
+			public void run() {
+				for (File file: spillFiles) file.delete();
+			}
+		});
+	}
+
+	protected final long memoryLimit;
+	protected final List<byte[]> chunks = new ArrayList<byte[]>();
+	protected int lastChunkUsed = CHUNK_SIZE;
+	protected long memorySize = 0;
+	protected long size = 0;
+	protected File spillFile = null;
+	protected OutputStream spill = null;
+	protected String decoded = null;
+	protected boolean released = false;
+
+	public OutputCapture() {
+		this(Long.parseLong(System.getProperty("ssh.capture.memoryLimitBytes", String.valueOf(8 * 1024 * 1024))));
+	}
+
+	/**
+	 * @param memoryLimit - bytes kept in memory, the rest is spilled to a temporary file
+	 */
+	public OutputCapture(long memoryLimit) {
+		this.memoryLimit = memoryLimit;
+	}
+
+	@Override
+	public synchronized void write(int b) throws IOException {
+		write(new byte[] {(byte) b}, 0, 1);
+	}
+
+	@Override
+	public synchronized void write(byte[] b, int off, int len) throws IOException {
+		checkNotReleased();
+		decoded = null;
+		size += len;
+		while (len > 0 && memorySize < memoryLimit) {
+			if (lastChunkUsed == CHUNK_SIZE) {
+				chunks.add(borrowChunk());
+				lastChunkUsed = 0;
+			}
+			int n = (int) Math.min(Math.min(len, CHUNK_SIZE - lastChunkUsed), memoryLimit - memorySize);
+			System.arraycopy(b, off, chunks.get(chunks.size() - 1), lastChunkUsed, n);
+			lastChunkUsed += n;
+			memorySize += n;
+			off += n;
+			len -= n;
+		}
+		if (len > 0) {
+			if (spill == null) {
+				spillFile = File.createTempFile("ssh-output-", ".capture");
+				spillFiles.add(spillFile);
+				spill = new BufferedOutputStream(new FileOutputStream(spillFile), CHUNK_SIZE);
+				log.fine("Output is bigger than "+memoryLimit+" bytes, spilling it to "+spillFile);
+			}
+			spill.write(b, off, len);
+		}
+	}
+
+	/**
+	 * Copies the whole stream into this capture and closes the stream.
+	 * @return number of bytes copied
+	 */
+	public long readFrom(InputStream is) throws IOException {
+		byte[] buffer = borrowChunk();
+		long copied = 0;
+		try {
+			int len;
+			while ((len = is.read(buffer)) != -1) {
+				write(buffer, 0, len);
+				copied += len;
+			}
+		} finally {
+			returnChunk(buffer);
+			is.close();
+		}
+		return copied;
+	}
+
+	/**
+	 * @return number of bytes captured
+	 */
+	public synchronized long size() {
+		return size;
+	}
+
+	/**
+	 * @return true if a part of the output is stored in a temporary file
+	 */
+	public synchronized boolean isSpilled() {
+		return spillFile != null;
+	}
+
+	/**
+	 * @return the raw bytes captured so far
+	 */
+	public synchronized InputStream getInputStream() throws IOException {
+		checkNotReleased();
+		List<InputStream> parts = new ArrayList<InputStream>();
+		for (int i = 0; i < chunks.size(); i++) {
+			int len = (i == chunks.size() - 1) ? lastChunkUsed : CHUNK_SIZE;
+			parts.add(new ByteArrayInputStream(chunks.get(i), 0, len));
+		}
+		if (spill != null) {
+			spill.flush();
+			parts.add(new FileInputStream(spillFile));
+		}
+		return new SequenceInputStream(Collections.enumeration(parts));
+	}
+
+	/**
+	 * Decodes the captured bytes (UTF-8).  The String is cached until more bytes are written.
+	 */
+	@Override
+	public synchronized String toString() {
+		if (decoded != null) return decoded;
+		checkNotReleased();
+		StringBuilder sb = new StringBuilder((int) Math.min(size, Integer.MAX_VALUE - 8));
+		try {
+			Reader reader = new InputStreamReader(getInputStream(), CHARSET);
+			try {
+				char[] buffer = new char[8192];
+				int len;
+				while ((len = reader.read(buffer)) != -1) {
+					sb.append(buffer, 0, len);
+				}
+			} finally {
+				reader.close();
+			}
+		} catch (IOException e) {
+			log.log(Level.WARNING, "Couldn't read the captured output from "+spillFile, e);
+		}
+		decoded = sb.toString();
+		return decoded;
+	}
+
+	/**
+	 * Gives the chunks back to the pool and deletes the temporary file.  A decoded String stays available.
+	 */
+	public synchronized void release() {
+		if (released) return;
+		released = true;
+		for (byte[] chunk: chunks) returnChunk(chunk);
+		chunks.clear();
+		if (spill != null) {
+			try {
+				spill.close();
+			} catch (IOException e) {
+				log.log(Level.FINER, "Couldn't close "+spillFile, e);
+			}
+			if (!spillFile.delete()) log.fine("Couldn't delete "+spillFile);
+			spillFiles.remove(spillFile);
+			spill = null;
+		}
+	}
+
+	private void checkNotReleased() {
+		if (released) throw new IllegalStateException("The captured output has already been released.");
+	}
+
+	protected static byte[] borrowChunk() {
+		byte[] chunk = chunkPool.poll();
+		if (chunk == null) return new byte[CHUNK_SIZE];
+		pooledChunks.decrementAndGet();
+		return chunk;
+	}
+
+	protected static void returnChunk(byte[] chunk) {
+		if (pooledChunks.incrementAndGet() <= MAX_POOLED_CHUNKS) {
+			chunkPool.offer(chunk);
+		} else {
+			pooledChunks.decrementAndGet();
+		}
+	}
+}
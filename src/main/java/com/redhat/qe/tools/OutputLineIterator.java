@@ -0,0 +1,146 @@
+package com.redhat.qe.tools;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Reads lines of a command output as they come.  A line is read from the stream only when next() asks
+ * for it, so a slow consumer stops reading the SSH channel and the remote command is throttled by the channel window
+ * instead of the output piling up in memory.
+ * <p>
+ * Lines are split on '\n', a trailing '\r' is removed, and the bytes are decoded as UTF-8.
+ * A line longer than `ssh.output.maxLineBytes` (1 MiB by default) is returned in pieces of at most that many bytes,
+ * split between characters, so output without newlines doesn't pile up in memory either.
+ * @author jstavel
+ */
+public class OutputLineIterator implements Iterator<String>, Closeable {
+
+	protected InputStream stream;
+	protected int maxLineBytes = defaultMaxLineBytes();
+	protected byte[] buffer = new byte[8192];
+	protected int position = 0;
+	protected int limit = 0;
+	protected ByteArrayOutputStream line = new ByteArrayOutputStream();
+	protected String nextLine = null;
+	protected boolean eof = false;
+	protected boolean continued = false;  // the line read so far continues a piece already returned
+
+	public OutputLineIterator(InputStream stream) {
+		this.stream = stream;
+		this.eof = (stream == null);
+	}
+
+	/**
+	 * @param maxLineBytes - longer lines are returned in pieces of at most this many bytes (at least 4)
+	 */
+	public OutputLineIterator(InputStream stream, int maxLineBytes) {
+		this(stream);
+		this.maxLineBytes = Math.max(4, maxLineBytes);
+	}
+
+	/**
+	 * Blocks until a whole line has come or the stream is closed.
+	 * @throws UncheckedIOException if the stream could not be read
+	 */
+	public boolean hasNext() {
+		if (nextLine == null && !eof) {
+			try {
+				nextLine = readLine();
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+		return nextLine != null;
+	}
+
+	public String next() {
+		if (!hasNext()) throw new NoSuchElementException();
+		String result = nextLine;
+		nextLine = null;
+		return result;
+	}
+
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+	public void close() throws IOException {
+		eof = true;
+		if (stream != null) stream.close();
+	}
+
+	protected String readLine() throws IOException {
+		while (true) {
+			if (position == limit) {
+				limit = stream.read(buffer);
+				position = 0;
+				if (limit == -1) {
+					limit = 0;
+					close();
+					String text = (line.size() > 0) ? decodeLine() : null;
+					return (continued && "".equals(text)) ? null : text;
+				}
+			}
+			int end = (int) Math.min(limit, position + (long) maxLineBytes - line.size());
+			for (int i = position; i < end; i++) {
+				if (buffer[i] == '\n') {
+					line.write(buffer, position, i - position);
+					position = i + 1;
+					String text = decodeLine();
+					if (continued && text.isEmpty()) {
+						// the line has ended right after its last piece
+						continued = false;
+						continue;
+					}
+					continued = false;
+					return text;
+				}
+			}
+			line.write(buffer, position, end - position);
+			position = end;
+			if (line.size() >= maxLineBytes) {
+				continued = true;
+				return splitLine(line);
+			}
+		}
+	}
+
+	/**
+	 * @return `ssh.output.maxLineBytes`, 1 MiB by default
+	 */
+	static int defaultMaxLineBytes() {
+		return Math.max(4, Integer.parseInt(System.getProperty("ssh.output.maxLineBytes", String.valueOf(1024 * 1024))));
+	}
+
+	/**
+	 * Returns the full line buffer without a partial UTF-8 character at its end, which is kept for the next piece.
+	 * A '\r' is kept too, it may be followed by the '\n'.
+	 */
+	static String splitLine(ByteArrayOutputStream line) {
+		byte[] bytes = line.toByteArray();
+		int cut = bytes.length;
+		// step back over continuation bytes (10xxxxxx) to the start of the last character
+		int start = cut - 1;
+		while (start > 0 && cut - start < 4 && (bytes[start] & 0xC0) == 0x80) start--;
+		int lead = bytes[start] & 0xFF;
+		int length = (lead < 0x80) ? 1 : (lead >= 0xF0) ? 4 : (lead >= 0xE0) ? 3 : (lead >= 0xC0) ? 2 : 1;
+		if (start + length > cut) cut = start;
+		if (cut > 0 && bytes[cut - 1] == '\r') cut--;
+		if (cut == 0) cut = bytes.length;  // nothing sensible to keep back
+		line.reset();
+		line.write(bytes, cut, bytes.length - cut);
+		return new String(bytes, 0, cut, OutputCapture.CHARSET);
+	}
+
+	private String decodeLine() {
+		String text = new String(line.toByteArray(), OutputCapture.CHARSET);
+		line.reset();
+		if (text.endsWith("\r")) text = text.substring(0, text.length() - 1);
+		return text;
+	}
+}
@@ -0,0 +1,14 @@
+package com.redhat.qe.tools;
+
+/**
+ * Gets lines of a command output as they come, see SSHCommandRunner.runCommandAndStream(...).
+ * Stdout and stderr are read by different threads, so the methods may be called concurrently.
+ * The channel is not read while a method runs, a slow listener slows the remote command down.
+ * @author jstavel
+ */
+public interface OutputLineListener {
+
+	void stdoutLine(String line);
+
+	void stderrLine(String line);
+}
@@ -0,0 +1,251 @@
+package com.redhat.qe.tools;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+import com.redhat.qe.jul.TestRecords;
+
+import net.schmizz.sshj.SSHClient;
+import net.schmizz.sshj.connection.channel.direct.Session;
+import net.schmizz.sshj.connection.channel.direct.Session.Shell;
+
+/**
+ * Runs commands one after another in a single remote shell, so that a command costs no channel setup
+ * and the working directory and environment pass from one command to the next.
+ * <pre>
+ * PersistentShellRunner shell = new PersistentShellRunner(runner.getConnection());
+ * shell.runCommandAndWait("cd /etc");
+ * SSHCommandResult result = shell.runCommandAndWait("test -e hosts");
+ * shell.close();
+ * </pre>
+ * The output of a command is delimited by a random marker line printed after it, together with its exit code.
+ * The commands are read from stdin of the shell, so a command must not read stdin itself (it gets /dev/null)
+ * and must not call `exit`.  When a command times out or the shell dies (e.g. on a syntax error) the shell
+ * is closed and the next command starts a new one, with a fresh working directory and environment.
+ * @author jstavel
+ */
+public class PersistentShellRunner implements Closeable {
+	protected static Logger log = Logger.getLogger(PersistentShellRunner.class.getName());
+
+	protected SSHClient connection;
+	protected Session session = null;
+	protected Shell shell = null;
+	protected OutputStream stdin = null;
+	protected MarkerReader out = null;
+	protected MarkerReader err = null;
+	protected String marker = "SSHSHELL" + UUID.randomUUID().toString().replace("-", "");
+	protected long sequence = 0;
+
+	/**
+	 * @param connection - an authenticated connection, it is left open by close()
+	 */
+	public PersistentShellRunner(SSHClient connection) {
+		this.connection = connection;
+	}
+
+	public SSHCommandResult runCommandAndWait(String command) throws IOException {
+		return runCommandAndWait(command, null, TestRecords.fine());
+	}
+
+	public SSHCommandResult runCommandAndWait(String command, Long timeoutMS) throws IOException {
+		return runCommandAndWait(command, timeoutMS, TestRecords.fine());
+	}
+
+	/**
+	 * Runs the command in the shell, the shell is started first if it is not running.
+	 * @param command - the remote command to run
+	 * @param timeoutMS - abort if command doesn't complete in this many milliseconds
+	 * 	(null means wait for command to complete, no matter how long it takes)
+	 * @param logRecord - a log record whose Level is used to log the command
+	 * @return result of the command, the exit code is null if the command has timed out or the shell has died
+	 */
+	public synchronized SSHCommandResult runCommandAndWait(String command, Long timeoutMS, LogRecord logRecord) throws IOException {
+		long deadline = (timeoutMS == null) ? 0 : System.currentTimeMillis() + timeoutMS;
+		SSHTiming timing = new SSHTiming(SSHTiming.Kind.COMMAND, connection.getRemoteHostname(), "(shell) " + command);
+		try {
+			return runCommand(command, deadline, logRecord, timing);
+		} finally {
+			timing.mark(SSHTiming.Phase.CLOSE);
+			SSHInstrumentation.finish(timing);
+		}
+	}
+
+	protected SSHCommandResult runCommand(String command, long deadline, LogRecord logRecord, final SSHTiming timing) throws IOException {
+		if (shell == null || !shell.isOpen()) startShell();
+		timing.mark(SSHTiming.Phase.CHANNEL_OPEN);
+		logRecord.setMessage("ssh "+ connection.getRemoteHostname()+ " (shell) " + command);
+		log.log(logRecord);
+
+		final String commandMarker = marker + ":" + (sequence++);
+		String script = "{\n" + command + "\n} </dev/null\n"
+				+ "printf '\\n" + commandMarker + ":%d\\n' $?\n"
+				+ "printf '\\n" + commandMarker + "\\n' >&2\n";
+		stdin.write(script.getBytes(OutputCapture.CHARSET));
+		stdin.flush();
+		timing.mark(SSHTiming.Phase.EXEC);
+
+		Future<String[]> stdout = SSHExecutor.getHelpers().submit(new Callable<String[]>() {
+			public String[] call() throws IOException {
+				return out.readUntil(commandMarker + ":", timing);
+			}
+		});
+		Future<String[]> stderr = SSHExecutor.getHelpers().submit(new Callable<String[]>() {
+			public String[] call() throws IOException {
+				return err.readUntil(commandMarker, timing);
+			}
+		});
+		try {
+			SSHExecutor.await(stdout, deadline);
+			SSHExecutor.await(stderr, deadline);
+			Integer exitCode = Integer.valueOf(stdout.get()[1]);
+			timing.setExitCode(exitCode);
+			timing.mark(SSHTiming.Phase.EXIT_STATUS);
+			return new SSHCommandResult(exitCode, stdout.get()[0], stderr.get()[0]);
+		} catch (TimeoutException e) {
+			log.fine("SSH command did not complete within timeout window, closing the shell: "+command);
+			abandonShell();
+			return new SSHCommandResult(null, out.getPartial(), err.getPartial());
+		} catch (IOException e) {
+			if (!(e.getCause() instanceof EOFException)) throw e;
+			log.log(Level.FINE, "The remote shell has ended, a new one is started by the next command", e);
+			abandonShell();
+			return new SSHCommandResult(null, out.getPartial(), err.getPartial());
+		} catch (Exception e) {
+			throw new IOException(e);
+		}
+	}
+
+	/**
+	 * Ends the shell.  The connection is left open.
+	 */
+	public synchronized void close() {
+		if (shell == null) return;
+		try {
+			stdin.write("exit\n".getBytes(OutputCapture.CHARSET));
+			stdin.flush();
+		} catch (IOException e) {
+			log.log(Level.FINER, "Couldn't ask the shell to exit", e);
+		}
+		SSHExecutor.closeQuietly(session);
+		shell = null;
+		session = null;
+	}
+
+	public SSHClient getConnection() {
+		return connection;
+	}
+
+	protected void startShell() throws IOException {
+		session = connection.startSession();
+		shell = session.startShell();
+		stdin = shell.getOutputStream();
+		out = new MarkerReader(shell.getInputStream());
+		err = new MarkerReader(shell.getErrorStream());
+		log.fine("Started a remote shell on "+connection.getRemoteHostname());
+	}
+
+	protected void abandonShell() {
+		final Session abandoned = session;
+		shell = null;
+		session = null;
+		// the remote side may not answer the close until the running command ends, don't wait for it
+		SSHExecutor.getHelpers().execute(new Runnable() {
+			public void run() {
+				SSHExecutor.closeQuietly(abandoned);
+			}
+		});
+	}
+
+	/**
+	 * Reads a stream of the shell up to a marker line.  Bytes after the marker line are kept for the next command.
+	 */
+	protected static class MarkerReader {
+		protected InputStream stream;
+		protected Buffer buffer = new Buffer();
+		protected byte[] chunk = new byte[8192];
+
+		public MarkerReader(InputStream stream) {
+			this.stream = stream;
+		}
+
+		/**
+		 * @param marker - the marker line starts by "\n" + marker
+		 * @param timing - gets FIRST_BYTE when something is read, may be null
+		 * @return output before the marker line and the rest of the marker line
+		 * @throws EOFException if the stream ends before the marker comes
+		 */
+		public String[] readUntil(String marker, SSHTiming timing) throws IOException {
+			byte[] markerBytes = ("\n" + marker).getBytes(OutputCapture.CHARSET);
+			int searchFrom = 0;
+			while (true) {
+				synchronized (buffer) {
+					int start = buffer.indexOf(markerBytes, searchFrom);
+					if (start >= 0) {
+						int end = buffer.indexOf(new byte[] {'\n'}, start + markerBytes.length);
+						if (end >= 0) {
+							String output = buffer.decode(0, start);
+							String rest = buffer.decode(start + markerBytes.length, end);
+							buffer.discard(end + 1);
+							return new String[] {output, rest};
+						}
+					} else {
+						searchFrom = Math.max(0, buffer.size() - markerBytes.length);
+					}
+				}
+				int len = stream.read(chunk);
+				if (len == -1) throw new EOFException("The shell has ended before the marker "+marker);
+				if (timing != null && len > 0) timing.mark(SSHTiming.Phase.FIRST_BYTE);
+				buffer.write(chunk, 0, len);
+			}
+		}
+
+		/**
+		 * @return output read so far and not returned by readUntil(...)
+		 */
+		public String getPartial() {
+			synchronized (buffer) {
+				return buffer.decode(0, buffer.size());
+			}
+		}
+	}
+
+	/**
+	 * Gives access to the bytes without copying them.
+	 */
+	protected static class Buffer extends ByteArrayOutputStream {
+
+		public synchronized int indexOf(byte[] pattern, int from) {
+			outer:
+			for (int i = from; i <= count - pattern.length; i++) {
+				for (int j = 0; j < pattern.length; j++) {
+					if (buf[i + j] != pattern[j]) continue outer;
+				}
+				return i;
+			}
+			return -1;
+		}
+
+		public synchronized String decode(int from, int to) {
+			return new String(buf, from, to - from, OutputCapture.CHARSET);
+		}
+
+		/**
+		 * Drops the first `length` bytes.
+		 */
+		public synchronized void discard(int length) {
+			System.arraycopy(buf, length, buf, 0, count - length);
+			count -= length;
+		}
+	}
+}
@@ -1,7 +1,11 @@
 package com.redhat.qe.tools;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
@@ -18,13 +22,16 @@ import com.redhat.qe.Assert;
 import com.redhat.qe.jul.TestRecords;
 import net.schmizz.sshj.SSHClient;
 import net.schmizz.sshj.connection.channel.direct.Session;
-import net.schmizz.sshj.xfer.scp.SCPFileTransfer;
+import net.schmizz.sshj.xfer.FileTransfer;
+import net.schmizz.sshj.xfer.TransferListener;
 
 public class RemoteFileTasks {
 	protected static Logger log = Logger.getLogger(RemoteFileTasks.class.getName());
 
 	/**
 	 * Use echo to create a file with the given contents.  Then use chmod to give permissions to the file.
+	 * Both are run by one remote command, chmod only if echo succeeds.
+	 * The contents go on the command line, see writeFile(...) for big contents or contents with single quotes.
 	 * @param runner
 	 * @param filePath - absolute path to the file create
 	 * @param contents - contents of the file
@@ -33,9 +40,88 @@ public class RemoteFileTasks {
 	 * @author jsefler
 	 */
 	public static int createFile(SSHCommandRunner runner, String filePath, String contents, String perms) {
-		int exitCode = runCommandAndWait(runner, "echo -n -e '"+contents+"' > "+filePath, TestRecords.action());
-		if (exitCode==0 && perms!=null) exitCode = runCommandAndWait(runner, "chmod "+perms+" "+filePath, TestRecords.action());
-		return exitCode;
+		String command = "echo -n -e '"+contents+"' > "+filePath;
+		if (perms!=null) command += " && chmod "+perms+" "+filePath;
+		return runCommandAndWait(runner, command, TestRecords.action());
+	}
+
+	/**
+	 * Like createFile(...), but the file is written over SFTP (see SSHStreamTransfer) instead of an echo command line,
+	 * so the contents may be of any size and contain single quotes, which are written as they are.  Backslash escapes
+	 * are interpreted like `echo -e` does.  The path is not expanded by a shell: no variables, globs or ~user;
+	 * a leading ~/ is taken relative to the home directory.  No command is run unless perms are not octal,
+	 * so the runner keeps the output and exit code of its last command.
+	 * @param filePath - path to the file to create
+	 * @param contents - contents of the file
+	 * @param perms - optional permissions: octal ones (e.g. "0644") are set when the file is written,
+	 * 	other chmod options (e.g. "a+x") by chmod afterwards
+	 * @return - 0, 1 if the file could not be written, or the exit code of chmod
+	 * @author jstavel
+	 */
+	public static int writeFile(SSHCommandRunner runner, String filePath, String contents, String perms) {
+		SSHClient client = runner.getConnection();
+		log.log(Level.INFO, "Creating file " + filePath + " on " + client.getRemoteHostname(), TestRecords.Style.Action);
+		boolean octal = perms != null && Pattern.matches("^[0-7]{3,4}", perms);
+		// SFTP resolves relative paths against the home directory
+		String path = filePath.startsWith("~/") ? filePath.substring(2) : filePath;
+		try {
+			new SSHStreamTransfer(client).upload(new ByteArrayInputStream(echoBytes(contents)), path, octal ? Integer.valueOf(perms, 8) : null);
+		} catch (IOException e) {
+			log.log(Level.WARNING, "Couldn't write " + filePath + " on " + client.getRemoteHostname(), e);
+			return 1;
+		}
+		if (perms != null && !octal) return runCommandAndWait(runner, "chmod " + perms + " '" + path.replace("'", "'\\''") + "'", TestRecords.action());
+		return 0;
+	}
+
+	/**
+	 * @return the bytes `echo -n -e` prints for the text: \\ \a \b \c \e \f \n \r \t \v \0nnn \xHH are
+	 * 	interpreted, other characters encoded in UTF-8
+	 */
+	static byte[] echoBytes(String text) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(text.length());
+		int i = 0;
+		while (i < text.length()) {
+			int start = i;
+			while (i < text.length() && text.charAt(i) != '\\') i++;
+			byte[] plain = text.substring(start, i).getBytes(StandardCharsets.UTF_8);
+			out.write(plain, 0, plain.length);
+			if (i + 1 >= text.length()) {
+				if (i < text.length()) out.write('\\');  // a trailing backslash
+				break;
+			}
+			char c = text.charAt(i + 1);
+			i += 2;
+			switch (c) {
+			case '\\': out.write('\\'); break;
+			case 'a': out.write(7); break;
+			case 'b': out.write('\b'); break;
+			case 'c': return out.toByteArray();  // no further output
+			case 'e': case 'E': out.write(27); break;
+			case 'f': out.write('\f'); break;
+			case 'n': out.write('\n'); break;
+			case 'r': out.write('\r'); break;
+			case 't': out.write('\t'); break;
+			case 'v': out.write(11); break;
+			case '0': case 'x':
+				int radix = (c == '0') ? 8 : 16;
+				int end = i;
+				while (end < text.length() && end - i < ((c == '0') ? 3 : 2) && Character.digit(text.charAt(end), radix) != -1) end++;
+				if (c == 'x' && end == i) {
+					out.write('\\');
+					out.write('x');
+					break;
+				}
+				out.write((end == i) ? 0 : Integer.parseInt(text.substring(i, end), radix));
+				i = end;
+				break;
+			default:
+				out.write('\\');
+				byte[] other = String.valueOf(c).getBytes(StandardCharsets.UTF_8);
+				out.write(other, 0, other.length);
+			}
+		}
+		return out.toByteArray();
 	}
 
 	public static void createFile(SSHCommandRunner runner, String filePath, String contents) throws IOException, InterruptedException  {
@@ -43,7 +129,33 @@ public class RemoteFileTasks {
 	}
 
 	/**
-	 * Copy file(s) onto a remote machine 
+	 * Write a remote file from the rest of the stream over SFTP, without a local file (see SSHStreamTransfer)
+	 * @param dest - full path to the remote file
+	 * @param mask - permissions on file, eg, "0755", set when the file is written
+	 * @return bytes written
+	 * @throws IOException
+	 */
+	public static long putStream(SSHCommandRunner runner, InputStream in, String dest, String mask) throws IOException {
+		assert(Pattern.matches("^[0-7]{3,4}", mask));
+		SSHClient client = runner.getConnection();
+		log.log(Level.INFO, "Copying stream to " + dest + " on " + client.getRemoteHostname() + " with mask " + mask, TestRecords.Style.Action);
+		return new SSHStreamTransfer(client).upload(in, dest, Integer.valueOf(mask, 8));
+	}
+
+	/**
+	 * Read a remote file into the stream over SFTP, without a local file (see SSHStreamTransfer)
+	 * @return bytes read
+	 * @throws IOException
+	 */
+	public static long getStream(SSHCommandRunner runner, String remoteFile, OutputStream out) throws IOException {
+		SSHClient client = runner.getConnection();
+		log.log(Level.INFO, "Copying remote file " + remoteFile + " on " + client.getRemoteHostname() + " to a stream.", TestRecords.Style.Action);
+		return new SSHStreamTransfer(client).download(remoteFile, out);
+	}
+
+	/**
+	 * Copy file(s) onto a remote machine by SCP or SFTP, see SSHTransferEngine.
+	 * Files already in destDir with the same content are skipped if `ssh.transfer.skipIdentical` is true (see SSHUploadCache).
 	 * @param conn - A connection object already created to connect to ssh server
 	 * @param destDir -  path where the file(s) should go on the remote machine (must be dir)
 	 * @param source - one or more paths to the file(s) you want to copy to the remote dir
@@ -52,11 +164,28 @@ public class RemoteFileTasks {
 	 */
 	public static void putFiles(SSHCommandRunner runner, String destDir, String... sources ) throws IOException  {
     SSHClient client = runner.getConnection();
-		SCPFileTransfer xfer = client.newSCPFileTransfer();
+		if (SSHUploadCache.isEnabled()) {
+			List<String> changed = SSHUploadCache.getDefault().changed(client, destDir, sources);
+			if (changed.size() < sources.length) {
+				log.log(Level.INFO, "Skipping " + (sources.length - changed.size()) + " file(s) already in " + destDir + " on " + client.getRemoteHostname() + " with the same content");
+			}
+			sources = changed.toArray(new String[changed.size()]);
+		}
+		FileTransfer xfer = SSHTransferEngine.getDefault().newFileTransfer(client);
+		TransferListener listener = xfer.getTransferListener();
 		for (String source: sources) {
 			log.log(Level.INFO, "Copying " + source + " to " + destDir + " on " + client.getRemoteHostname(), TestRecords.Style.Action);
-			xfer.upload(source,destDir);
+			SSHTiming timing = new SSHTiming(SSHTiming.Kind.TRANSFER, client.getRemoteHostname(), "put "+source+" "+destDir);
+			xfer.setTransferListener(timing.watchTransfer(listener));
+			try {
+				xfer.upload(source,destDir);
+				timing.mark(SSHTiming.Phase.CLOSE);
+			} finally {
+				SSHInstrumentation.finish(timing);
+			}
 		};
+		// the next call needn't hash the files just put there
+		if (SSHUploadCache.isEnabled()) SSHUploadCache.getDefault().uploaded(client, destDir, sources);
 	}
 	
 	/**
@@ -65,14 +194,33 @@ public class RemoteFileTasks {
 	 * @param dest - full path to the destination where you want the file to go 
 	 * 	(if path ends in trailing slash, it's assumed to be a dir, and the source filename is used) 
 	 * @param mask - permissions on file, eg, "0755"
+	 * 	(set also when the file is skipped because the same content is there, see `ssh.transfer.skipIdentical`)
 	 * @throws IOException
 	 * @author jweiss, jstavel
 	 */
 	public static void putFile(SSHCommandRunner runner, String source, String dest, String mask) throws IOException  {
+		if (SSHUploadCache.isEnabled()) {
+			SSHClient client = runner.getConnection();
+			String identical = SSHUploadCache.getDefault().identicalCopy(client, source, dest);
+			if (identical != null) {
+				log.log(Level.INFO, "Skipping local file " + source + ", " + identical + " on " + client.getRemoteHostname() + " has the same content; setting mask " + mask, TestRecords.Style.Action);
+				runner.runCommand("chmod " + mask + " '" + identical.replace("'", "'\\''") + "'");
+				return;
+			}
+		}
+		if (SSHDeltaUpload.isEnabled()) {
+			putFileDelta(runner, source, dest, mask);
+			if (SSHUploadCache.isEnabled()) SSHUploadCache.getDefault().uploaded(runner.getConnection(), dest, source);
+			return;
+		}
 		assert(Pattern.matches("^[0-7]{3,4}", mask));
     SSHClient client = runner.getConnection();
 		log.log(Level.INFO, "Copying local file " + source + " to " + dest + " on " + client.getRemoteHostname() + " with mask " + mask, TestRecords.Style.Action);
-		client.newSCPFileTransfer().upload(source, dest);
+		if (SSHTransferCompression.getDefault() != SSHTransferCompression.OFF) {
+			log.log(Level.INFO, new SSHCompressedTransfer(client).upload(source, dest).toString());
+		} else {
+			SSHTransferEngine.getDefault().newFileTransfer(client).upload(source, dest);
+		}
     runner.runCommandAndWait("(test -d '" + dest + "')" + " && (echo 'is directory!')");
     final String isDirectorySTDOUT = runner.getStdout().trim();
     if (isDirectorySTDOUT.equals("is directory!")) {
@@ -86,10 +234,32 @@ public class RemoteFileTasks {
       final String command = "chmod " + mask + " '" + dest + "'";
       runner.runCommand(command);
     }
+		// after chmod, which changes the stamp of the file
+		if (SSHUploadCache.isEnabled()) SSHUploadCache.getDefault().uploaded(client, dest, source);
 	}
 	
 	/**
-	 * Copy file(s) from a remote machine 
+	 * Like putFile(...), but only the parts of the file that differ from the copy already on the host are sent
+	 * (see SSHDeltaUpload).  putFile(...) goes this way if `ssh.transfer.delta` is true.
+	 * @param source - path to the file you want to copy
+	 * @param dest - full path to the destination, or a directory to put the file into
+	 * @param mask - permissions on file, eg, "0755"
+	 * @return bytes sent to the host
+	 * @throws IOException
+	 */
+	public static long putFileDelta(SSHCommandRunner runner, String source, String dest, String mask) throws IOException  {
+		assert(Pattern.matches("^[0-7]{3,4}", mask));
+		SSHClient client = runner.getConnection();
+		log.log(Level.INFO, "Copying changes of local file " + source + " to " + dest + " on " + client.getRemoteHostname() + " with mask " + mask, TestRecords.Style.Action);
+		SSHDeltaUpload delta = new SSHDeltaUpload(client);
+		String target = delta.upload(source, dest);
+		log.log(Level.INFO, delta.toString());
+		runner.runCommand("chmod " + mask + " '" + target + "'");
+		return delta.getSentBytes();
+	}
+
+	/**
+	 * Copy file(s) from a remote machine by SCP or SFTP, see SSHTransferEngine
 	 * @param conn - can be retrieved from your SSHCommandRunner instance
 	 * @param localTargetDirectory - Local directory to put the downloaded file(s).
 	 * @param remoteFiles - Path and name(s) of the remote file(s)
@@ -98,14 +268,98 @@ public class RemoteFileTasks {
 	 */
 	public static void getFiles(SSHCommandRunner runner, String localTargetDirectory, String... remoteFiles ) throws IOException {
     SSHClient client = runner.getConnection();
-		SCPFileTransfer xfer = client.newSCPFileTransfer();
+		FileTransfer xfer = SSHTransferEngine.getDefault().newFileTransfer(client);
+		TransferListener listener = xfer.getTransferListener();
 		for (String remoteFile: remoteFiles) {
 			log.log(Level.INFO, "Copying remote file "+remoteFile+" on "+client.getRemoteHostname()+" to local directory "+localTargetDirectory+".", TestRecords.Style.Action);
-			xfer.download(remoteFile, localTargetDirectory);
+			SSHTiming timing = new SSHTiming(SSHTiming.Kind.TRANSFER, client.getRemoteHostname(), "get "+remoteFile+" "+localTargetDirectory);
+			xfer.setTransferListener(timing.watchTransfer(listener));
+			try {
+				xfer.download(remoteFile, localTargetDirectory);
+				timing.mark(SSHTiming.Phase.CLOSE);
+			} finally {
+				SSHInstrumentation.finish(timing);
+			}
 		}
 	}
+	/**
+	 * Like getFiles(...), compressed by gzip on the host if `ssh.transfer.compression` is gzip or auto
+	 * (see SSHCompressedTransfer); a remote directory is copied uncompressed
+	 */
 	public static void getFile(SSHCommandRunner runner, String localTargetDirectory, String remoteFile ) throws IOException {
-		getFiles(runner,localTargetDirectory,remoteFile);
+		if (SSHTransferCompression.getDefault() == SSHTransferCompression.OFF) {
+			getFiles(runner,localTargetDirectory,remoteFile);
+			return;
+		}
+		SSHClient client = runner.getConnection();
+		log.log(Level.INFO, "Copying remote file "+remoteFile+" on "+client.getRemoteHostname()+" to local directory "+localTargetDirectory+".", TestRecords.Style.Action);
+		log.log(Level.INFO, new SSHCompressedTransfer(client).download(remoteFile, localTargetDirectory).toString());
+	}
+
+	/**
+	 * Like getFile(...), but a broken download leaves the part file and its state, and calling this again
+	 * (with a new runner if the connection is gone) continues from there; every chunk is verified
+	 * by its checksum on the host (see SSHResumableDownload, `ssh.resume.chunkBytes`).
+	 * @return bytes of the file and the time it took
+	 * @throws IOException
+	 */
+	public static TransferResult getFileResumable(SSHCommandRunner runner, String localTargetDirectory, String remoteFile) throws IOException {
+		SSHClient client = runner.getConnection();
+		log.log(Level.INFO, "Copying remote file "+remoteFile+" on "+client.getRemoteHostname()+" to local directory "+localTargetDirectory+", resumable.", TestRecords.Style.Action);
+		SSHResumableDownload download = new SSHResumableDownload(client);
+		TransferResult result = download.download(remoteFile, localTargetDirectory);
+		log.log(Level.INFO, result+", "+download.getFetchedBytes()+" bytes read by this call");
+		return result;
+	}
+
+	/**
+	 * Copy file(s) or directory trees onto a remote machine as one tar stream over one channel, unpacked by tar
+	 * on the host (see SSHTarTransfer, `ssh.tar.gzip`).  Faster than putFiles(...) for many small files.
+	 * @param destDir - path where the file(s) should go on the remote machine, created if needed
+	 * @param sources - one or more paths to the file(s) or directories you want to copy to the remote dir
+	 * @throws IOException
+	 */
+	public static void putFilesTar(SSHCommandRunner runner, String destDir, String... sources) throws IOException {
+		SSHClient client = runner.getConnection();
+		log.log(Level.INFO, "Copying " + Arrays.toString(sources) + " to " + destDir + " on " + client.getRemoteHostname() + " by tar", TestRecords.Style.Action);
+		new SSHTarTransfer(client).upload(destDir, sources);
+	}
+
+	/**
+	 * Copy file(s) or directory trees from a remote machine as one tar stream over one channel
+	 * (see SSHTarTransfer, `ssh.tar.gzip`).  Faster than getFiles(...) for many small files.
+	 * @param localTargetDirectory - Local directory to put the downloaded file(s), created if needed
+	 * @param remoteFiles - Path and name(s) of the remote file(s) or directories
+	 * @throws IOException
+	 */
+	public static void getFilesTar(SSHCommandRunner runner, String localTargetDirectory, String... remoteFiles) throws IOException {
+		SSHClient client = runner.getConnection();
+		log.log(Level.INFO, "Copying remote files " + Arrays.toString(remoteFiles) + " on " + client.getRemoteHostname() + " to local directory " + localTargetDirectory + " by tar", TestRecords.Style.Action);
+		new SSHTarTransfer(client).download(localTargetDirectory, remoteFiles);
+	}
+
+	/**
+	 * Copy file(s) onto a remote machine, several files at once over their own channels, the biggest first
+	 * (see SSHParallelTransfer, `ssh.transfer.parallelism`)
+	 * @param destDir - path where the file(s) should go on the remote machine (must be dir)
+	 * @param sources - one or more paths to the file(s) you want to copy to the remote dir
+	 * @return a result (bytes, duration, failure) for every source, in the order of the sources
+	 */
+	public static List<TransferResult> putFilesParallel(SSHCommandRunner runner, String destDir, String... sources) {
+		log.log(Level.INFO, "Copying " + sources.length + " files to " + destDir + " on " + runner.getConnection().getRemoteHostname(), TestRecords.Style.Action);
+		return new SSHParallelTransfer(runner.getConnection()).put(destDir, sources);
+	}
+
+	/**
+	 * Copy file(s) from a remote machine, several files at once over their own channels, the biggest first
+	 * (see SSHParallelTransfer, `ssh.transfer.parallelism`)
+	 * @param localTargetDirectory - Local directory to put the downloaded file(s).
+	 * @param remoteFiles - Path and name(s) of the remote file(s)
+	 * @return a result (bytes, duration, failure) for every remote file, in the order of the files
+	 */
+	public static List<TransferResult> getFilesParallel(SSHCommandRunner runner, String localTargetDirectory, String... remoteFiles) {
+		log.log(Level.INFO, "Copying " + remoteFiles.length + " remote files on " + runner.getConnection().getRemoteHostname() + " to local directory " + localTargetDirectory + ".", TestRecords.Style.Action);
+		return new SSHParallelTransfer(runner.getConnection()).get(localTargetDirectory, remoteFiles);
 	}
 	
 	/**
@@ -0,0 +1,53 @@
+package com.redhat.qe.tools;
+
+/**
+ * Adler-32 over a window of bytes that can be moved by one byte at a time (the weak checksum of rsync).
+ * The value is the same as zlib.adler32() or java.util.zip.Adler32 gives for the bytes of the window.
+ * @author jstavel
+ */
+public class RollingChecksum {
+
+	private static final int MOD = 65521;
+
+	private final int window;
+	private long a = 1;
+	private long b = 0;
+
+	/**
+	 * @param window - number of bytes the checksum is computed over
+	 */
+	public RollingChecksum(int window) {
+		this.window = window;
+	}
+
+	/**
+	 * Computes the checksum of len bytes from scratch.
+	 */
+	public void reset(byte[] buffer, int off, int len) {
+		a = 1;
+		b = 0;
+		for (int i = off; i < off + len; i++) {
+			a = (a + (buffer[i] & 0xff)) % MOD;
+			b = (b + a) % MOD;
+		}
+	}
+
+	/**
+	 * Moves the window by one byte.
+	 * @param out - the first byte of the window, it leaves the window
+	 * @param in - the byte after the window, it enters the window
+	 */
+	public void roll(byte out, byte in) {
+		int x = out & 0xff;
+		a = ((a - x + (in & 0xff)) % MOD + MOD) % MOD;
+		b = ((b - (long) window * x + a - 1) % MOD + MOD) % MOD;
+	}
+
+	public int getValue() {
+		return (int) ((b << 16) | a);
+	}
+
+	public int getWindow() {
+		return window;
+	}
+}
@@ -2,12 +2,16 @@ package com.redhat.qe.tools;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import net.schmizz.sshj.SSHClient;
+import net.schmizz.sshj.common.StreamCopier;
+import net.schmizz.sshj.xfer.FileTransfer;
+import net.schmizz.sshj.xfer.TransferListener;
 import net.schmizz.sshj.userauth.keyprovider.KeyProvider;
-import net.schmizz.sshj.xfer.scp.SCPFileTransfer;
 
 public class SCPTools {
 	protected String userName;
@@ -16,7 +20,14 @@ public class SCPTools {
 	protected String server;
 	protected static Logger log = Logger.getLogger(SCPTools.class.getName());
 	protected SSHClient connection = null;
-	protected SCPFileTransfer client = null;
+	protected FileTransfer client = null;
+	protected TransferListener transferListener = null;
+	protected SSHConnectionPool pool = null;
+	protected SSHCompression compression = SSHCompression.getDefault();  // you can change the value by a system property `ssh.compression`
+	protected SSHTransportProfile transportProfile = null;  // see setTransportProfile()
+	protected SSHTransferEngine transferEngine = SSHTransferEngine.getDefault();  // you can change the value by a system property `ssh.transfer.engine`
+	protected SSHTransferCompression transferCompression = SSHTransferCompression.getDefault();  // you can change the value by a system property `ssh.transfer.compression`
+	protected boolean resumable = Boolean.parseBoolean(System.getProperty("ssh.transfer.resumable","false"));
 	
 	public SCPTools(String server,
 			String user,
@@ -37,17 +48,93 @@ public class SCPTools {
 		this.password = password;
 		this.server = server;
 	}
+
+	/**
+	 * The connection is borrowed from the pool on the first transfer and given back by close().
+	 */
+	public SCPTools(SSHConnectionPool pool,
+			String server,
+			String user,
+			File sshPemFile,
+			String password){
+		this(server, user, sshPemFile, password);
+		this.pool = pool;
+	}
 	
+	/**
+	 * Transfers are bulk data, so both ON and AUTO switch the compression of the connection on.
+	 * The default is given by a system property `ssh.compression` (OFF by default).
+	 * @param compression
+	 */
+	public void setCompression(SSHCompression compression) {
+		this.compression = compression;
+	}
+
+	/**
+	 * @param transportProfile - applied to the connection on the next transfer, e.g. BULK_THROUGHPUT for big files
+	 * 	(by default the connection keeps the profile given by a system property `ssh.transportProfile`)
+	 */
+	public void setTransportProfile(SSHTransportProfile transportProfile) {
+		this.transportProfile = transportProfile;
+	}
+
+	/**
+	 * SCP (the default) or SFTP with many requests in flight, for the transfers from now on.
+	 * The default is given by a system property `ssh.transfer.engine`.
+	 * @param transferEngine
+	 */
+	public void setTransferEngine(SSHTransferEngine transferEngine) {
+		this.transferEngine = transferEngine;
+		if (connection != null) {
+			client = transferEngine.newFileTransfer(connection);
+			transferListener = client.getTransferListener();
+		}
+	}
+
+	/**
+	 * Files compressed by gzip on the host (GZIP), by their name or a sample (AUTO), or never (OFF),
+	 * see SSHCompressedTransfer.  The default is given by a system property `ssh.transfer.compression`.
+	 * @param transferCompression
+	 */
+	public void setTransferCompression(SSHTransferCompression transferCompression) {
+		this.transferCompression = transferCompression;
+	}
+
+	/**
+	 * Downloads by SSHResumableDownload: a broken getFile(...) leaves the part file and its state, and the next
+	 * getFile(...) of the same file continues from there on a new connection.  The default is given by a system
+	 * property `ssh.transfer.resumable` (false by default).
+	 * @param resumable
+	 */
+	public void setResumable(boolean resumable) {
+		this.resumable = resumable;
+	}
+
 	public boolean sendFile(String source, String dest){
 		log.info("SCP: Copying "+source+" to "+this.server+":"+dest);
+		if (transferCompression != SSHTransferCompression.OFF) {
+			try {
+				init();
+				log.info("SCP: Transfer succeeded: "+newCompressedTransfer().upload(source, dest));
+				return true;
+			} catch (IOException e) {
+				log.log(Level.INFO, "SCP: File transfer failed:", e);
+				return false;
+			}
+		}
 
+		SSHTiming timing = new SSHTiming(SSHTiming.Kind.TRANSFER, server, "put "+source+" "+dest);
 		try {
 			init();
+			client.setTransferListener(timing.watchTransfer(countingListener(transferListener, true)));
 			client.upload(source, dest);
+			timing.mark(SSHTiming.Phase.CLOSE);
 		} catch (IOException e) {
 			log.log(Level.INFO, "SCP: File transfer failed:", e);
 			return false;
-		} 
+		} finally {
+			SSHInstrumentation.finish(timing);
+		}
 		log.info("SCP: Transfer succeeded");
 		
 		
@@ -55,27 +142,77 @@ public class SCPTools {
 		return true;		
 	}
 	
-	/*public void sendStream(OutputStream os, String dest) throws IOException{
-		Connection newConn = new Connection(server);
+	/**
+	 * Writes the remote file from the rest of the stream over SFTP, without a local file (see SSHStreamTransfer).
+	 * The stream is not closed.
+	 * @param mode - permissions of the remote file, e.g. 0644; null keeps those of an existing file
+	 */
+	public boolean sendStream(InputStream in, String dest, Integer mode){
 		log.info("SFTP: Copying stream to "+this.server+":"+dest);
-		newConn.connect();
-		newConn.authenticateWithPublicKey(userName, sshPemFile, password);
-		SFTPv3Client sftp = new SFTPv3Client(newConn);
-		sftp.createFile(dest);
-		
-		log.info("SFTP: Transfer succeeded");
-	}*/
+		try {
+			init();
+			long bytes = new SSHStreamTransfer(connection).upload(in, dest, mode);
+			log.info("SFTP: Transfer succeeded, "+bytes+" bytes");
+			return true;
+		} catch (IOException e) {
+			log.log(Level.INFO, "SFTP: Stream transfer failed:", e);
+			return false;
+		}
+	}
+
+	/**
+	 * Reads the remote file into the stream over SFTP, without a local file (see SSHStreamTransfer).
+	 * The stream is not closed.
+	 */
+	public boolean getStream(String remoteFile, OutputStream out){
+		log.info("SFTP: Copying "+server+":"+remoteFile+" to stream");
+		try {
+			init();
+			long bytes = new SSHStreamTransfer(connection).download(remoteFile, out);
+			log.info("SFTP: Transfer succeeded, "+bytes+" bytes");
+			return true;
+		} catch (IOException e) {
+			log.log(Level.INFO, "SFTP: Stream transfer failed:", e);
+			return false;
+		}
+	}
 	
 	public boolean getFile(String remoteFile, String target){
 		log.info("SCP: Copying "+server+":"+remoteFile+" to "+target);
+		if (resumable) {
+			try {
+				init();
+				SSHResumableDownload download = new SSHResumableDownload(connection);
+				TransferResult result = download.download(remoteFile, target);
+				log.info("SCP: Transfer succeeded: "+result+", "+download.getFetchedBytes()+" bytes read by this call");
+				return true;
+			} catch (IOException e) {
+				log.log(Level.INFO, "SCP: File transfer failed, call getFile again to continue it:", e);
+				return false;
+			}
+		}
+		if (transferCompression != SSHTransferCompression.OFF) {
+			try {
+				init();
+				log.info("SCP: Transfer succeeded: "+newCompressedTransfer().download(remoteFile, target));
+				return true;
+			} catch (IOException e) {
+				log.log(Level.INFO, "SCP: File transfer failed:", e);
+				return false;
+			}
+		}
 
+		SSHTiming timing = new SSHTiming(SSHTiming.Kind.TRANSFER, server, "get "+remoteFile+" "+target);
 		try {
 			init();
+			client.setTransferListener(timing.watchTransfer(countingListener(transferListener, false)));
 			client.download(remoteFile, target);
-		
+			timing.mark(SSHTiming.Phase.CLOSE);
 		} catch (IOException e) {
 			log.log(Level.INFO, "SCP: File transfer failed:", e);
 			return false;
+		} finally {
+			SSHInstrumentation.finish(timing);
 		}
 		log.info("SCP: Transfer succeeded");
 		
@@ -84,32 +221,81 @@ public class SCPTools {
 
 	
 	public void close() {
-		try {
-			connection.disconnect();
-		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+		if (connection == null) return;
+		if (pool != null) {
+			pool.release(connection);
+		} else {
+			try {
+				connection.disconnect();
+			} catch (IOException e) {
+				// TODO Auto-generated catch block
+				e.printStackTrace();
+			}
 		}
+		connection = null;
+		client = null;
 	}
 	
 	private void init() throws IOException{
+		if (connection != null && !connection.isConnected()) {
+			// a broken transfer took the connection with it, a retry gets a new one
+			log.info("SCP: Connection to "+server+" lost, connecting again");
+			if (pool != null) {
+				pool.invalidate(connection);
+			} else {
+				try {
+					connection.disconnect();
+				} catch (IOException e) {
+					log.log(Level.FINE, "SCP: Disconnect failed:", e);
+				}
+			}
+			connection = null;
+			client = null;
+		}
 		if (connection == null) {
-			connection = connect_server();
-			client = connection.newSCPFileTransfer();
+			connection = (pool != null) ? pool.borrow(server, SSHClientFactory.DEFAULT_PORT, userName, sshPemFile, password, password) : connect_server();
+			client = transferEngine.newFileTransfer(connection);
+			transferListener = client.getTransferListener();
+			SSHClientFactory.applyCompression(connection, compression, true);
 		}
+		if (transportProfile != null) transportProfile.applyTo(connection);
+	}
+
+	private SSHCompressedTransfer newCompressedTransfer() {
+		SSHCompressedTransfer transfer = new SSHCompressedTransfer(connection);
+		transfer.setCompression(transferCompression);
+		transfer.setTransferEngine(transferEngine);
+		return transfer;
+	}
+
+	/**
+	 * Counts the files in SSHTrafficStats and passes everything to the original listener.
+	 */
+	private TransferListener countingListener(final TransferListener delegate, final boolean upload) {
+		return new TransferListener() {
+			public TransferListener directory(String name) {
+				return countingListener(delegate.directory(name), upload);
+			}
+
+			public StreamCopier.Listener file(String name, long size) {
+				if (upload) SSHTrafficStats.addDeliveredOut(connection, size);
+				else SSHTrafficStats.addDeliveredIn(connection, size);
+				return delegate.file(name, size);
+			}
+		};
 	}
 	
 	private SSHClient connect_server() throws IOException{
-		SSHClient ssh = new SSHClient();
+		SSHClient ssh = SSHClientFactory.newSSHClient(SSHClientFactory.isVerifyHosts());
 		try {
-      ssh.loadKnownHosts();
 			ssh.connect(server);
-			KeyProvider keyProvider = ssh.loadKeys(sshPemFile.toString(), password);
+			KeyProvider keyProvider = SSHCredentialCache.getDefault().loadKeys(ssh, sshPemFile, password);
 			ssh.authPublickey(userName, keyProvider);
 			if(!ssh.isAuthenticated()) {
         log.log(Level.INFO, "SCP: auth public key failed, trying auth password.");
 				ssh.authPassword(userName, password);
 			}
+			SSHKeepAlive.start(ssh);
 		} catch (IOException e) {
 			log.log(Level.INFO, "SCP: Connection failed:", e);			
 		}
@@ -0,0 +1,228 @@
+package com.redhat.qe.tools;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.EnumSet;
+import java.util.logging.Logger;
+
+import net.schmizz.sshj.SSHClient;
+import net.schmizz.sshj.common.LoggerFactory;
+import net.schmizz.sshj.common.StreamCopier;
+import net.schmizz.sshj.sftp.FileAttributes;
+import net.schmizz.sshj.sftp.FileMode;
+import net.schmizz.sshj.sftp.OpenMode;
+import net.schmizz.sshj.sftp.RemoteFile;
+import net.schmizz.sshj.sftp.RemoteResourceInfo;
+import net.schmizz.sshj.sftp.SFTPClient;
+import net.schmizz.sshj.xfer.AbstractFileTransfer;
+import net.schmizz.sshj.xfer.FileSystemFile;
+import net.schmizz.sshj.xfer.FileTransfer;
+import net.schmizz.sshj.xfer.LocalDestFile;
+import net.schmizz.sshj.xfer.LocalSourceFile;
+import net.schmizz.sshj.xfer.TransferListener;
+
+/**
+ * Copies files over SFTP with many read or write requests of a file in flight at once, instead of waiting
+ * for every block to be acknowledged (SCP does that, and needs an scp binary on the host).  On a link with a long
+ * round trip this makes the difference between a few MB/s and a full link.
+ * <p>
+ * It behaves like SCPFileTransfer: a file uploaded to an existing directory goes into it, directories are copied
+ * recursively, permissions and modification times are kept.  Every upload(...) or download(...) opens its own
+ * SFTP channel, so an instance can be shared like SCPFileTransfer.  See SSHTransferEngine to select it.
+ * <p>
+ * System properties:
+ * <ul>
+ * <li>`ssh.sftp.maxInFlight` - requests of one file in flight, 64 by default</li>
+ * <li>`ssh.sftp.chunkBytes` - bytes per request, 32768 by default (the size every SFTP server has to accept)</li>
+ * </ul>
+ * @author jstavel
+ */
+public class SFTPTransfer extends AbstractFileTransfer implements FileTransfer {
+	protected static Logger log = Logger.getLogger(SFTPTransfer.class.getName());
+
+	protected final SSHClient connection;
+	protected int maxInFlight = Integer.parseInt(System.getProperty("ssh.sftp.maxInFlight","64"));
+	protected int chunkBytes = Integer.parseInt(System.getProperty("ssh.sftp.chunkBytes","32768"));
+
+	public SFTPTransfer(SSHClient connection) {
+		super(LoggerFactory.DEFAULT);
+		this.connection = connection;
+	}
+
+	/**
+	 * @param maxInFlight - read or write requests of one file sent before the first one is acknowledged
+	 */
+	public void setMaxInFlight(int maxInFlight) {
+		this.maxInFlight = maxInFlight;
+	}
+
+	public int getMaxInFlight() {
+		return maxInFlight;
+	}
+
+	/**
+	 * @param chunkBytes - bytes per request, lowered to what fits in one packet of the channel
+	 */
+	public void setChunkBytes(int chunkBytes) {
+		this.chunkBytes = chunkBytes;
+	}
+
+	public int getChunkBytes() {
+		return chunkBytes;
+	}
+
+	public void upload(String localPath, String remotePath) throws IOException {
+		upload(new FileSystemFile(localPath), remotePath);
+	}
+
+	public void download(String remotePath, String localPath) throws IOException {
+		download(remotePath, new FileSystemFile(localPath));
+	}
+
+	public void upload(LocalSourceFile localFile, String remotePath) throws IOException {
+		SFTPClient sftp = connection.newSFTPClient();
+		try {
+			FileAttributes target = sftp.statExistence(remotePath);
+			if (target != null && target.getType() == FileMode.Type.DIRECTORY) {
+				remotePath = child(remotePath, localFile.getName());
+			}
+			upload(sftp, getTransferListener(), localFile, remotePath);
+		} finally {
+			sftp.close();
+		}
+	}
+
+	public void download(String remotePath, LocalDestFile localFile) throws IOException {
+		SFTPClient sftp = connection.newSFTPClient();
+		try {
+			download(sftp, getTransferListener(), remotePath, sftp.stat(remotePath), localFile);
+		} finally {
+			sftp.close();
+		}
+	}
+
+	protected void upload(SFTPClient sftp, TransferListener listener, LocalSourceFile localFile, String remotePath) throws IOException {
+		if (localFile.isDirectory()) {
+			TransferListener dirListener = listener.directory(localFile.getName());
+			if (sftp.statExistence(remotePath) == null) sftp.mkdir(remotePath);
+			for (LocalSourceFile child: localFile.getChildren(null)) {
+				upload(sftp, dirListener, child, child(remotePath, child.getName()));
+			}
+		} else if (localFile.isFile()) {
+			uploadFile(sftp, listener.file(localFile.getName(), localFile.getLength()), localFile, remotePath);
+		} else {
+			throw new IOException(localFile + " is neither a file nor a directory");
+		}
+		// some servers ignore the attributes of an open request, so they are set once the file is written
+		FileAttributes.Builder attrs = new FileAttributes.Builder().withPermissions(localFile.getPermissions());
+		if (localFile.providesAtimeMtime()) attrs.withAtimeMtime(localFile.getLastAccessTime(), localFile.getLastModifiedTime());
+		sftp.setattr(remotePath, attrs.build());
+	}
+
+	protected void download(SFTPClient sftp, TransferListener listener, String remotePath, FileAttributes attrs, LocalDestFile localFile) throws IOException {
+		String name = name(remotePath);
+		if (attrs.getType() == FileMode.Type.DIRECTORY) {
+			TransferListener dirListener = listener.directory(name);
+			LocalDestFile dir = localFile.getTargetDirectory(name);
+			for (RemoteResourceInfo child: sftp.ls(remotePath)) {
+				download(sftp, dirListener, child.getPath(), child.getAttributes(), dir);
+			}
+			localFile = dir;
+		} else if (attrs.getType() == FileMode.Type.REGULAR) {
+			localFile = localFile.getTargetFile(name);
+			downloadFile(sftp, listener.file(name, attrs.getSize()), remotePath, localFile);
+		} else {
+			throw new IOException(remotePath + " is neither a file nor a directory");
+		}
+		localFile.setPermissions(attrs.getMode().getPermissionsMask());
+		localFile.setLastAccessedTime(attrs.getAtime());
+		localFile.setLastModifiedTime(attrs.getMtime());
+	}
+
+	/**
+	 * Writes the file by up to maxInFlight unacknowledged write requests.
+	 */
+	protected void uploadFile(SFTPClient sftp, StreamCopier.Listener listener, LocalSourceFile localFile, String remotePath) throws IOException {
+		RemoteFile remoteFile = sftp.open(remotePath, EnumSet.of(OpenMode.WRITE, OpenMode.CREAT, OpenMode.TRUNC),
+				new FileAttributes.Builder().withPermissions(localFile.getPermissions()).build());
+		try {
+			OutputStream out = remoteFile.new RemoteFileOutputStream(0, maxInFlight);
+			if (localFile instanceof FileSystemFile) {
+				// read by its channel, a big one memory-mapped, see SSHStreamTransfer
+				FileChannel in = FileChannel.open(((FileSystemFile) localFile).getFile().toPath(), StandardOpenOption.READ);
+				try {
+					new SSHStreamTransfer(connection).copy(in, out, chunkSize(sftp, remoteFile), listener);
+				} finally {
+					in.close();
+				}
+			} else {
+				InputStream in = localFile.getInputStream();
+				try {
+					copy(in, out, chunkSize(sftp, remoteFile), listener);
+				} finally {
+					in.close();
+				}
+			}
+			out.close();  // waits for the writes still in flight
+		} finally {
+			remoteFile.close();
+		}
+	}
+
+	/**
+	 * Reads the file ahead by up to maxInFlight read requests.
+	 */
+	protected void downloadFile(SFTPClient sftp, StreamCopier.Listener listener, String remotePath, LocalDestFile localFile) throws IOException {
+		RemoteFile remoteFile = sftp.open(remotePath);
+		try {
+			InputStream in = remoteFile.new ReadAheadRemoteFileInputStream(maxInFlight);
+			OutputStream out = localFile.getOutputStream();
+			try {
+				copy(in, out, chunkSize(sftp, remoteFile), listener);
+			} finally {
+				out.close();
+			}
+		} finally {
+			remoteFile.close();
+		}
+	}
+
+	/**
+	 * Every read asks for a whole chunk, the read-ahead stream sizes its requests by it.
+	 */
+	protected void copy(InputStream in, OutputStream out, int chunk, StreamCopier.Listener listener) throws IOException {
+		byte[] buffer = new byte[chunk];
+		long count = 0;
+		int n;
+		while ((n = in.read(buffer, 0, chunk)) != -1) {
+			out.write(buffer, 0, n);
+			count += n;
+			if (listener != null) listener.reportProgress(count);
+		}
+	}
+
+	private int chunkSize(SFTPClient sftp, RemoteFile remoteFile) {
+		return chunkSize(sftp, remoteFile, chunkBytes);
+	}
+
+	/**
+	 * @return chunkBytes, lowered to what fits in one packet of the channel
+	 */
+	static int chunkSize(SFTPClient sftp, RemoteFile remoteFile, int chunkBytes) {
+		int fits = sftp.getSFTPEngine().getSubsystem().getRemoteMaxPacketSize() - remoteFile.getOutgoingPacketOverhead();
+		return Math.max(1, Math.min(chunkBytes, fits));
+	}
+
+	private static String child(String dir, String name) {
+		return dir.endsWith("/") ? dir + name : dir + "/" + name;
+	}
+
+	private static String name(String path) {
+		String trimmed = path;
+		while (trimmed.length() > 1 && trimmed.endsWith("/")) trimmed = trimmed.substring(0, trimmed.length() - 1);
+		return trimmed.substring(trimmed.lastIndexOf('/') + 1);
+	}
+}
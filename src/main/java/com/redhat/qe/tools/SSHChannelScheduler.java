@@ -0,0 +1,365 @@
+package com.redhat.qe.tools;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+
+import net.schmizz.sshj.SSHClient;
+import net.schmizz.sshj.connection.channel.OpenFailException;
+
+/**
+ * Hands out channel slots over connections to one host, so that no connection gets more channels than sshd
+ * allows (MaxSessions, 10 by default).  When all connections are full, another one is borrowed from an
+ * SSHConnectionPool, up to maxConnections; beyond that the callers wait in a queue.
+ * <pre>
+ * SSHChannelScheduler scheduler = new SSHChannelScheduler(SSHConnectionPool.getDefault(), "host", 22, "root", key, null, null);
+ * List&lt;CompletableFuture&lt;SSHCommandResult&gt;&gt; results = new ArrayList&lt;CompletableFuture&lt;SSHCommandResult&gt;&gt;();
+ * for (String command: commands) results.add(scheduler.submit(command, 60000L));
+ * ...
+ * log.info(scheduler.toString());  // connections, sessions, queue depth and wait times
+ * scheduler.close();
+ * </pre>
+ * Connections are filled one after another, so an extra connection gets back to the pool once its channels are closed.
+ * If sshd refuses a channel before the limit is reached, the limit of that connection is lowered to what it has open.
+ * <p>
+ * System properties:
+ * <ul>
+ * <li>`ssh.channels.maxSessions` - channels per connection, 10 by default (MaxSessions of OpenSSH)</li>
+ * <li>`ssh.channels.maxConnections` - connections to the host, 4 by default (also limited by `ssh.pool.maxPerHost`)</li>
+ * <li>`ssh.channels.acquireTimeoutMS` - how long to wait in the queue for a free slot, 60000 by default</li>
+ * </ul>
+ * @author jstavel
+ */
+public class SSHChannelScheduler implements Closeable {
+	protected static Logger log = Logger.getLogger(SSHChannelScheduler.class.getName());
+
+	private static final int OPEN_ATTEMPTS = 3;
+
+	protected int maxSessions = Integer.parseInt(System.getProperty("ssh.channels.maxSessions","10"));
+	protected int maxConnections = Integer.parseInt(System.getProperty("ssh.channels.maxConnections","4"));
+	protected long acquireTimeoutMS = Long.parseLong(System.getProperty("ssh.channels.acquireTimeoutMS","60000"));
+
+	protected final SSHConnectionPool pool;
+	protected final String server;
+	protected final int port;
+	protected final String user;
+	protected final File sshPemFile;
+	protected final String pemPassphrase;
+	protected final String password;
+
+	protected final List<Slots> connections = new ArrayList<Slots>();  // in the order they are filled
+	protected int connecting = 0;  // connections being borrowed right now
+	protected boolean closed = false;
+	protected ExecutorService executor = null;
+
+	protected int queueDepth = 0;
+	protected int maxQueueDepth = 0;
+	protected long acquireCount = 0;
+	protected long spillCount = 0;
+	protected final SSHTimingCollector.Histogram waitHistogram = new SSHTimingCollector.Histogram();
+
+	/**
+	 * @param pool - connections are borrowed from this pool and given back to it
+	 * @see SSHConnectionPool#borrow(String, int, String, File, String, String)
+	 */
+	public SSHChannelScheduler(SSHConnectionPool pool, String server, int port, String user, File sshPemFile, String pemPassphrase, String password) {
+		this.pool = pool;
+		this.server = server;
+		this.port = port;
+		this.user = user;
+		this.sshPemFile = sshPemFile;
+		this.pemPassphrase = pemPassphrase;
+		this.password = password;
+	}
+
+	public SSHChannelScheduler(String server, String user, String password) {
+		this(SSHConnectionPool.getDefault(), server, SSHClientFactory.DEFAULT_PORT, user, null, null, password);
+	}
+
+	/**
+	 * Takes a channel slot: on the first connection that has one free, on a new connection if all are full
+	 * and there are less than maxConnections, otherwise waits for a slot up to acquireTimeoutMS.
+	 * @return the slot, open one channel on its connection and close() the slot once the channel is closed
+	 * @throws IOException if no slot gets free in time or a new connection could not be opened
+	 */
+	public Lease acquire() throws IOException {
+		long start = System.nanoTime();
+		long deadline = System.currentTimeMillis() + acquireTimeoutMS;
+		boolean queued = false;
+		try {
+			while (true) {
+				synchronized (this) {
+					if (closed) throw new IllegalStateException("The channel scheduler has been closed.");
+					dropDeadConnections();
+					for (Slots slots: connections) {
+						if (slots.open < slots.capacity && slots.client.isConnected()) {
+							return lease(slots, start);
+						}
+					}
+					if (connections.size() + connecting < maxConnections) {
+						connecting++;
+					} else {
+						if (!queued) {
+							queued = true;
+							queueDepth++;
+							maxQueueDepth = Math.max(maxQueueDepth, queueDepth);
+						}
+						long remaining = deadline - System.currentTimeMillis();
+						if (remaining <= 0) {
+							throw new IOException("No free channel to "+server+" within "+acquireTimeoutMS+" ms ("
+									+connections.size()+" connections, ssh.channels.maxSessions="+maxSessions+").");
+						}
+						try {
+							wait(remaining);
+						} catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+							throw new IOException("Interrupted while waiting for a channel to "+server, e);
+						}
+						continue;
+					}
+				}
+				// a connection has been reserved above, it is borrowed outside the lock
+				SSHClient client = null;
+				try {
+					client = pool.borrow(server, port, user, sshPemFile, pemPassphrase, password);
+				} finally {
+					if (client == null) {
+						synchronized (this) {
+							connecting--;
+							notifyAll();
+						}
+					}
+				}
+				synchronized (this) {
+					// the reservation turns into a connection at once, so no other caller takes its place meanwhile
+					connecting--;
+					notifyAll();
+					if (closed) {
+						pool.release(client);
+						throw new IllegalStateException("The channel scheduler has been closed.");
+					}
+					Slots slots = new Slots(client, maxSessions);
+					if (!connections.isEmpty()) {
+						spillCount++;
+						log.fine("SSH channels: all "+connections.size()+" connections to "+server+" are full, opening another one");
+					}
+					connections.add(slots);
+					return lease(slots, start);
+				}
+			}
+		} finally {
+			if (queued) {
+				synchronized (this) {
+					queueDepth--;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Runs the command on a slot of this scheduler, see SSHExecutor.execute(...).  The slot is given back
+	 * once the channel is closed.
+	 */
+	public SSHCommandResult execute(String command, Long timeoutMS) throws IOException {
+		for (int attempt = 1; ; attempt++) {
+			final Lease lease = acquire();
+			try {
+				return SSHExecutor.execute(lease.getConnection(), command, timeoutMS, new Runnable() {
+					public void run() {
+						lease.close();
+					}
+				});
+			} catch (OpenFailException e) {
+				// the slot has been given back already
+				saturated(lease.slots);
+				if (attempt >= OPEN_ATTEMPTS) throw e;
+			}
+		}
+	}
+
+	/**
+	 * Runs the command asynchronously, the callers beyond the free slots wait in the queue.
+	 * @see #execute(String, Long)
+	 */
+	public CompletableFuture<SSHCommandResult> submit(final String command, final Long timeoutMS) {
+		return CompletableFuture.supplyAsync(new Supplier<SSHCommandResult>() {
+			public SSHCommandResult get() {
+				try {
+					return execute(command, timeoutMS);
+				} catch (IOException e) {
+					throw new CompletionException(e);
+				}
+			}
+		}, getExecutor());
+	}
+
+	/**
+	 * Gives all connections back to the pool.  Channels still open keep running until they are closed.
+	 */
+	public void close() {
+		List<Slots> toRelease;
+		synchronized (this) {
+			closed = true;
+			toRelease = new ArrayList<Slots>(connections);
+			connections.clear();
+			if (executor != null) executor.shutdown();
+			notifyAll();
+		}
+		for (Slots slots: toRelease) pool.release(slots.client);
+	}
+
+	/**
+	 * @return callers waiting for a slot right now
+	 */
+	public synchronized int getQueueDepth() {
+		return queueDepth;
+	}
+
+	/**
+	 * @return the most callers that have been waiting at once
+	 */
+	public synchronized int getMaxQueueDepth() {
+		return maxQueueDepth;
+	}
+
+	/**
+	 * @return number of slots handed out so far
+	 */
+	public synchronized long getAcquireCount() {
+		return acquireCount;
+	}
+
+	/**
+	 * @return number of connections opened because the others were full
+	 */
+	public synchronized long getSpillCount() {
+		return spillCount;
+	}
+
+	/**
+	 * @return time from acquire() to the slot, in nanoseconds
+	 */
+	public SSHTimingCollector.Histogram getWaitHistogram() {
+		return waitHistogram;
+	}
+
+	public synchronized int getConnectionCount() {
+		return connections.size();
+	}
+
+	/**
+	 * @return slots taken right now over all connections
+	 */
+	public synchronized int getSessionCount() {
+		int count = 0;
+		for (Slots slots: connections) count += slots.open;
+		return count;
+	}
+
+	public void setMaxSessions(int maxSessions) {
+		this.maxSessions = maxSessions;
+	}
+
+	public void setMaxConnections(int maxConnections) {
+		this.maxConnections = maxConnections;
+	}
+
+	public void setAcquireTimeout(long acquireTimeoutMS) {
+		this.acquireTimeoutMS = acquireTimeoutMS;
+	}
+
+	public synchronized String toString() {
+		return String.format("[SSHChannelScheduler %s connections=%d sessions=%d queue=%d maxQueue=%d acquired=%d spilled=%d wait mean=%.1fms p99=%.1fms max=%.1fms]",
+				server, connections.size(), getSessionCount(), queueDepth, maxQueueDepth, acquireCount, spillCount,
+				waitHistogram.getMeanNanos() / 1e6, waitHistogram.getPercentileNanos(99) / 1e6, waitHistogram.getMaxNanos() / 1e6);
+	}
+
+	protected synchronized ExecutorService getExecutor() {
+		if (executor == null) executor = Executors.newCachedThreadPool(SSHExecutor.daemonThreadFactory("ssh-channel"));
+		return executor;
+	}
+
+	private Lease lease(Slots slots, long start) {
+		slots.open++;
+		acquireCount++;
+		waitHistogram.record(System.nanoTime() - start);
+		return new Lease(slots);
+	}
+
+	private synchronized void release(Slots slots) {
+		slots.open--;
+		if (!connections.contains(slots)) {
+			// dropped as dead, or the scheduler has been closed
+		} else if (slots.open == 0 && (!slots.client.isConnected() || (connections.indexOf(slots) > 0 && queueDepth == 0))) {
+			// an extra connection is not needed anymore
+			connections.remove(slots);
+			if (slots.client.isConnected()) pool.release(slots.client);
+			else pool.invalidate(slots.client);
+		}
+		notifyAll();
+	}
+
+	private synchronized void saturated(Slots slots) {
+		int capacity = Math.max(1, slots.open);
+		if (capacity < slots.capacity) {
+			log.info("SSH channels: "+server+" refused a channel, lowering the limit of a connection to "+capacity+" channels");
+			slots.capacity = capacity;
+		}
+	}
+
+	private void dropDeadConnections() {
+		for (int i = connections.size() - 1; i >= 0; i--) {
+			Slots slots = connections.get(i);
+			if (!slots.client.isConnected() && slots.open == 0) {
+				connections.remove(i);
+				pool.invalidate(slots.client);
+			}
+		}
+	}
+
+	protected static class Slots {
+		final SSHClient client;
+		int capacity;
+		int open = 0;
+
+		Slots(SSHClient client, int capacity) {
+			this.client = client;
+			this.capacity = capacity;
+		}
+	}
+
+	/**
+	 * One channel slot on a connection, see acquire().
+	 */
+	public class Lease implements Closeable {
+		protected final Slots slots;
+		private boolean released = false;
+
+		Lease(Slots slots) {
+			this.slots = slots;
+		}
+
+		public SSHClient getConnection() {
+			return slots.client;
+		}
+
+		/**
+		 * Gives the slot back, call it once the channel is closed.
+		 */
+		public void close() {
+			synchronized (SSHChannelScheduler.this) {
+				if (released) return;
+				released = true;
+				release(slots);
+			}
+		}
+	}
+}
@@ -0,0 +1,191 @@
+package com.redhat.qe.tools;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import net.schmizz.keepalive.KeepAliveProvider;
+import net.schmizz.sshj.DefaultConfig;
+import net.schmizz.sshj.SSHClient;
+import net.schmizz.sshj.common.Factory;
+import net.schmizz.sshj.transport.compression.Compression;
+import net.schmizz.sshj.transport.verification.PromiscuousVerifier;
+import net.schmizz.sshj.userauth.UserAuthException;
+import net.schmizz.sshj.userauth.keyprovider.KeyProvider;
+
+/**
+ * Creates and authenticates the SSHClient instances used by SSHCommandRunner,
+ * SCPTools and SSHConnectionPool, so that all of them set up a connection the same way.
+ * @author jstavel
+ */
+public class SSHClientFactory {
+	protected static Logger log = Logger.getLogger(SSHClientFactory.class.getName());
+
+	public static final int DEFAULT_PORT = 22;
+
+	/**
+	 * @return value of a system property `ssh.verifyHosts` (true by default)
+	 */
+	public static boolean isVerifyHosts() {
+		return Boolean.parseBoolean(System.getProperty("ssh.verifyHosts","true"));
+	}
+
+	/**
+	 * Creates a new, not yet connected, SSHClient with known hosts loaded (see SSHCredentialCache).
+	 * Its traffic is counted (see SSHTrafficStats) and it is compressed if `ssh.compression` is `on`.
+	 * It can send heartbeats, they are started by SSHKeepAlive.start(...) once the client is connected.
+	 * @param verifyHosts - if false, any host key is accepted
+	 */
+	public static SSHClient newSSHClient(boolean verifyHosts) throws IOException {
+		return newSSHClient(verifyHosts, SSHTransportProfile.getDefault());
+	}
+
+	/**
+	 * @param transportProfile - cipher, window and socket settings of the connection
+	 * @see #newSSHClient(boolean)
+	 */
+	public static SSHClient newSSHClient(boolean verifyHosts, SSHTransportProfile transportProfile) throws IOException {
+		DefaultConfig config = new DefaultConfig();
+		config.setKeepAliveProvider(KeepAliveProvider.KEEP_ALIVE);
+		SSHClient ssh = new SSHClient(config);
+		ssh.setSocketFactory(new SSHTrafficStats.CountingSocketFactory());
+		transportProfile.applyTo(ssh);
+		applyCompression(ssh, SSHCompression.getDefault(), false);
+		if( !verifyHosts ) {
+			log.info("a host verification has been switched OFF");
+			ssh.addHostKeyVerifier(new PromiscuousVerifier());
+		}
+		try {
+			SSHCredentialCache.getDefault().loadKnownHosts(ssh);
+		} catch (IOException e) {
+			// known_hosts is not needed when any host key is accepted (e.g. a machine without ~/.ssh)
+			if (verifyHosts) throw e;
+			log.log(Level.FINE, "Couldn't load known_hosts", e);
+		}
+		return ssh;
+	}
+
+	/**
+	 * Switches the compression on if the mode asks for it.  A connected client re-runs the key exchange,
+	 * which is harmless for the channels already open.  A compression once switched on stays on.
+	 * @param ssh - connected or not yet connected client
+	 * @param compression - OFF does nothing, ON switches the compression on, AUTO switches it on for a bulk connection only
+	 * @param bulk - the connection is going to carry a lot of data (a transfer, a big command output)
+	 */
+	public static void applyCompression(SSHClient ssh, SSHCompression compression, boolean bulk) throws IOException {
+		if (compression == SSHCompression.OFF || (compression == SSHCompression.AUTO && !bulk)) return;
+		if (isCompressionEnabled(ssh)) return;
+		log.fine("Switching compression on for "+(ssh.isConnected() ? ssh.getRemoteHostname() : "a new connection"));
+		ssh.useCompression();
+	}
+
+	/**
+	 * @return true if the client offers a compression to the server
+	 */
+	public static boolean isCompressionEnabled(SSHClient ssh) {
+		for (Factory.Named<Compression> factory: ssh.getTransport().getConfig().getCompressionFactories()) {
+			if (!"none".equals(factory.getName())) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Authenticates an already connected client.  A public key is tried first (if sshPemFile is given),
+	 * then a password (if given).
+	 * @param ssh - connected client
+	 * @param user - remote user
+	 * @param sshPemFile - private key, may be null
+	 * @param pemPassphrase - passphrase of the private key, may be null
+	 * @param password - password of the user, may be null
+	 * @throws UserAuthException if none of the given credentials was accepted
+	 */
+	public static void authenticate(SSHClient ssh, String user, File sshPemFile, String pemPassphrase, String password) throws IOException {
+		UserAuthException lastFailure = null;
+		if (sshPemFile != null) {
+			try {
+				KeyProvider keyProvider = SSHCredentialCache.getDefault().loadKeys(ssh, sshPemFile, pemPassphrase);
+				ssh.authPublickey(user, keyProvider);
+			} catch (UserAuthException e) {
+				log.log(Level.FINE, "auth public key failed for "+user+"@"+ssh.getRemoteHostname(), e);
+				lastFailure = e;
+			}
+		}
+		if (!ssh.isAuthenticated() && password != null) {
+			try {
+				ssh.authPassword(user, password);
+			} catch (UserAuthException e) {
+				lastFailure = e;
+			}
+		}
+		if (!ssh.isAuthenticated()) {
+			throw new UserAuthException("Could not log in to " + ssh.getRemoteHostname() + " with the given credentials ("+user+").", lastFailure);
+		}
+	}
+
+	/**
+	 * Creates, connects and authenticates a new SSHClient, with heartbeats (see SSHKeepAlive).
+	 * @param server - hostname
+	 * @param port - ssh port (usually 22)
+	 * @param user - remote user
+	 * @param sshPemFile - private key, may be null
+	 * @param pemPassphrase - passphrase of the private key, may be null
+	 * @param password - password of the user, may be null
+	 */
+	public static SSHClient connect(String server, int port, String user, File sshPemFile, String pemPassphrase, String password) throws IOException {
+		return connect(server, port, user, sshPemFile, pemPassphrase, password, 0);
+	}
+
+	/**
+	 * @param connectTimeoutMS - TCP connect timeout in milliseconds, 0 means no timeout
+	 * @see #connect(String, int, String, File, String, String)
+	 */
+	public static SSHClient connect(String server, int port, String user, File sshPemFile, String pemPassphrase, String password, int connectTimeoutMS) throws IOException {
+		return connect(server, port, user, sshPemFile, pemPassphrase, password, connectTimeoutMS, SSHTransportProfile.getDefault());
+	}
+
+	/**
+	 * @param transportProfile - cipher, window and socket settings of the connection
+	 * @see #connect(String, int, String, File, String, String, int)
+	 */
+	public static SSHClient connect(String server, int port, String user, File sshPemFile, String pemPassphrase, String password, int connectTimeoutMS, SSHTransportProfile transportProfile) throws IOException {
+		return connect(server, port, user, sshPemFile, pemPassphrase, password, connectTimeoutMS, transportProfile, 0);
+	}
+
+	/**
+	 * @param setupTimeoutMS - bound of the whole setup (TCP connect, key exchange and authentication) in milliseconds,
+	 * 	0 means none; the connection is not bound by it once it is set up
+	 * @see #connect(String, int, String, File, String, String, int, SSHTransportProfile)
+	 */
+	public static SSHClient connect(String server, int port, String user, File sshPemFile, String pemPassphrase, String password, int connectTimeoutMS, SSHTransportProfile transportProfile, int setupTimeoutMS) throws IOException {
+		SSHClient ssh = newSSHClient(isVerifyHosts(), transportProfile);
+		int transportTimeoutMS = ssh.getTransport().getTimeoutMs();
+		if (setupTimeoutMS > 0) {
+			connectTimeoutMS = (connectTimeoutMS > 0) ? Math.min(connectTimeoutMS, setupTimeoutMS) : setupTimeoutMS;
+			ssh.setTimeout(setupTimeoutMS);  // reads of the key exchange and the authentication
+			ssh.getTransport().setTimeoutMs(setupTimeoutMS);
+		}
+		ssh.setConnectTimeout(connectTimeoutMS);
+		SSHTiming timing = new SSHTiming(SSHTiming.Kind.CONNECT, server, user);
+		try {
+			ssh.connect(server, port);
+			timing.mark(SSHTiming.Phase.CONNECT);
+			try {
+				authenticate(ssh, user, sshPemFile, pemPassphrase, password);
+				timing.mark(SSHTiming.Phase.AUTH);
+				if (setupTimeoutMS > 0) {
+					// an idle connection must not time out later
+					ssh.getSocket().setSoTimeout(0);
+					ssh.getTransport().setTimeoutMs(transportTimeoutMS);
+				}
+				SSHKeepAlive.start(ssh);
+			} catch (IOException e) {
+				ssh.disconnect();
+				throw e;
+			}
+		} finally {
+			SSHInstrumentation.finish(timing);
+		}
+		return ssh;
+	}
+}
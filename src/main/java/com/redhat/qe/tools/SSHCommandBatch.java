@@ -0,0 +1,99 @@
+package com.redhat.qe.tools;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Packs several commands into one remote script, so that they cost one channel and one round trip.
+ * Every command runs in its own subshell and is followed by a marker line on stdout (carrying its exit code)
+ * and on stderr, which is how the output of the batch is split back into a result per command.
+ * <pre>
+ * SSHCommandBatch batch = new SSHCommandBatch(Arrays.asList("mkdir -p /tmp/x", "cp /etc/hosts /tmp/x", "ls /tmp/x"));
+ * List&lt;SSHCommandResult&gt; results = batch.parse(runner.runCommandAndWait(batch.getScript()));
+ * </pre>
+ * See SSHCommandRunner.runCommandsAndWait(...) for the usual way to run a batch.
+ * @author jstavel
+ */
+public class SSHCommandBatch {
+
+	protected List<String> commands;
+	protected boolean stopOnFailure;
+	protected String marker;
+
+	public SSHCommandBatch(List<String> commands) {
+		this(commands, false);
+	}
+
+	/**
+	 * @param commands - the remote commands, run one after another
+	 * @param stopOnFailure - if true, the commands after the first one with a nonzero exit code are not run
+	 */
+	public SSHCommandBatch(List<String> commands, boolean stopOnFailure) {
+		this.commands = new ArrayList<String>(commands);
+		this.stopOnFailure = stopOnFailure;
+		this.marker = "SSHBATCH" + UUID.randomUUID().toString().replace("-", "");
+	}
+
+	public List<String> getCommands() {
+		return commands;
+	}
+
+	/**
+	 * @return a random token the marker lines start with
+	 */
+	public String getMarker() {
+		return marker;
+	}
+
+	/**
+	 * @return a shell script running all the commands, to be passed as one remote command
+	 */
+	public String getScript() {
+		StringBuilder script = new StringBuilder();
+		for (int i = 0; i < commands.size(); i++) {
+			script.append("(\n").append(commands.get(i)).append("\n)\n");
+			script.append("rc=$?\n");
+			script.append(String.format("printf '\\n%s:%d:%%d\\n' $rc\n", marker, i));
+			script.append(String.format("printf '\\n%s:%d\\n' >&2\n", marker, i));
+			if (stopOnFailure) script.append("[ $rc -eq 0 ] || exit $rc\n");
+		}
+		return script.toString();
+	}
+
+	/**
+	 * Splits the output of the batch into a result per command.  A command that has been started but has not
+	 * finished (the batch has timed out or has been killed) gets a result with a null exit code.
+	 * Commands that have not been run at all get no result, so the list may be shorter than the list of commands.
+	 * @param batchResult - result of the script returned by getScript()
+	 */
+	public List<SSHCommandResult> parse(SSHCommandResult batchResult) {
+		String stdout = (batchResult.getStdout() == null) ? "" : batchResult.getStdout();
+		String stderr = (batchResult.getStderr() == null) ? "" : batchResult.getStderr();
+		List<SSHCommandResult> results = new ArrayList<SSHCommandResult>();
+		int outPosition = 0;
+		int errPosition = 0;
+		for (int i = 0; i < commands.size(); i++) {
+			String outMarker = "\n" + marker + ":" + i + ":";
+			String errMarker = "\n" + marker + ":" + i + "\n";
+			int outEnd = stdout.indexOf(outMarker, outPosition);
+			if (outEnd < 0) {
+				String outRest = stdout.substring(outPosition);
+				String errRest = stderr.substring(errPosition);
+				if (batchResult.getExitCode() == null || !outRest.isEmpty() || !errRest.isEmpty()) {
+					results.add(new SSHCommandResult(null, outRest, errRest));
+				}
+				break;
+			}
+			int exitCodeEnd = stdout.indexOf('\n', outEnd + outMarker.length());
+			if (exitCodeEnd < 0) exitCodeEnd = stdout.length();
+			Integer exitCode = Integer.valueOf(stdout.substring(outEnd + outMarker.length(), exitCodeEnd));
+			int errEnd = stderr.indexOf(errMarker, errPosition);
+			String commandStderr = (errEnd < 0) ? stderr.substring(errPosition) : stderr.substring(errPosition, errEnd);
+			results.add(new SSHCommandResult(exitCode, stdout.substring(outPosition, outEnd), commandStderr));
+			outPosition = Math.min(stdout.length(), exitCodeEnd + 1);
+			errPosition = (errEnd < 0) ? stderr.length() : errEnd + errMarker.length();
+		}
+		return results;
+	}
+}
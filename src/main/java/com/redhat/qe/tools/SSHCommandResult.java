@@ -1,10 +1,18 @@
 package com.redhat.qe.tools;
 
 
+/**
+ * Exit code and output of a remote command.  The output of a result built from captures stays raw (in memory up to
+ * a limit, the rest in a temporary file, see OutputCapture) and is decoded only when getStdout() or getStderr()
+ * is called; the capture is released once decoded.  Call release() when the output is not needed anymore,
+ * an output that has not been decoded by then is gone.
+ */
 public class SSHCommandResult {
 	protected Integer exitCode = null;
 	protected String stdout = null;
 	protected String stderr = null;
+	protected OutputCapture stdoutCapture = null;
+	protected OutputCapture stderrCapture = null;
 	
 	/**
 	 * @param exitCode
@@ -18,6 +26,19 @@ public class SSHCommandResult {
 		this.stderr = stderr;
 	}
 
+	/**
+	 * The result takes over the captures, they are decoded on demand and released by release().
+	 * @param exitCode
+	 * @param stdout
+	 * @param stderr
+	 */
+	public SSHCommandResult(Integer exitCode, OutputCapture stdout, OutputCapture stderr) {
+		super();
+		this.exitCode = exitCode;
+		this.stdoutCapture = stdout;
+		this.stderrCapture = stderr;
+	}
+
 	/**
 	 * @return the exitCode
 	 */
@@ -27,23 +48,43 @@ public class SSHCommandResult {
 	
 	/**
 	 * @return the stdout
+	 * @throws IllegalStateException if the result has been released before stdout was decoded
 	 */
-	public final String getStdout() {
+	public final synchronized String getStdout() {
+		if (stdout == null && stdoutCapture != null) {
+			stdout = stdoutCapture.toString();
+			stdoutCapture.release();
+			stdoutCapture = null;
+		}
 		return stdout;
 	}
 
 	/**
 	 * @return the stderr
+	 * @throws IllegalStateException if the result has been released before stderr was decoded
 	 */
-	public final String getStderr() {
+	public final synchronized String getStderr() {
+		if (stderr == null && stderrCapture != null) {
+			stderr = stderrCapture.toString();
+			stderrCapture.release();
+			stderrCapture = null;
+		}
 		return stderr;
 	}
+
+	/**
+	 * Releases the output not decoded yet (see OutputCapture.release()), a decoded output stays available.
+	 */
+	public synchronized void release() {
+		if (stdoutCapture != null) stdoutCapture.release();
+		if (stderrCapture != null) stderrCapture.release();
+	}
 	
 	public String toString() {
 		String string = "";
 		if (exitCode != null)	string += String.format(" %s=%d", "exitCode",exitCode);
-		if (stdout != null)		string += String.format(" %s='%s'", "stdout",stdout);
-		if (stderr != null)		string += String.format(" %s='%s'", "stderr",stderr);
+		if (getStdout() != null)	string += String.format(" %s='%s'", "stdout",getStdout());
+		if (getStderr() != null)	string += String.format(" %s='%s'", "stderr",getStderr());
 		
 		return string.trim();
 	}
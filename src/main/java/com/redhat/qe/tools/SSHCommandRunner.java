@@ -1,12 +1,18 @@
 package com.redhat.qe.tools;
 
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
 import java.net.ServerSocket;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
 import java.util.logging.Level;
 import java.util.logging.LogRecord;
 import java.util.logging.Logger;
@@ -18,7 +24,6 @@ import net.schmizz.sshj.connection.ConnectionException;
 import net.schmizz.sshj.connection.channel.direct.Session;
 import net.schmizz.sshj.connection.channel.direct.Session.Command;
 import net.schmizz.sshj.transport.TransportException;
-import net.schmizz.sshj.transport.verification.PromiscuousVerifier;
 import net.schmizz.sshj.userauth.keyprovider.KeyProvider;
 
 
@@ -34,13 +39,26 @@ public class SSHCommandRunner implements Runnable {
 	protected InputStream err;
 	protected String s_out = null;
 	protected String s_err = null;
-	protected boolean kill = false;
+	protected OutputCapture c_out = null;
+	protected OutputCapture c_err = null;
+	protected final Object outCaptureLock = new Object();  // stdout and stderr are consumed independently, see captureOutputInBackground()
+	protected final Object errCaptureLock = new Object();
+	protected volatile boolean capturesHanded = false;  // the captures belong to a result, see getSSHCommandResult()
+	protected volatile Session cancelledSession = null;  // the channel has been cancelled already, see abort()
+	protected volatile CompletableFuture<SSHCommandResult> pending = null;  // future of runCommandAsync(...), see cancel()
 	protected String command = null;
 	protected Object lock = new Object();
+	protected static final long JOIN_STEP_MS = 100;
 	protected Long emergencyTimeoutMS = 1000l; // you can change the value by a system property `ssh.emergencyTimeoutMS`
 	protected Integer exitCode;
 	protected Command actuallCommand = null;
+	protected SSHTiming timing = null;  // phases of the last command, see SSHInstrumentation
   protected boolean verifyHosts = true;  // you can change the value by a system property `ssh.verifyHosts`
+	protected SSHConnectionPool pool = null;  // the connection is leased from this pool, see close()
+	protected boolean asyncLaunch = Boolean.parseBoolean(System.getProperty("ssh.asyncLaunch","false"));  // run() doesn't wait for the command, see setAsyncLaunch()
+	protected boolean ownsConnection = false;
+	protected SSHConnectionPool.Key credentials = null;  // to open a new connection when this one dies, see ensureConnected()
+	protected SSHCompression compression = SSHCompression.getDefault();  // you can change the value by a system property `ssh.compression`
 
 
 	public SSHCommandRunner(SSHClient connection,
@@ -61,19 +79,25 @@ public class SSHCommandRunner implements Runnable {
 
     this.verifyHosts = Boolean.parseBoolean(System.getProperty("ssh.verifyHosts","true"));
 
-		SSHClient ssh = new SSHClient();
-    if( !this.verifyHosts ) {
-      log.info("a host verification has been switched OFF");
-      ssh.addHostKeyVerifier(new PromiscuousVerifier());
-    }
-		ssh.loadKnownHosts();
-		ssh.connect(server);
-		KeyProvider keyProvider = ssh.loadKeys(sshPemFile.toString(), passphrase);
-		ssh.authPublickey(user, keyProvider);
-		if(!ssh.isAuthenticated()) {
-			throw new RuntimeException("Could not log in to " + ssh.getRemoteHostname() + " with the given credentials ("+user+").");
+		SSHClient ssh = SSHClientFactory.newSSHClient(this.verifyHosts);
+		SSHTiming timing = new SSHTiming(SSHTiming.Kind.CONNECT, server, user);
+		try {
+			ssh.connect(server);
+			timing.mark(SSHTiming.Phase.CONNECT);
+			KeyProvider keyProvider = SSHCredentialCache.getDefault().loadKeys(ssh, sshPemFile, passphrase);
+			ssh.authPublickey(user, keyProvider);
+			if(!ssh.isAuthenticated()) {
+				throw new RuntimeException("Could not log in to " + ssh.getRemoteHostname() + " with the given credentials ("+user+").");
+			}
+			timing.mark(SSHTiming.Phase.AUTH);
+		} finally {
+			// a failed connection is reported too, without the phases it hasn't reached
+			SSHInstrumentation.finish(timing);
 		}
+		SSHKeepAlive.start(ssh);
 		this.connection = ssh;
+		this.ownsConnection = true;
+		this.credentials = new SSHConnectionPool.Key(server, SSHClientFactory.DEFAULT_PORT, user, sshPemFile, passphrase, null);
 		this.user = user;
 		this.command = command;
 	}
@@ -88,22 +112,27 @@ public class SSHCommandRunner implements Runnable {
 
     this.verifyHosts = Boolean.parseBoolean(System.getProperty("ssh.verifyHosts","true"));
 
-		SSHClient ssh = new SSHClient();
-    if( !this.verifyHosts ) {
-      log.info("a host verification has been switched OFF");
-      ssh.addHostKeyVerifier(new PromiscuousVerifier());
-    }
-		ssh.loadKnownHosts();
-		ssh.connect(server);
-		KeyProvider keyProvider = ssh.loadKeys(sshPemFile.toString(), passphrase);
-		ssh.authPublickey(user, keyProvider);
-		if(!ssh.isAuthenticated()) {
-			ssh.authPassword(user, passphrase);
-			if (!ssh.isAuthenticated()) {
-				throw new RuntimeException("Could not log in to " + ssh.getRemoteHostname() + " with the given credentials ("+user+").");	
+		SSHClient ssh = SSHClientFactory.newSSHClient(this.verifyHosts);
+		SSHTiming timing = new SSHTiming(SSHTiming.Kind.CONNECT, server, user);
+		try {
+			ssh.connect(server);
+			timing.mark(SSHTiming.Phase.CONNECT);
+			KeyProvider keyProvider = SSHCredentialCache.getDefault().loadKeys(ssh, sshPemFile, passphrase);
+			ssh.authPublickey(user, keyProvider);
+			if(!ssh.isAuthenticated()) {
+				ssh.authPassword(user, passphrase);
+				if (!ssh.isAuthenticated()) {
+					throw new RuntimeException("Could not log in to " + ssh.getRemoteHostname() + " with the given credentials ("+user+").");	
+				}
 			}
+			timing.mark(SSHTiming.Phase.AUTH);
+		} finally {
+			SSHInstrumentation.finish(timing);
 		}
+		SSHKeepAlive.start(ssh);
 		this.connection = ssh;
+		this.ownsConnection = true;
+		this.credentials = new SSHConnectionPool.Key(server, SSHClientFactory.DEFAULT_PORT, user, sshPemFile, passphrase, passphrase);
 		this.user = user;
 		this.command = command;
 	}
@@ -116,18 +145,23 @@ public class SSHCommandRunner implements Runnable {
 
     this.verifyHosts = Boolean.parseBoolean(System.getProperty("ssh.verifyHosts","true"));
 
-		SSHClient ssh = new SSHClient();
-    if( !this.verifyHosts ) {
-      log.info("a host verification has been switched OFF");
-      ssh.addHostKeyVerifier(new PromiscuousVerifier());
-    }
-		ssh.loadKnownHosts();
-		ssh.connect(server);
-		ssh.authPassword(user, password);
-		if (!ssh.isAuthenticated()) {
-				throw new RuntimeException("Could not log in to " + ssh.getRemoteHostname() + " with the given credentials ("+user+").");
+		SSHClient ssh = SSHClientFactory.newSSHClient(this.verifyHosts);
+		SSHTiming timing = new SSHTiming(SSHTiming.Kind.CONNECT, server, user);
+		try {
+			ssh.connect(server);
+			timing.mark(SSHTiming.Phase.CONNECT);
+			ssh.authPassword(user, password);
+			if (!ssh.isAuthenticated()) {
+					throw new RuntimeException("Could not log in to " + ssh.getRemoteHostname() + " with the given credentials ("+user+").");
+			}
+			timing.mark(SSHTiming.Phase.AUTH);
+		} finally {
+			SSHInstrumentation.finish(timing);
 		}
+		SSHKeepAlive.start(ssh);
 		this.connection = ssh;
+		this.ownsConnection = true;
+		this.credentials = new SSHConnectionPool.Key(server, SSHClientFactory.DEFAULT_PORT, user, null, null, password);
 		this.user = user;
 		this.command = command;
 	}
@@ -149,10 +183,42 @@ public class SSHCommandRunner implements Runnable {
 		this(server, user, passphrase, new File(sshPemFile), pemPassphrase, command);
 	}
 
+	/**
+	 * Borrows an already authenticated connection from the pool instead of connecting.
+	 * Give the connection back by close().
+	 */
+	public SSHCommandRunner(SSHConnectionPool pool,
+			String server,
+			String user,
+			String password,
+			String command) throws IOException{
+		this(pool.borrow(server, user, password), command);
+		this.pool = pool;
+		this.user = user;
+		this.credentials = new SSHConnectionPool.Key(server, SSHClientFactory.DEFAULT_PORT, user, null, null, password);
+	}
+
+	/**
+	 * Borrows an already authenticated connection from the pool instead of connecting.
+	 * Give the connection back by close().
+	 */
+	public SSHCommandRunner(SSHConnectionPool pool,
+			String server,
+			String user,
+			File sshPemFile,
+			String passphrase,
+			String command) throws IOException{
+		this(pool.borrow(server, user, sshPemFile, passphrase), command);
+		this.pool = pool;
+		this.user = user;
+		this.credentials = new SSHConnectionPool.Key(server, SSHClientFactory.DEFAULT_PORT, user, sshPemFile, passphrase, null);
+	}
+
 	
 	public void run(LogRecord logRecord) {
 		try {
 			if (logRecord == null) logRecord = TestRecords.fine();
+			ensureConnected();
 			
 			/*
 			 * Sync'd block prevents other threads from getting the streams before they've been set up here.
@@ -163,14 +229,23 @@ public class SSHCommandRunner implements Runnable {
 				if (this.user!=null) message = "ssh "+ user +"@"+ connection.getRemoteHostname()+" "+ command;
 				logRecord.setMessage(message);
 				log.log(logRecord);
+				timing = new SSHTiming(SSHTiming.Kind.COMMAND, connection.getRemoteHostname(), command);
 				session = connection.startSession();
+				timing.mark(SSHTiming.Phase.CHANNEL_OPEN);
 				actuallCommand = session.exec(new String(command.getBytes("UTF-8"), "ISO-8859-1"));
-				actuallCommand.join(emergencyTimeoutMS,TimeUnit.MILLISECONDS);
-				out = actuallCommand.getInputStream();
-				err = actuallCommand.getErrorStream();
-			}			
+				timing.mark(SSHTiming.Phase.EXEC);
+				out = new CancellableInputStream(timing.watchFirstByte(actuallCommand.getInputStream()));
+				err = new CancellableInputStream(timing.watchFirstByte(actuallCommand.getErrorStream()));
+			}
+			if (!asyncLaunch) {
+				// the streams are already available, so the lock is not held while waiting here
+				if (emergencyTimeoutMS == null) actuallCommand.join();
+				else actuallCommand.join(emergencyTimeoutMS,TimeUnit.MILLISECONDS);
+			}
 
 		} catch (Exception e) {
+			// don't leave a command that hasn't completed in time holding the channel
+			abort();
 			throw new RuntimeException(e);
 		}
 	}
@@ -183,17 +258,25 @@ public class SSHCommandRunner implements Runnable {
 	}
 	
 	/**
+	 * The command keeps running after a timeout, call cancel() to stop it.
 	 * @param timeoutMS - time out, in milliseconds
-	 * @return null if command was interrupted or timedout, the command return code otherwise
+	 * @return null if command was interrupted, cancelled or timedout, the command return code otherwise
 	 */
 	public Integer waitForWithTimeout(Long timeoutMS) {
+		SSHTiming timing = this.timing;
 		try {
-			session.join(timeoutMS, TimeUnit.MILLISECONDS);
+			if (!join(session, timeoutMS)) return null;
 			this.exitCode = actuallCommand.getExitStatus();
-			this.out = actuallCommand.getInputStream();// actuallCommand.getInputtream();
-			this.err = actuallCommand.getErrorStream();
+			if (timing != null && this.exitCode != null) {
+				timing.setExitCode(this.exitCode);
+				timing.mark(SSHTiming.Phase.EXIT_STATUS);
+			}
 			actuallCommand.close();
 			session.close();
+			if (timing != null) {
+				timing.mark(SSHTiming.Phase.CLOSE);
+				SSHInstrumentation.finish(timing);
+			}
 			return this.exitCode;
 		} catch (ConnectionException ex) {
 			return null;
@@ -202,6 +285,26 @@ public class SSHCommandRunner implements Runnable {
 		}
 	}
 	
+	/**
+	 * Waits for the channel to be closed by the remote side, in short steps, so that cancel() by another thread
+	 * is noticed at once (the remote side may take long to close a cancelled channel).
+	 * @return false if the command has been cancelled or the channel is not closed in time
+	 */
+	protected boolean join(Session session, Long timeoutMS) throws TransportException {
+		long deadline = (timeoutMS == null) ? 0 : System.currentTimeMillis() + timeoutMS;
+		while (true) {
+			long step = (deadline == 0) ? JOIN_STEP_MS : Math.min(JOIN_STEP_MS, deadline - System.currentTimeMillis());
+			try {
+				session.join(Math.max(1, step), TimeUnit.MILLISECONDS);
+				return true;
+			} catch (ConnectionException e) {
+				// a step has timed out, or the channel has failed
+				if (!session.isOpen() || session == cancelledSession) return false;
+				if (deadline != 0 && System.currentTimeMillis() >= deadline) return false;
+			}
+		}
+	}
+
 	public boolean isDone(){
 		if (session == null)
 			return false;
@@ -211,36 +314,79 @@ public class SSHCommandRunner implements Runnable {
 	}
 
 	protected String convertStreamToString(InputStream is) {
-		/*
-		 * To convert the InputStream to String we use the
-		 * BufferedReader.readLine() method. We iterate until the BufferedReader
-		 * return null which means there's no more data to read. Each line will
-		 * appended to a StringBuilder and returned as String.
-		 */
-		BufferedReader reader = new BufferedReader(new InputStreamReader(is));
-		StringBuilder sb = new StringBuilder();
-
-		String line = null;
+		OutputCapture capture = captureStream(is);
+		String string = capture.toString();
+		capture.release();
+		return string;
+	}
+
+	/**
+	 * Reads the whole stream as raw bytes.  Nothing is decoded here, see OutputCapture.
+	 */
+	protected OutputCapture captureStream(InputStream is) {
+		OutputCapture capture = new OutputCapture();
+		if (is == null) return capture;
 		try {
-			while ((line = reader.readLine()) != null) {
-				sb.append(line + "\n");
-			}
+			capture.readFrom(is);
 		} catch (IOException e) {
-			e.printStackTrace();
-		} finally {
-			try {
-				is.close();
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
+			log.log(Level.FINE, "Couldn't read the whole output", e);
+		}
+		return capture;
+	}
+
+	/**
+	 * Consumes entire stdout stream of the command, this will block until the stream is closed.
+	 * @return raw stdout of the command
+	 */
+	protected OutputCapture getStdoutCapture() {
+		synchronized (outCaptureLock) {
+			if (c_out == null) c_out = captureStream(out);
+			return c_out;
 		}
+	}
 
-		return sb.toString();
+	/**
+	 * Consumes entire stderr stream of the command, this will block until the stream is closed.
+	 * @return raw stderr of the command
+	 */
+	protected OutputCapture getStderrCapture() {
+		synchronized (errCaptureLock) {
+			if (c_err == null) c_err = captureStream(err);
+			return c_err;
+		}
 	}
 	
 	
+	/**
+	 * Starts consuming both output streams by helper threads, so that a command with more output
+	 * than the channel window can finish while the caller waits for it.
+	 */
+	protected void captureOutputInBackground() {
+		SSHExecutor.getHelpers().execute(new Runnable() {
+			public void run() {
+				getStdoutCapture();
+			}
+		});
+		SSHExecutor.getHelpers().execute(new Runnable() {
+			public void run() {
+				getStderrCapture();
+			}
+		});
+	}
+
+	/**
+	 * Consumes both output streams of the command.  The result takes over the raw output, it is decoded
+	 * when the result is asked for it and released by SSHCommandResult.release(), the next command doesn't release it.
+	 * getStdout() and getStderr() of the runner read the same output, so after the result has been released
+	 * they give only what has been decoded before.
+	 */
 	public SSHCommandResult getSSHCommandResult() {
-		return new SSHCommandResult(getExitCode(),getStdout(),getStderr());
+		synchronized (lock) {
+			OutputCapture stdout = getStdoutCapture();
+			OutputCapture stderr = getStderrCapture();
+			capturesHanded = true;
+			return new SSHCommandResult(getExitCode(),stdout,stderr);
+		}
 	}
 	
 	
@@ -268,7 +414,7 @@ public class SSHCommandRunner implements Runnable {
 	 */
 	public String getStdout() {
 		synchronized (lock) {
-			if (s_out == null) s_out = convertStreamToString(out);
+			if (s_out == null) s_out = getStdoutCapture().toString();
 			return s_out;
 		}
 	}
@@ -279,7 +425,7 @@ public class SSHCommandRunner implements Runnable {
 	 */
 	public String getStderr() {
 		synchronized (lock) {
-			if (s_err == null) s_err = convertStreamToString(err);
+			if (s_err == null) s_err = getStderrCapture().toString();
 			return s_err;
 		}
 	}
@@ -295,6 +441,62 @@ public class SSHCommandRunner implements Runnable {
 		this.emergencyTimeoutMS = emergencyTimeoutMS;
 	}
 	
+	/**
+	 * By default run() waits up to the emergency timeout for the command to finish, and a command running
+	 * longer than that makes run() fail.  With an asynchronous launch run() returns as soon as the channel is open,
+	 * use waitFor...(), runCommandAsync(...) or the output streams to find out when the command is done.
+	 * The default is given by a system property `ssh.asyncLaunch` (false by default).
+	 * @param asyncLaunch
+	 */
+	public void setAsyncLaunch(boolean asyncLaunch) {
+		this.asyncLaunch = asyncLaunch;
+	}
+
+	public boolean isAsyncLaunch() {
+		return asyncLaunch;
+	}
+	
+	/**
+	 * ON switches the compression of the connection on now, AUTO switches it on once a command
+	 * gives more than `ssh.compression.autoThresholdBytes` of output, so the following commands are compressed.
+	 * The default is given by a system property `ssh.compression` (OFF by default).
+	 * A compression once switched on stays on for the life of the connection.
+	 * @param compression
+	 */
+	public void setCompression(SSHCompression compression) throws IOException {
+		this.compression = compression;
+		SSHClientFactory.applyCompression(connection, compression, false);
+	}
+
+	public SSHCompression getCompression() {
+		return compression;
+	}
+
+	/**
+	 * Applies the profile to the connection of this runner (and so to any other user of the connection).
+	 * New connections get the profile given by a system property `ssh.transportProfile`.
+	 * @param transportProfile
+	 */
+	public void setTransportProfile(SSHTransportProfile transportProfile) throws IOException {
+		transportProfile.applyTo(connection);
+	}
+
+	/**
+	 * Counts the output of the last command in SSHTrafficStats and switches the compression on for a big output
+	 * if it is set to AUTO.
+	 */
+	protected void accountOutput() {
+		long bytes = getStdoutCapture().size() + getStderrCapture().size();
+		SSHTrafficStats.addDeliveredIn(connection, bytes);
+		if (compression == SSHCompression.AUTO && bytes > SSHCompression.getAutoThresholdBytes()) {
+			try {
+				SSHClientFactory.applyCompression(connection, compression, true);
+			} catch (IOException e) {
+				log.log(Level.WARNING, "Couldn't switch the compression on", e);
+			}
+		}
+	}
+	
 	public void setCommand(String command) {
 		reset();
 		this.command = command;
@@ -314,6 +516,147 @@ public class SSHCommandRunner implements Runnable {
 		run(logRecord);
 	}
 	
+	public CompletableFuture<SSHCommandResult> runCommandAsync(String command){
+		return runCommandAsync(command, null, TestRecords.fine());
+	}
+
+	/**
+	 * Launches the command and returns immediately, regardless of setAsyncLaunch(...).
+	 * The output is drained by a helper thread and the future is completed by the result when the command is done,
+	 * so callbacks can be chained by thenAccept(...) etc.  Don't read the output streams of this runner meanwhile.
+	 * Cancelling the future cancels the command, see cancel().
+	 * @param command - the remote command to run
+	 * @param timeoutMS - the command is stopped (see cancel()) if it doesn't complete in this many milliseconds
+	 * 	(null means wait for command to complete, no matter how long it takes)
+	 * @param logRecord - a log record whose Level is used to log the command
+	 * @return future of the result, the result has a null exit code and the output read until then
+	 * 	if the command didn't finish in time
+	 */
+	public CompletableFuture<SSHCommandResult> runCommandAsync(String command, final Long timeoutMS, LogRecord logRecord){
+		final CompletableFuture<SSHCommandResult> future = new CompletableFuture<SSHCommandResult>();
+		final long deadline = (timeoutMS == null) ? 0 : System.currentTimeMillis() + timeoutMS;
+		boolean launchMode = asyncLaunch;
+		asyncLaunch = true;
+		try {
+			runCommand(command, logRecord);
+		} catch (RuntimeException e) {
+			future.completeExceptionally(e);
+			return future;
+		} finally {
+			asyncLaunch = launchMode;
+		}
+		final ScheduledFuture<?> timeout = (timeoutMS == null) ? null : SSHExecutor.getScheduler().schedule(new Runnable() {
+			public void run() {
+				log.fine("SSH command did not complete within timeout window: "+getCommand());
+				abort();
+			}
+		}, timeoutMS, TimeUnit.MILLISECONDS);
+		future.whenComplete(new BiConsumer<SSHCommandResult, Throwable>() {
+			public void accept(SSHCommandResult result, Throwable t) {
+				if (timeout != null) timeout.cancel(false);
+				if (future.isCancelled()) abort();
+			}
+		});
+		pending = future;
+		SSHExecutor.getHelpers().execute(new Runnable() {
+			public void run() {
+				try {
+					getStdoutCapture();
+					getStderrCapture();
+					waitForWithTimeout((deadline == 0) ? null : Math.max(1, deadline - System.currentTimeMillis()));
+					SSHCommandResult result = getSSHCommandResult();
+					accountOutput();
+					future.complete(result);
+				} catch (Throwable t) {
+					future.completeExceptionally(t);
+				}
+			}
+		});
+		return future;
+	}
+	
+	public List<SSHCommandResult> runCommandsAndWait(List<String> commands){
+		return runCommandsAndWait(commands, emergencyTimeoutMS, TestRecords.fine(), false);
+	}
+
+	/**
+	 * Runs all the commands by one remote script, so they cost a single channel and round trip, see SSHCommandBatch.
+	 * Every command runs in its own subshell, so `cd` or variables don't pass from one command to the next.
+	 * @param commands - the remote commands, run one after another
+	 * @param timeoutMS - abort if the whole batch doesn't complete in this many milliseconds
+	 * 	(null means wait for the batch to complete, no matter how long it takes)
+	 * @param logRecord - a log record whose Level is used to log the commands and their exit codes
+	 * @param stopOnFailure - if true, the commands after the first one with a nonzero exit code are not run
+	 * @return a result for every command that has been run, in the order of the commands
+	 */
+	public List<SSHCommandResult> runCommandsAndWait(List<String> commands, Long timeoutMS, LogRecord logRecord, boolean stopOnFailure){
+		SSHCommandBatch batch = new SSHCommandBatch(commands, stopOnFailure);
+		log.log(logRecord.getLevel(), "Running a batch of "+commands.size()+" commands: "+commands);
+		List<SSHCommandResult> results = batch.parse(runCommandAndWait(batch.getScript(), timeoutMS, logRecord, false, false));
+		for (int i = 0; i < results.size(); i++) {
+			log.log(logRecord.getLevel(), String.format("[%d] %s ExitCode: %s", i, commands.get(i), results.get(i).getExitCode()));
+		}
+		return results;
+	}
+
+	public Integer runCommandAndStream(String command, OutputLineListener listener){
+		return runCommandAndStream(command, listener, null, TestRecords.fine());
+	}
+
+	/**
+	 * Runs the command and hands every line of its output to the listener as soon as it comes.
+	 * Nothing is kept in memory, so the output may be of any size, and a slow listener slows the remote command down
+	 * (the channel is read only as fast as the listener takes the lines).  getStdout()/getStderr() are empty afterwards.
+	 * @param command - the remote command to run
+	 * @param listener - gets the lines, stdout and stderr lines are delivered by two different threads
+	 * @param timeoutMS - abort if command doesn't complete in this many milliseconds
+	 * 	(null means wait for command to complete, no matter how long it takes)
+	 * @param logRecord - a log record whose Level is used to log the command
+	 * @return exit code of the command, null if the command didn't complete in time
+	 */
+	public Integer runCommandAndStream(String command, OutputLineListener listener, Long timeoutMS, LogRecord logRecord){
+		long deadline = (timeoutMS == null) ? 0 : System.currentTimeMillis() + timeoutMS;
+		boolean launchMode = asyncLaunch;
+		asyncLaunch = true;
+		try {
+			runCommand(command, logRecord);
+		} finally {
+			asyncLaunch = launchMode;
+		}
+		Future<?> outPump = SSHExecutor.getHelpers().submit(linePump(getStdoutStream(), listener, true));
+		Future<?> errPump = SSHExecutor.getHelpers().submit(linePump(getStdErrStream(), listener, false));
+		try {
+			SSHExecutor.await(outPump, deadline);
+			SSHExecutor.await(errPump, deadline);
+		} catch (TimeoutException e) {
+			log.fine("SSH command did not complete within timeout window: "+command);
+			abort();
+			return null;
+		} catch (IOException e) {
+			// the listener has failed, stop the other stream as well
+			reset();
+			throw new RuntimeException(e.getCause());
+		}
+		return waitForWithTimeout((deadline == 0) ? null : Math.max(1, deadline - System.currentTimeMillis()));
+	}
+
+	protected Runnable linePump(final InputStream stream, final OutputLineListener listener, final boolean stdout) {
+		return new Runnable() {
+			public void run() {
+				OutputLineIterator lines = new OutputLineIterator(stream);
+				try {
+					while (lines.hasNext()) {
+						if (stdout) listener.stdoutLine(lines.next());
+						else listener.stderrLine(lines.next());
+					}
+				} catch (UncheckedIOException e) {
+					// the channel has been closed (e.g. after the timeout)
+					log.log(Level.FINER, "Couldn't read the whole stream", e);
+				}
+			}
+		};
+	}
+	
 	public SSHCommandResult runCommandAndWait(String command){
 		return runCommandAndWait(command,emergencyTimeoutMS,TestRecords.fine(), false, true);
 	}
@@ -353,17 +696,39 @@ public class SSHCommandRunner implements Runnable {
 		if (liveLogOutput && logOutput){
 			logger = new SplitStreamLogger(this);
 			logger.log(logRecord.getLevel(), logRecord.getLevel());
+		} else {
+			captureOutputInBackground();
+		}
+		Integer exit = waitForWithTimeout(timeoutMS);
+		if (exit == null) {
+			// stop the command, so that the output read until now can be returned
+			log.fine("SSH command did not complete within timeout window: "+command);
+			abort();
 		}
-		waitForWithTimeout(timeoutMS);
 		SSHCommandResult sshCommandResult = null;
 		if (liveLogOutput && logOutput) {
-			s_out = logger.getStdout();
-			s_err = logger.getStderr();
+			// the streams are closed once the command is done, wait for the rest of the output to be logged;
+			// a command that timed out keeps what has been logged so far
+			if (exit != null) {
+				try {
+					logger.join();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			synchronized (outCaptureLock) {
+				c_out = logger.getStdoutCapture();
+			}
+			synchronized (errCaptureLock) {
+				c_err = logger.getStderrCapture();
+			}
 		}
 		
 		sshCommandResult = getSSHCommandResult();
+		accountOutput();
 		
-		if (!liveLogOutput && logOutput){
+		// the output is decoded for the log only if it is going to be logged
+		if (!liveLogOutput && logOutput && log.isLoggable(logRecord.getLevel())){
 			String o = (this.getStdout().split("\n").length>1)? "\n":"";
 			String e = (this.getStderr().split("\n").length>1)? "\n":"";
 			log.log(logRecord.getLevel(), "Stdout: "+o+sshCommandResult.getStdout());
@@ -380,10 +745,46 @@ public class SSHCommandRunner implements Runnable {
 	
 	
 	/**
-	 * Stop waiting for the command to complete.
+	 * Stop the command, see cancel().
 	 */
 	public synchronized void kill(){
-		kill= true;
+		cancel();
+	}
+
+	/**
+	 * Cancels the running command: it gets SIGTERM over the channel and the channel is closed,
+	 * see SSHExecutor.cancel(...).  Threads waiting for the command or reading its output return at once,
+	 * a future of runCommandAsync(...) is cancelled and the output captured so far is released, unless a result has it.
+	 * Nothing is done if the command has completed.
+	 */
+	public void cancel() {
+		abort();
+		CompletableFuture<SSHCommandResult> waiting = pending;
+		if (waiting != null) waiting.cancel(false);
+		synchronized (outCaptureLock) {
+			if (c_out != null && !capturesHanded) c_out.release();
+			c_out = null;
+		}
+		synchronized (errCaptureLock) {
+			if (c_err != null && !capturesHanded) c_err.release();
+			c_err = null;
+		}
+	}
+
+	/**
+	 * Stops the command if it is still running, the output read so far is kept.
+	 */
+	protected void abort() {
+		Session running;
+		InputStream stdout, stderr;
+		synchronized (lock) {
+			running = session;
+			if (running == null || running == cancelledSession || !running.isOpen()) return;
+			cancelledSession = running;
+			stdout = out;
+			stderr = err;
+		}
+		SSHExecutor.cancel(running, null, (CancellableInputStream) stdout, (CancellableInputStream) stderr);
 	}
 	
 	public InputStream getStdoutStream() {		
@@ -398,17 +799,61 @@ public class SSHCommandRunner implements Runnable {
 		}
 	}
 	
+	/**
+	 * Lines of stdout, read from the channel only as the iterator is advanced.
+	 * Stdout and stderr share one channel window, so a command writing a lot to stderr
+	 * stalls unless stderr is read as well (e.g. by getStderrLines() in another thread).
+	 */
+	public Iterator<String> getStdoutLines() {
+		return new OutputLineIterator(getStdoutStream());
+	}
+
+	/**
+	 * Lines of stderr, read from the channel only as the iterator is advanced.
+	 * @see #getStdoutLines()
+	 */
+	public Iterator<String> getStderrLines() {
+		return new OutputLineIterator(getStdErrStream());
+	}
+	
+	/**
+	 * @return phase timestamps of the last command run, null after reset()
+	 */
+	public SSHTiming getTiming() {
+		return timing;
+	}
+	
 	public void reset(){
+		// a command that is still running is stopped, see cancel()
+		abort();
+		pending = null;
 		try {
 			if (out!= null) out.close();
 			if (err != null) err.close();
-			if (session!= null)session.close();			
 		}
 		catch(IOException ioe) {
 			log.log(Level.FINER, "Couldn't close input stream", ioe);
 		}
-		s_out = null;
-		s_err = null;
+		if (timing != null) {
+			// the command has not been waited for (or it has timed out), report what there is
+			timing.mark(SSHTiming.Phase.CLOSE);
+			SSHInstrumentation.finish(timing);
+			timing = null;
+		}
+		synchronized (lock) {
+			synchronized (outCaptureLock) {
+				if (c_out != null && !capturesHanded) c_out.release();
+				c_out = null;
+			}
+			synchronized (errCaptureLock) {
+				if (c_err != null && !capturesHanded) c_err.release();
+				c_err = null;
+			}
+			capturesHanded = false;
+			s_out = null;
+			s_err = null;
+			exitCode = null;
+		}
 		command = null;
 	}
 
@@ -416,6 +861,64 @@ public class SSHCommandRunner implements Runnable {
 	public SSHClient getConnection() {
 		return connection;
 	}
+
+	/**
+	 * @return state of the connection as far as it is known without sending anything, see SSHKeepAlive
+	 */
+	public SSHLiveness getLiveness() {
+		return SSHKeepAlive.getLiveness(connection);
+	}
+
+	/**
+	 * Called before every command: a connection that the server hasn't answered for a while is probed,
+	 * and a dead connection is replaced by a new one (a new connection from the pool for a pooled runner),
+	 * so the command fails fast or runs on a working connection instead of hanging on a lost host.
+	 * @throws IOException if the connection is dead and it has been given to this runner by the caller
+	 * 	(there are no credentials to open a new one), or if a new connection could not be opened
+	 */
+	public void ensureConnected() throws IOException {
+		if (connection == null) throw new IllegalStateException("The runner has been closed.");
+		if (SSHKeepAlive.check(connection) != SSHLiveness.DEAD) return;
+		if (credentials == null) {
+			throw new IOException("The connection to "+connection.getRemoteHostname()+" is dead.");
+		}
+		SSHClient dead = connection;
+		log.info("SSH: the connection to "+credentials.getHost()+" is dead, connecting again");
+		if (pool != null) {
+			pool.invalidate(dead);
+			connection = pool.borrow(credentials.host, credentials.port, credentials.user,
+					credentials.sshPemFile, credentials.pemPassphrase, credentials.password);
+		} else {
+			try {
+				dead.disconnect();
+			} catch (IOException e) {
+				log.log(Level.FINER, "Couldn't close a connection", e);
+			}
+			connection = SSHClientFactory.connect(credentials.host, credentials.port, credentials.user,
+					credentials.sshPemFile, credentials.pemPassphrase, credentials.password);
+			SSHClientFactory.applyCompression(connection, compression, false);
+		}
+	}
+
+	/**
+	 * Gives a pooled connection back to its pool, or disconnects a connection this runner has opened itself.
+	 * A connection passed to the constructor by a caller is left open.
+	 */
+	public void close() {
+		reset();
+		if (connection == null) return;
+		if (pool != null) {
+			pool.release(connection);
+			connection = null;
+		} else if (ownsConnection) {
+			try {
+				connection.disconnect();
+			} catch (IOException e) {
+				log.log(Level.FINER, "Couldn't close a connection", e);
+			}
+			connection = null;
+		}
+	}
 	
 	/**
 	 * Runs a command via SSH as specified user, logs all output to INFO
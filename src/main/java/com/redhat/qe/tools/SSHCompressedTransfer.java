@@ -0,0 +1,393 @@
+package com.redhat.qe.tools;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import net.schmizz.sshj.SSHClient;
+import net.schmizz.sshj.connection.ConnectionException;
+import net.schmizz.sshj.connection.channel.direct.Session;
+import net.schmizz.sshj.connection.channel.direct.Session.Command;
+import net.schmizz.sshj.xfer.FileTransfer;
+
+/**
+ * Copies a file compressed by gzip: a download is compressed by gzip on the host and decompressed while it is
+ * written to the local disk, an upload the other way.  Logs and sosreports of hundreds of MB shrink several times,
+ * so on a link slower than gzip they come that many times faster.
+ * <pre>
+ * SSHCompressedTransfer transfer = new SSHCompressedTransfer(runner.getConnection());
+ * TransferResult result = transfer.download("/var/log/messages", "/tmp/logs");
+ * log.info(result.toString());  // bytes, bytes on the wire, throughput gain
+ * </pre>
+ * Whether a file is compressed is given by SSHTransferCompression (AUTO decides by the file name or a sample).
+ * A file that is not compressed, a remote path that is not a regular file (a directory), or a host without gzip
+ * goes by SSHTransferEngine.  Permissions and the modification time are kept like by SCP.
+ * @author jstavel
+ */
+public class SSHCompressedTransfer {
+	protected static Logger log = Logger.getLogger(SSHCompressedTransfer.class.getName());
+
+	private static final int BUFFER_BYTES = 64 * 1024;
+	private static final int SAMPLE_BYTES = 64 * 1024;
+	private static final long EXIT_TIMEOUT_MS = 60000;
+	private static final long SAMPLE_TIMEOUT_MS = 30000;
+	private static final int EXIT_NO_GZIP = 127;
+	private static final int EXIT_NOT_FILE = 126;
+
+	protected final SSHClient connection;
+	protected SSHTransferCompression compression = SSHTransferCompression.getDefault();
+	protected SSHTransferEngine transferEngine = SSHTransferEngine.getDefault();
+	protected int level = SSHTransferCompression.getLevel();
+
+	public SSHCompressedTransfer(SSHClient connection) {
+		this.connection = connection;
+	}
+
+	public void setCompression(SSHTransferCompression compression) {
+		this.compression = compression;
+	}
+
+	/**
+	 * @param transferEngine - copies the files that are not compressed
+	 */
+	public void setTransferEngine(SSHTransferEngine transferEngine) {
+		this.transferEngine = transferEngine;
+	}
+
+	/**
+	 * @param level - 1 (fastest, the default) to 9 (smallest)
+	 */
+	public void setLevel(int level) {
+		this.level = level;
+	}
+
+	/**
+	 * @param remoteFile - a remote file
+	 * @param localTarget - a local directory to put the file into, or the local file
+	 * @return bytes of the file, bytes on the wire and the time it took; the target is the local file
+	 */
+	public TransferResult download(String remoteFile, String localTarget) throws IOException {
+		long start = System.currentTimeMillis();
+		File target = new File(localTarget);
+		if (target.isDirectory()) target = new File(target, new File(remoteFile).getName());
+		SSHTiming timing = new SSHTiming(SSHTiming.Kind.TRANSFER, connection.getRemoteHostname(), "gzip get "+remoteFile+" "+localTarget);
+		try {
+			if (shouldCompress(remoteFile, -1)) {
+				TransferResult result = compressedDownload(remoteFile, target.toPath(), timing, start);
+				if (result != null) return result;
+				log.info(remoteFile+" on "+connection.getRemoteHostname()+" is not a regular file or there is no gzip, copying it uncompressed.");
+			}
+			FileTransfer xfer = transferEngine.newFileTransfer(connection);
+			xfer.setTransferListener(timing.watchTransfer(xfer.getTransferListener()));
+			xfer.download(remoteFile, localTarget);
+			timing.mark(SSHTiming.Phase.CLOSE);
+			return new TransferResult(remoteFile, target.getPath(), timing.getBytes(), System.currentTimeMillis() - start, null);
+		} finally {
+			SSHInstrumentation.finish(timing);
+		}
+	}
+
+	/**
+	 * @param localFile - a local file
+	 * @param remoteTarget - a remote directory to put the file into, or the remote file
+	 * @return bytes of the file, bytes on the wire and the time it took; the target is the remote file
+	 * 	(or remoteTarget as given if the file has not been compressed)
+	 */
+	public TransferResult upload(String localFile, String remoteTarget) throws IOException {
+		long start = System.currentTimeMillis();
+		File local = new File(localFile);
+		if (!local.isFile()) throw new IOException(localFile + " is not a file");
+		SSHTiming timing = new SSHTiming(SSHTiming.Kind.TRANSFER, connection.getRemoteHostname(), "gzip put "+localFile+" "+remoteTarget);
+		try {
+			if (shouldCompress(localFile, local.length())) {
+				TransferResult result = compressedUpload(local, remoteTarget, timing, start);
+				if (result != null) return result;
+				log.info("No gzip on "+connection.getRemoteHostname()+", copying "+localFile+" uncompressed.");
+			}
+			FileTransfer xfer = transferEngine.newFileTransfer(connection);
+			xfer.setTransferListener(timing.watchTransfer(xfer.getTransferListener()));
+			xfer.upload(localFile, remoteTarget);
+			timing.mark(SSHTiming.Phase.CLOSE);
+			return new TransferResult(localFile, remoteTarget, timing.getBytes(), System.currentTimeMillis() - start, null);
+		} finally {
+			SSHInstrumentation.finish(timing);
+		}
+	}
+
+	/**
+	 * @param localSize - size of a local file to upload, -1 for a remote file
+	 */
+	protected boolean shouldCompress(String file, long localSize) throws IOException {
+		if (compression == SSHTransferCompression.OFF) return false;
+		if (compression == SSHTransferCompression.GZIP) return true;
+		Boolean byName = SSHTransferCompression.byName(file);
+		if (byName != null) return byName;
+		long size;
+		long sample;
+		long compressed;
+		if (localSize >= 0) {
+			size = localSize;
+			if (size < SSHTransferCompression.getAutoThresholdBytes()) return false;
+			byte[] buffer = new byte[SAMPLE_BYTES];
+			InputStream in = Files.newInputStream(Paths.get(file));
+			try {
+				sample = 0;
+				int n;
+				while (sample < buffer.length && (n = in.read(buffer, (int) sample, buffer.length - (int) sample)) != -1) sample += n;
+			} finally {
+				in.close();
+			}
+			compressed = deflatedSize(buffer, (int) sample);
+		} else {
+			SSHCommandResult result = SSHExecutor.execute(connection, "f="+quote(file)+"; stat -L -c %s -- \"$f\" && head -c "+SAMPLE_BYTES
+					+" -- \"$f\" | gzip -"+level+" -c | wc -c", SAMPLE_TIMEOUT_MS);
+			String[] lines = result.getStdout().trim().split("\\s+");
+			if (result.getExitCode() == null || result.getExitCode() != 0 || lines.length < 2) {
+				log.fine("Couldn't sample "+file+" on "+connection.getRemoteHostname()+", it is not compressed: "+result.getStderr());
+				return false;
+			}
+			size = Long.parseLong(lines[0]);
+			sample = Math.min(size, SAMPLE_BYTES);
+			compressed = Long.parseLong(lines[1]);
+		}
+		boolean worth = SSHTransferCompression.bySample(size, sample, compressed);
+		log.fine(String.format("Sample of %s shrinks %.1f times, %s", file, (double) sample / Math.max(1, compressed), worth ? "compressing it" : "not compressing it"));
+		return worth;
+	}
+
+	/**
+	 * @return the result, null if there is no gzip on the host or the remote file is not a regular file
+	 * 	(a directory, or none at all), which the transfer engine copies or reports then
+	 */
+	protected TransferResult compressedDownload(String remoteFile, Path target, SSHTiming timing, long start) throws IOException {
+		String command = "f="+quote(remoteFile)+"; [ -f \"$f\" ] || exit "+EXIT_NOT_FILE+"; command -v gzip >/dev/null || exit "+EXIT_NO_GZIP+"; "
+				+"stat -L -c '%s %a %Y' -- \"$f\" && exec gzip -"+level+" -c -- \"$f\"";
+		Session session = connection.startSession();
+		OutputCapture stderr = new OutputCapture();
+		try {
+			timing.mark(SSHTiming.Phase.CHANNEL_OPEN);
+			Command cmd = session.exec(new String(command.getBytes("UTF-8"), "ISO-8859-1"));
+			timing.mark(SSHTiming.Phase.EXEC);
+			Future<?> errReader = SSHExecutor.getHelpers().submit(SSHExecutor.copyTask(cmd.getErrorStream(), stderr));
+			CountingInputStream wire = new CountingInputStream(timing.watchFirstByte(cmd.getInputStream()));
+			String header = readLine(wire);
+			if (header == null) {
+				int exitCode = exitCode(cmd, errReader);
+				if (exitCode == EXIT_NO_GZIP || exitCode == EXIT_NOT_FILE) return null;
+				throw failure(cmd, stderr, "gzip of "+remoteFile, null);
+			}
+			String[] stat = header.trim().split(" ");
+			long bytes = 0;
+			IOException failure = null;
+			try {
+				InputStream in = new GZIPInputStream(wire, BUFFER_BYTES);
+				OutputStream out = Files.newOutputStream(target);
+				try {
+					byte[] buffer = new byte[BUFFER_BYTES];
+					int n;
+					while ((n = in.read(buffer)) != -1) {
+						out.write(buffer, 0, n);
+						bytes += n;
+					}
+				} finally {
+					out.close();
+				}
+			} catch (IOException e) {
+				failure = e;
+			}
+			if (exitCode(cmd, errReader) != 0 || failure != null) throw failure(cmd, stderr, "gzip of "+remoteFile, failure);
+			if (bytes != Long.parseLong(stat[0])) log.fine(remoteFile+" has changed while being copied");
+			TarReader.setMode(target, Integer.parseInt(stat[1], 8));
+			Files.setLastModifiedTime(target, FileTime.from(Long.parseLong(stat[2]), TimeUnit.SECONDS));
+			timing.setBytes(bytes);
+			timing.mark(SSHTiming.Phase.CLOSE);
+			return new TransferResult(remoteFile, target.toString(), bytes, wire.count, System.currentTimeMillis() - start, null);
+		} finally {
+			SSHExecutor.closeQuietly(session);
+			stderr.release();
+		}
+	}
+
+	/**
+	 * @return the result, null if there is no gzip on the host
+	 */
+	protected TransferResult compressedUpload(File local, String remoteTarget, SSHTiming timing, long start) throws IOException {
+		Path path = local.toPath();
+		int mode;
+		try {
+			mode = TarWriter.mode(Files.getPosixFilePermissions(path));
+		} catch (UnsupportedOperationException e) {
+			// not a POSIX file system
+			mode = local.canExecute() ? 0755 : 0644;
+		}
+		long mtime = Files.getLastModifiedTime(path).to(TimeUnit.SECONDS);
+		// the file is written next to the target and renamed once it is complete
+		String command = "p="+quote(remoteTarget)+"; [ -d \"$p\" ] && p=\"${p%/}\"/"+quote(local.getName())+"; "
+				+"command -v gzip >/dev/null || exit "+EXIT_NO_GZIP+"; t=\"$p.gz-tmp\"; : > \"$t\" || exit 1; echo \"$p\"; "
+				+"gzip -dc > \"$t\" && chmod "+Integer.toOctalString(mode)+" \"$t\" && { touch -m -d @"+mtime+" \"$t\" 2>/dev/null; mv -f -- \"$t\" \"$p\"; } "
+				+"|| { rm -f -- \"$t\"; exit 1; }";
+		Session session = connection.startSession();
+		OutputCapture stderr = new OutputCapture();
+		try {
+			timing.mark(SSHTiming.Phase.CHANNEL_OPEN);
+			Command cmd = session.exec(new String(command.getBytes("UTF-8"), "ISO-8859-1"));
+			timing.mark(SSHTiming.Phase.EXEC);
+			Future<?> errReader = SSHExecutor.getHelpers().submit(SSHExecutor.copyTask(cmd.getErrorStream(), stderr));
+			String target = readLine(cmd.getInputStream());
+			if (target == null) {
+				if (exitCode(cmd, errReader) == EXIT_NO_GZIP) return null;
+				throw failure(cmd, stderr, "gunzip into "+remoteTarget, null);
+			}
+			CountingOutputStream wire = new CountingOutputStream(new BufferedOutputStream(cmd.getOutputStream(), BUFFER_BYTES));
+			long bytes = 0;
+			IOException failure = null;
+			try {
+				OutputStream out = new GZIPOutputStream(wire, BUFFER_BYTES) {
+					{
+						def.setLevel(level);
+					}
+				};
+				InputStream in = Files.newInputStream(path);
+				try {
+					byte[] buffer = new byte[BUFFER_BYTES];
+					int n;
+					while ((n = in.read(buffer)) != -1) {
+						out.write(buffer, 0, n);
+						bytes += n;
+					}
+				} finally {
+					in.close();
+				}
+				out.close();
+				SSHExecutor.sendEOF(connection, session, cmd.getOutputStream());  // gzip on the host ends
+			} catch (IOException e) {
+				// the host may have ended, its exit code tells why
+				failure = e;
+			}
+			if (exitCode(cmd, errReader) != 0 || failure != null) throw failure(cmd, stderr, "gunzip into "+target, failure);
+			timing.setBytes(bytes);
+			timing.mark(SSHTiming.Phase.CLOSE);
+			return new TransferResult(local.getPath(), target, bytes, wire.count, System.currentTimeMillis() - start, null);
+		} finally {
+			SSHExecutor.closeQuietly(session);
+			stderr.release();
+		}
+	}
+
+	/**
+	 * Waits for the exit code of the command and for its stderr.
+	 * @return the exit code, -1 if the command has not ended in time
+	 */
+	private int exitCode(Command cmd, Future<?> errReader) {
+		try {
+			cmd.join(EXIT_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+		} catch (ConnectionException e) {
+			// timed out, checked below
+		}
+		try {
+			errReader.get(EXIT_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			log.log(Level.FINE, "Couldn't read stderr", e);
+		} catch (TimeoutException e) {
+			log.fine("Stderr not closed in time");
+		}
+		Integer exitCode = cmd.getExitStatus();
+		return (exitCode == null) ? -1 : exitCode;
+	}
+
+	private IOException failure(Command cmd, OutputCapture stderr, String what, IOException cause) {
+		Integer exitCode = cmd.getExitStatus();
+		if (exitCode == null && cause != null) return cause;
+		return new IOException(what+" on "+connection.getRemoteHostname()+" failed (exit code "+exitCode+"): "+stderr.toString().trim(), cause);
+	}
+
+	/**
+	 * @return the line without '\n', null if the stream ends before it
+	 */
+	private static String readLine(InputStream in) throws IOException {
+		ByteArrayOutputStream line = new ByteArrayOutputStream();
+		int b;
+		while ((b = in.read()) != '\n') {
+			if (b == -1) return null;
+			line.write(b);
+		}
+		return new String(line.toByteArray(), StandardCharsets.UTF_8);
+	}
+
+	private int deflatedSize(byte[] sample, int length) {
+		Deflater deflater = new Deflater(level, true);
+		try {
+			deflater.setInput(sample, 0, length);
+			deflater.finish();
+			byte[] buffer = new byte[BUFFER_BYTES];
+			int size = 0;
+			while (!deflater.finished()) size += deflater.deflate(buffer);
+			return size;
+		} finally {
+			deflater.end();
+		}
+	}
+
+	private static String quote(String s) {
+		return "'" + s.replace("'", "'\\''") + "'";
+	}
+
+	private static class CountingInputStream extends FilterInputStream {
+		long count = 0;
+
+		CountingInputStream(InputStream in) {
+			super(in);
+		}
+
+		public int read() throws IOException {
+			int b = super.read();
+			if (b != -1) count++;
+			return b;
+		}
+
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = super.read(b, off, len);
+			if (n > 0) count += n;
+			return n;
+		}
+	}
+
+	private static class CountingOutputStream extends FilterOutputStream {
+		long count = 0;
+
+		CountingOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		public void write(int b) throws IOException {
+			out.write(b);
+			count++;
+		}
+
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			count += len;
+		}
+	}
+}
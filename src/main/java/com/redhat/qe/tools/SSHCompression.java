@@ -0,0 +1,30 @@
+package com.redhat.qe.tools;
+
+/**
+ * Transport compression of a connection (zlib@openssh.com or zlib, whatever the server supports).
+ * The default is given by a system property `ssh.compression` (off by default).
+ * @author jstavel
+ */
+public enum SSHCompression {
+	/** never compress */
+	OFF,
+	/** compress from the key exchange on */
+	ON,
+	/** compress once the connection is used for bulk data: a transfer, or a command with a big output
+	 * (more than `ssh.compression.autoThresholdBytes`, 1 MiB by default) */
+	AUTO;
+
+	/**
+	 * @return value of the system property `ssh.compression`
+	 */
+	public static SSHCompression getDefault() {
+		return valueOf(System.getProperty("ssh.compression","off").toUpperCase());
+	}
+
+	/**
+	 * @return value of the system property `ssh.compression.autoThresholdBytes`
+	 */
+	public static long getAutoThresholdBytes() {
+		return Long.parseLong(System.getProperty("ssh.compression.autoThresholdBytes", String.valueOf(1024 * 1024)));
+	}
+}
@@ -0,0 +1,425 @@
+package com.redhat.qe.tools;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import net.schmizz.sshj.SSHClient;
+import net.schmizz.sshj.connection.channel.direct.Session;
+
+/**
+ * Keeps authenticated SSHClient connections and lends them to SSHCommandRunner, SCPTools
+ * and anybody else who needs one.  Connections are keyed by host, port, user and an authentication method,
+ * so the key exchange and authentication is paid only once per host.
+ * <p>
+ * A connection is borrowed by one of the borrow(...) methods and must be given back
+ * by release(...) (or invalidate(...) if it is broken).  Idle connections are closed
+ * after `ssh.pool.idleTimeoutMS` milliseconds.
+ * <p>
+ * System properties:
+ * <ul>
+ * <li>`ssh.pool.maxPerHost` - max number of connections (both idle and leased) per key, 4 by default</li>
+ * <li>`ssh.pool.idleTimeoutMS` - idle connections older than this are closed, 60000 by default</li>
+ * <li>`ssh.pool.borrowTimeoutMS` - how long to wait for a free connection when maxPerHost is reached, 30000 by default</li>
+ * <li>`ssh.pool.validateOnBorrow` - open and close a session to check an idle connection before it is lent, false by default</li>
+ * <li>`ssh.pool.connectTimeoutMS` - TCP connect timeout of new connections, 0 (no timeout) by default</li>
+ * </ul>
+ * @author jstavel
+ */
+public class SSHConnectionPool {
+	protected static Logger log = Logger.getLogger(SSHConnectionPool.class.getName());
+
+	private static SSHConnectionPool defaultPool = null;
+
+	protected int maxPerHost = Integer.parseInt(System.getProperty("ssh.pool.maxPerHost","4"));
+	protected long idleTimeoutMS = Long.parseLong(System.getProperty("ssh.pool.idleTimeoutMS","60000"));
+	protected long borrowTimeoutMS = Long.parseLong(System.getProperty("ssh.pool.borrowTimeoutMS","30000"));
+	protected boolean validateOnBorrow = Boolean.parseBoolean(System.getProperty("ssh.pool.validateOnBorrow","false"));
+	protected int connectTimeoutMS = Integer.parseInt(System.getProperty("ssh.pool.connectTimeoutMS","0"));
+	protected SSHTransportProfile transportProfile = SSHTransportProfile.getDefault();
+
+	protected final Map<Key, Deque<PooledConnection>> idle = new HashMap<Key, Deque<PooledConnection>>();
+	protected final Map<Key, Integer> open = new HashMap<Key, Integer>();
+	protected final Map<SSHClient, PooledConnection> leased = new IdentityHashMap<SSHClient, PooledConnection>();
+	protected ScheduledExecutorService evictor = null;
+	protected boolean closed = false;
+
+	/**
+	 * @return a pool shared by the whole JVM
+	 */
+	public static synchronized SSHConnectionPool getDefault() {
+		if (defaultPool == null) defaultPool = new SSHConnectionPool();
+		return defaultPool;
+	}
+
+	public SSHClient borrow(String server, String user, String password) throws IOException {
+		return borrow(server, SSHClientFactory.DEFAULT_PORT, user, null, null, password);
+	}
+
+	public SSHClient borrow(String server, String user, File sshPemFile, String pemPassphrase) throws IOException {
+		return borrow(server, SSHClientFactory.DEFAULT_PORT, user, sshPemFile, pemPassphrase, null);
+	}
+
+	/**
+	 * Lends an authenticated connection.  An idle one is reused if there is any, otherwise a new one is created.
+	 * If there are already maxPerHost connections for the key, waits up to borrowTimeoutMS for one to be released.
+	 * @param server - hostname
+	 * @param port - ssh port
+	 * @param user - remote user
+	 * @param sshPemFile - private key, may be null
+	 * @param pemPassphrase - passphrase of the private key, may be null
+	 * @param password - password of the user, may be null
+	 * @return connected and authenticated client, give it back by release(...)
+	 * @throws IOException if a connection could not be created or no connection got free in time
+	 */
+	public SSHClient borrow(String server, int port, String user, File sshPemFile, String pemPassphrase, String password) throws IOException {
+		return borrow(server, port, user, sshPemFile, pemPassphrase, password, 0);
+	}
+
+	/**
+	 * Like borrow(...), but done within timeoutMS: waiting for a free connection and setting up a new one
+	 * (TCP connect, key exchange and authentication).
+	 * @param timeoutMS - 0 means borrowTimeoutMS for the wait and connectTimeoutMS for the TCP connect only
+	 */
+	public SSHClient borrow(String server, int port, String user, File sshPemFile, String pemPassphrase, String password, long timeoutMS) throws IOException {
+		Key key = new Key(server, port, user, sshPemFile, pemPassphrase, password);
+		long start = System.currentTimeMillis();
+		long deadline = start + ((timeoutMS > 0) ? Math.min(timeoutMS, borrowTimeoutMS) : borrowTimeoutMS);
+		while (true) {
+			PooledConnection candidate = null;
+			synchronized (this) {
+				if (closed) throw new IllegalStateException("The connection pool has been closed.");
+				Deque<PooledConnection> queue = idle.get(key);
+				if (queue != null && !queue.isEmpty()) {
+					candidate = queue.pollFirst();
+				} else if (openCount(key) < maxPerHost) {
+					open.put(key, openCount(key) + 1);
+				} else {
+					long remaining = deadline - System.currentTimeMillis();
+					if (remaining <= 0) {
+						throw new IOException("No free connection to "+key+" within "+borrowTimeoutMS+" ms (ssh.pool.maxPerHost="+maxPerHost+").");
+					}
+					try {
+						wait(remaining);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new IOException("Interrupted while waiting for a connection to "+key, e);
+					}
+					continue;
+				}
+			}
+			if (candidate != null) {
+				if (isHealthy(candidate.client)) {
+					return lease(candidate);
+				}
+				log.fine("SSH pool: dropping a dead connection to "+key);
+				discard(candidate);
+				continue;
+			}
+			// a slot has been reserved above, the connection is created outside the lock
+			try {
+				log.fine("SSH pool: opening a new connection to "+key);
+				SSHClient client;
+				if (timeoutMS > 0) {
+					long remaining = start + timeoutMS - System.currentTimeMillis();
+					if (remaining <= 0) throw new SocketTimeoutException("No time left to connect to "+key+" within "+timeoutMS+" ms.");
+					client = connect(key, (int) Math.min(Integer.MAX_VALUE, remaining));
+				} else {
+					client = connect(key);
+				}
+				return lease(new PooledConnection(key, client));
+			} catch (IOException e) {
+				freeSlot(key);
+				throw e;
+			} catch (RuntimeException e) {
+				freeSlot(key);
+				throw e;
+			}
+		}
+	}
+
+	/**
+	 * Gives a connection back to the pool.  It is closed if it is not healthy anymore.
+	 */
+	public void release(SSHClient client) {
+		PooledConnection pc;
+		synchronized (this) {
+			pc = leased.remove(client);
+			if (pc == null) {
+				log.warning("SSH pool: releasing a connection that is not leased by this pool: "+client.getRemoteHostname());
+				return;
+			}
+			if (!closed && client.isConnected() && client.isAuthenticated()) {
+				pc.lastUsed = System.currentTimeMillis();
+				Deque<PooledConnection> queue = idle.get(pc.key);
+				if (queue == null) {
+					queue = new ArrayDeque<PooledConnection>();
+					idle.put(pc.key, queue);
+				}
+				queue.addFirst(pc);
+				scheduleEviction();
+				notifyAll();
+				return;
+			}
+		}
+		discard(pc);
+	}
+
+	/**
+	 * Gives a broken connection back.  It is closed and never lent again.
+	 */
+	public void invalidate(SSHClient client) {
+		PooledConnection pc;
+		synchronized (this) {
+			pc = leased.remove(client);
+		}
+		if (pc != null) discard(pc);
+	}
+
+	/**
+	 * Closes connections that have been idle for more than idleTimeoutMS.
+	 */
+	public void evictIdle() {
+		List<PooledConnection> toClose = new ArrayList<PooledConnection>();
+		synchronized (this) {
+			long now = System.currentTimeMillis();
+			for (Deque<PooledConnection> queue: idle.values()) {
+				Iterator<PooledConnection> it = queue.iterator();
+				while (it.hasNext()) {
+					PooledConnection pc = it.next();
+					if (now - pc.lastUsed >= idleTimeoutMS) {
+						it.remove();
+						toClose.add(pc);
+					}
+				}
+			}
+		}
+		for (PooledConnection pc: toClose) discard(pc);
+	}
+
+	/**
+	 * Closes all idle connections and refuses any other borrow.  Leased connections are closed when they are released.
+	 */
+	public void close() {
+		List<PooledConnection> toClose = new ArrayList<PooledConnection>();
+		synchronized (this) {
+			closed = true;
+			for (Deque<PooledConnection> queue: idle.values()) toClose.addAll(queue);
+			idle.clear();
+			if (evictor != null) evictor.shutdownNow();
+			notifyAll();
+		}
+		for (PooledConnection pc: toClose) discard(pc);
+	}
+
+	/**
+	 * @return number of idle connections in the pool
+	 */
+	public synchronized int getIdleCount() {
+		int count = 0;
+		for (Deque<PooledConnection> queue: idle.values()) count += queue.size();
+		return count;
+	}
+
+	/**
+	 * @return number of connections lent right now
+	 */
+	public synchronized int getLeasedCount() {
+		return leased.size();
+	}
+
+	public void setMaxPerHost(int maxPerHost) {
+		this.maxPerHost = maxPerHost;
+	}
+
+	public void setIdleTimeout(long idleTimeoutMS) {
+		this.idleTimeoutMS = idleTimeoutMS;
+	}
+
+	public void setBorrowTimeout(long borrowTimeoutMS) {
+		this.borrowTimeoutMS = borrowTimeoutMS;
+	}
+
+	public void setValidateOnBorrow(boolean validateOnBorrow) {
+		this.validateOnBorrow = validateOnBorrow;
+	}
+
+	public void setConnectTimeout(int connectTimeoutMS) {
+		this.connectTimeoutMS = connectTimeoutMS;
+	}
+
+	/**
+	 * @param transportProfile - applied to the connections opened from now on (`ssh.transportProfile` by default)
+	 */
+	public void setTransportProfile(SSHTransportProfile transportProfile) {
+		this.transportProfile = transportProfile;
+	}
+
+	protected SSHClient connect(Key key) throws IOException {
+		return connect(key, 0);
+	}
+
+	/**
+	 * @param setupTimeoutMS - bound of the TCP connect, key exchange and authentication, 0 means none
+	 */
+	protected SSHClient connect(Key key, int setupTimeoutMS) throws IOException {
+		return SSHClientFactory.connect(key.host, key.port, key.user, key.sshPemFile, key.pemPassphrase, key.password, connectTimeoutMS, transportProfile, setupTimeoutMS);
+	}
+
+	/**
+	 * A connection is healthy if its transport is still running and it is authenticated.
+	 * A connection that the server hasn't answered for a while is probed, see SSHKeepAlive.check(...).
+	 * If validateOnBorrow is set, a session is opened and closed to be sure the server still responds.
+	 */
+	protected boolean isHealthy(SSHClient client) {
+		if (SSHKeepAlive.check(client) == SSHLiveness.DEAD) return false;
+		if (!validateOnBorrow) return true;
+		try {
+			Session session = client.startSession();
+			session.close();
+			return true;
+		} catch (IOException e) {
+			log.log(Level.FINE, "SSH pool: health check failed for "+client.getRemoteHostname(), e);
+			return false;
+		}
+	}
+
+	private synchronized SSHClient lease(PooledConnection pc) {
+		leased.put(pc.client, pc);
+		return pc.client;
+	}
+
+	private int openCount(Key key) {
+		Integer count = open.get(key);
+		return count == null ? 0 : count;
+	}
+
+	private synchronized void freeSlot(Key key) {
+		int count = openCount(key) - 1;
+		if (count <= 0) open.remove(key);
+		else open.put(key, count);
+		notifyAll();
+	}
+
+	private void discard(PooledConnection pc) {
+		freeSlot(pc.key);
+		try {
+			pc.client.disconnect();
+		} catch (IOException e) {
+			log.log(Level.FINER, "SSH pool: couldn't close a connection to "+pc.key, e);
+		}
+	}
+
+	private synchronized void scheduleEviction() {
+		if (evictor != null || idleTimeoutMS <= 0) return;
+		evictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "ssh-pool-evictor");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		long period = Math.max(idleTimeoutMS / 2, 1000);
+		evictor.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				evictIdle();
+			}
+		}, period, period, TimeUnit.MILLISECONDS);
+	}
+
+	protected static class PooledConnection {
+		final Key key;
+		final SSHClient client;
+		long lastUsed = System.currentTimeMillis();
+
+		PooledConnection(Key key, SSHClient client) {
+			this.key = key;
+			this.client = client;
+		}
+	}
+
+	/**
+	 * Identifies connections that can be shared: host, port, user and authentication method.
+	 * A passphrase and a password must match as well, so a wrong password never gets an already authenticated connection.
+	 */
+	public static class Key {
+		protected final String host;
+		protected final int port;
+		protected final String user;
+		protected final String authMethod;
+		protected final File sshPemFile;
+		protected final String pemPassphrase;
+		protected final String password;
+
+		public Key(String host, int port, String user, File sshPemFile, String pemPassphrase, String password) {
+			this.host = host;
+			this.port = port;
+			this.user = user;
+			this.sshPemFile = sshPemFile;
+			this.pemPassphrase = pemPassphrase;
+			this.password = password;
+			String method = "";
+			if (sshPemFile != null) method += "publickey:" + sshPemFile.getAbsolutePath();
+			if (password != null) method += (method.isEmpty() ? "" : ",") + "password";
+			this.authMethod = method;
+		}
+
+		public String getHost() {
+			return host;
+		}
+
+		public int getPort() {
+			return port;
+		}
+
+		public String getUser() {
+			return user;
+		}
+
+		public String getAuthMethod() {
+			return authMethod;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj) return true;
+			if (!(obj instanceof Key)) return false;
+			Key other = (Key) obj;
+			return port == other.port && host.equals(other.host)
+					&& user.equals(other.user) && authMethod.equals(other.authMethod)
+					&& same(pemPassphrase, other.pemPassphrase) && same(password, other.password);
+		}
+
+		private static boolean same(String a, String b) {
+			return (a == null) ? b == null : a.equals(b);
+		}
+
+		@Override
+		public int hashCode() {
+			int result = host.hashCode();
+			result = 31 * result + port;
+			result = 31 * result + user.hashCode();
+			result = 31 * result + authMethod.hashCode();
+			return result;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%s@%s:%d (%s)", user, host, port, authMethod);
+		}
+	}
+}
@@ -0,0 +1,132 @@
+package com.redhat.qe.tools;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import net.schmizz.sshj.SSHClient;
+import net.schmizz.sshj.transport.verification.OpenSSHKnownHosts;
+import net.schmizz.sshj.userauth.keyprovider.KeyProvider;
+
+/**
+ * Keeps parsed private keys and known_hosts files, so that a process opening many connections
+ * reads and decrypts a key file and parses known_hosts only once.
+ * An entry is keyed by the file path and is read again when the modification time or the size of the file changes.
+ * <p>
+ * The cache can be switched off by a system property `ssh.credentialCache=false`.
+ * @author jstavel
+ */
+public class SSHCredentialCache {
+	protected static Logger log = Logger.getLogger(SSHCredentialCache.class.getName());
+
+	private static SSHCredentialCache defaultCache = null;
+
+	protected final ConcurrentMap<String, Entry<KeyProvider>> keys = new ConcurrentHashMap<String, Entry<KeyProvider>>();
+	protected final ConcurrentMap<String, Entry<OpenSSHKnownHosts>> knownHosts = new ConcurrentHashMap<String, Entry<OpenSSHKnownHosts>>();
+	protected boolean enabled = Boolean.parseBoolean(System.getProperty("ssh.credentialCache","true"));
+
+	/**
+	 * @return the cache used by SSHClientFactory, SSHCommandRunner and SCPTools
+	 */
+	public static synchronized SSHCredentialCache getDefault() {
+		if (defaultCache == null) defaultCache = new SSHCredentialCache();
+		return defaultCache;
+	}
+
+	/**
+	 * Same as ssh.loadKeys(...), but a key file read before is not read again.
+	 * The key is decrypted here, so a wrong passphrase fails now and not in the middle of the authentication.
+	 * @param ssh - used to read the key if it is not cached
+	 * @param sshPemFile - private key
+	 * @param pemPassphrase - passphrase of the private key, may be null
+	 */
+	public KeyProvider loadKeys(SSHClient ssh, File sshPemFile, String pemPassphrase) throws IOException {
+		if (!enabled) return readKeys(ssh, sshPemFile, pemPassphrase);
+		String key = sshPemFile.getCanonicalPath() + "\u0000" + pemPassphrase;
+		Entry<KeyProvider> entry = keys.get(key);
+		if (entry != null && entry.isFresh()) return entry.value;
+		// the file is stamped before it is read, so a change made meanwhile is noticed next time
+		entry = new Entry<KeyProvider>(sshPemFile);
+		entry.value = readKeys(ssh, sshPemFile, pemPassphrase);
+		entry.value.getPrivate();
+		keys.put(key, entry);
+		log.fine("Cached a private key "+sshPemFile);
+		return entry.value;
+	}
+
+	/**
+	 * Same as ssh.loadKnownHosts(), but a known_hosts file parsed before is not parsed again.
+	 * @throws IOException if neither ~/.ssh/known_hosts nor ~/.ssh/known_hosts2 could be loaded
+	 */
+	public void loadKnownHosts(SSHClient ssh) throws IOException {
+		if (!enabled) {
+			ssh.loadKnownHosts();
+			return;
+		}
+		boolean loaded = false;
+		File sshDir = OpenSSHKnownHosts.detectSSHDir();
+		if (sshDir != null) {
+			for (File location: Arrays.asList(new File(sshDir, "known_hosts"), new File(sshDir, "known_hosts2"))) {
+				try {
+					ssh.addHostKeyVerifier(getKnownHosts(location));
+					loaded = true;
+				} catch (IOException e) {
+					log.log(Level.FINER, "Couldn't load "+location, e);
+				}
+			}
+		}
+		if (!loaded) throw new IOException("Could not load known_hosts");
+	}
+
+	/**
+	 * @return parsed known_hosts file, the verifier is shared by all the connections
+	 */
+	public OpenSSHKnownHosts getKnownHosts(File location) throws IOException {
+		String key = location.getCanonicalPath();
+		Entry<OpenSSHKnownHosts> entry = knownHosts.get(key);
+		if (entry != null && entry.isFresh()) return entry.value;
+		entry = new Entry<OpenSSHKnownHosts>(location);
+		entry.value = new OpenSSHKnownHosts(location);
+		knownHosts.put(key, entry);
+		return entry.value;
+	}
+
+	/**
+	 * Forgets all the keys and known hosts.
+	 */
+	public void clear() {
+		keys.clear();
+		knownHosts.clear();
+	}
+
+	public void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	protected KeyProvider readKeys(SSHClient ssh, File sshPemFile, String pemPassphrase) throws IOException {
+		return (pemPassphrase == null) ?
+				ssh.loadKeys(sshPemFile.toString()) :
+				ssh.loadKeys(sshPemFile.toString(), pemPassphrase);
+	}
+
+	protected static class Entry<T> {
+		protected final File file;
+		protected volatile T value;
+		protected final long lastModified;
+		protected final long length;
+
+		public Entry(File file) {
+			this.file = file;
+			this.lastModified = file.lastModified();
+			this.length = file.length();
+		}
+
+		public boolean isFresh() {
+			return file.lastModified() == lastModified && file.length() == length;
+		}
+	}
+}
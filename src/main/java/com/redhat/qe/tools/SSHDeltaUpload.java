@@ -0,0 +1,475 @@
+package com.redhat.qe.tools;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import net.schmizz.sshj.SSHClient;
+import net.schmizz.sshj.connection.ConnectionException;
+import net.schmizz.sshj.connection.channel.direct.Session;
+import net.schmizz.sshj.connection.channel.direct.Session.Command;
+
+/**
+ * Uploads a file that differs only a little from the copy already on the host, the way rsync does it:
+ * the host sends checksums of the blocks of its copy, the local file is matched against them by a rolling
+ * checksum, and only the data not found on the host go over the wire, the rest as references to its blocks.
+ * The host rebuilds the file next to the old one and replaces it only if the SHA-256 of the result is the same
+ * as of the local file.
+ * <pre>
+ * SSHDeltaUpload delta = new SSHDeltaUpload(runner.getConnection());
+ * String target = delta.upload("/tmp/image.qcow2", "/var/lib/libvirt/images/");
+ * log.info(delta.toString());  // bytes matched on the host, bytes sent
+ * </pre>
+ * The host needs python (python3, python or platform-python) only, no rsync.  If the file is not on the host yet,
+ * or there is no python, the file is copied whole by SSHTransferEngine.
+ * <p>
+ * System properties:
+ * <ul>
+ * <li>`ssh.transfer.delta` - RemoteFileTasks.putFile(...) uploads by delta, false by default</li>
+ * <li>`ssh.delta.blockBytes` - block size, by default the square root of the file size between 2 KB and 128 KB</li>
+ * <li>`ssh.delta.timeoutMS` - how long the host may take to checksum or rebuild the file, 600000 by default</li>
+ * </ul>
+ * @author jstavel
+ */
+public class SSHDeltaUpload {
+	protected static Logger log = Logger.getLogger(SSHDeltaUpload.class.getName());
+
+	private static final int MIN_BLOCK = 2048;
+	private static final int MAX_BLOCK = 131072;
+	private static final int MAX_LITERAL = 65536;
+	private static final int STRONG_BYTES = 16;
+
+	private static final int EXIT_MISSING = 2;
+	static final int EXIT_MISMATCH = 3;
+	private static final int EXIT_NO_PYTHON = 127;
+
+	private static final String PYTHON = "P=$(command -v python3 || command -v python || command -v /usr/libexec/platform-python) || exit "+EXIT_NO_PYTHON+"; ";
+
+	// prints the size of the file and adler32 + the first 16 bytes of sha256 of every block
+	// (md5 is refused by python on FIPS hosts)
+	static final String SIGNATURE_SCRIPT =
+			"import sys,os,zlib,hashlib\n" +
+			"f=open(sys.argv[1],\"rb\")\n" +
+			"B=int(sys.argv[2])\n" +
+			"o=sys.stdout\n" +
+			"o.write(\"%d\\n\"%os.fstat(f.fileno()).st_size)\n" +
+			"while 1:\n" +
+			" d=f.read(B)\n" +
+			" if not d: break\n" +
+			" o.write(\"%d %s\\n\"%(zlib.adler32(d)&0xffffffff,hashlib.sha256(d).hexdigest()[:"+(2 * STRONG_BYTES)+"]))\n";
+
+	// reads the delta from stdin: C <block> <count> | L <length> <data> | E <sha256>
+	static final String REBUILD_SCRIPT =
+			"import sys,os,struct,hashlib\n" +
+			"t=sys.argv[1]\n" +
+			"B=int(sys.argv[2])\n" +
+			"i=getattr(sys.stdin,\"buffer\",sys.stdin)\n" +
+			"tmp=t+\".delta-tmp\"\n" +
+			"def rd(n):\n" +
+			" d=i.read(n)\n" +
+			" while len(d)<n:\n" +
+			"  c=i.read(n-len(d))\n" +
+			"  if not c:\n" +
+			"   out.close()\n" +
+			"   os.remove(tmp)\n" +
+			"   sys.exit(4)\n" +
+			"  d+=c\n" +
+			" return d\n" +
+			"old=open(t,\"rb\")\n" +
+			"out=open(tmp,\"wb\")\n" +
+			"h=hashlib.sha256()\n" +
+			"while 1:\n" +
+			" r=rd(1)\n" +
+			" if r==b\"C\":\n" +
+			"  k,n=struct.unpack(\">II\",rd(8))\n" +
+			"  old.seek(k*B)\n" +
+			"  for j in range(n):\n" +
+			"   d=old.read(B)\n" +
+			"   out.write(d)\n" +
+			"   h.update(d)\n" +
+			" elif r==b\"L\":\n" +
+			"  d=rd(struct.unpack(\">I\",rd(4))[0])\n" +
+			"  out.write(d)\n" +
+			"  h.update(d)\n" +
+			" else: break\n" +
+			"out.close()\n" +
+			"if h.digest()!=rd(32):\n" +
+			" os.remove(tmp)\n" +
+			" sys.exit("+EXIT_MISMATCH+")\n" +
+			"os.chmod(tmp,os.stat(t).st_mode&4095)\n" +
+			"os.rename(tmp,t)\n";
+
+	protected final SSHClient connection;
+	protected int blockBytes = Integer.parseInt(System.getProperty("ssh.delta.blockBytes","0"));
+	protected long timeoutMS = Long.parseLong(System.getProperty("ssh.delta.timeoutMS","600000"));
+
+	protected long fileBytes = 0;
+	protected long matchedBytes = 0;
+	protected long sentBytes = 0;
+	protected boolean delta = false;
+
+	public SSHDeltaUpload(SSHClient connection) {
+		this.connection = connection;
+	}
+
+	/**
+	 * @return true if RemoteFileTasks.putFile(...) should upload by delta (`ssh.transfer.delta`)
+	 */
+	public static boolean isEnabled() {
+		return Boolean.parseBoolean(System.getProperty("ssh.transfer.delta","false"));
+	}
+
+	/**
+	 * @param blockBytes - size of the blocks matched, 0 to size them by the file
+	 */
+	public void setBlockBytes(int blockBytes) {
+		this.blockBytes = blockBytes;
+	}
+
+	public void setTimeout(long timeoutMS) {
+		this.timeoutMS = timeoutMS;
+	}
+
+	/**
+	 * Uploads the file, by delta if there is a copy on the host already.
+	 * @param localPath - a local file
+	 * @param remotePath - the remote file, or a directory to put the file into
+	 * @return the remote file written
+	 * @throws IOException if the file could not be uploaded; the old copy on the host is left as it was then
+	 */
+	public String upload(String localPath, String remotePath) throws IOException {
+		File local = new File(localPath);
+		if (!local.isFile()) throw new IOException(localPath + " is not a file");
+		fileBytes = local.length();
+		matchedBytes = 0;
+		sentBytes = 0;
+		delta = false;
+		int block = blockSize(fileBytes);
+		SSHTiming timing = new SSHTiming(SSHTiming.Kind.TRANSFER, connection.getRemoteHostname(), "delta put "+localPath+" "+remotePath);
+		try {
+			SSHCommandResult signature = SSHExecutor.execute(connection, "p="+quote(remotePath)+"; [ -d \"$p\" ] && p=\"${p%/}\"/"+quote(local.getName())+"; "
+					+"echo \"$p\"; [ -f \"$p\" ] || exit "+EXIT_MISSING+"; "+PYTHON+"exec \"$P\" -c "+quote(SIGNATURE_SCRIPT)+" \"$p\" "+block, timeoutMS);
+			String[] lines = signature.getStdout().split("\n");
+			String target = lines[0];
+			Integer exitCode = signature.getExitCode();
+			if (exitCode == null) throw new IOException("The checksums of "+target+" on "+connection.getRemoteHostname()+" timed out after "+timeoutMS+" ms.");
+			if (exitCode == 0) {
+				int result = sendDelta(local, target, block, lines);
+				if (result == 0) {
+					delta = true;
+					log.fine("Delta upload of "+localPath+" to "+target+": "+this);
+					return target;
+				}
+				// the old copy has changed in between, it is left as it was
+				log.warning("The file rebuilt from the delta differs from "+localPath+", copying it whole.");
+			} else if (exitCode == EXIT_NO_PYTHON) {
+				log.info("No python on "+connection.getRemoteHostname()+", copying "+localPath+" whole.");
+			} else if (exitCode != EXIT_MISSING) {
+				log.log(Level.FINE, "Couldn't checksum "+target+" on "+connection.getRemoteHostname()+", copying "+localPath+" whole: "+signature.getStderr());
+			}
+			SSHTransferEngine.getDefault().newFileTransfer(connection).upload(localPath, target);
+			sentBytes = fileBytes;
+			return target;
+		} finally {
+			timing.setBytes(sentBytes);
+			timing.mark(SSHTiming.Phase.CLOSE);
+			SSHInstrumentation.finish(timing);
+		}
+	}
+
+	/**
+	 * @return true if the last upload went by delta, false if the file has been copied whole
+	 */
+	public boolean isDelta() {
+		return delta;
+	}
+
+	/**
+	 * @return bytes of the last file found in the copy on the host
+	 */
+	public long getMatchedBytes() {
+		return matchedBytes;
+	}
+
+	/**
+	 * @return bytes of the last upload sent to the host, literal data and block references
+	 */
+	public long getSentBytes() {
+		return sentBytes;
+	}
+
+	public String toString() {
+		return String.format("[SSHDeltaUpload delta=%s file=%d matched=%d sent=%d]", delta, fileBytes, matchedBytes, sentBytes);
+	}
+
+	/**
+	 * Streams the delta to the rebuild script on the host.
+	 * @return exit code of the rebuild script
+	 */
+	protected int sendDelta(File local, String target, int block, String[] signature) throws IOException {
+		Signature remote = new Signature(signature, block);
+		Session session = connection.startSession();
+		try {
+			Command cmd = session.exec(new String((PYTHON+"exec \"$P\" -c "+quote(REBUILD_SCRIPT)+" "+quote(target)+" "+block).getBytes("UTF-8"), "ISO-8859-1"));
+			// stderr is read meanwhile, so that the script never waits for it while the delta is written
+			OutputCapture stderr = new OutputCapture();
+			Future<?> errReader = SSHExecutor.getHelpers().submit(SSHExecutor.copyTask(cmd.getErrorStream(), stderr));
+			try {
+				writeDelta(local, remote, cmd.getOutputStream());
+				long deadline = System.currentTimeMillis() + timeoutMS;
+				try {
+					SSHExecutor.await(errReader, deadline);
+					cmd.join(Math.max(1, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+				} catch (TimeoutException e) {
+					// checked below
+				} catch (ConnectionException e) {
+					// timed out, checked below
+				}
+				Integer exitCode = cmd.getExitStatus();
+				if (exitCode == null) throw new IOException("Rebuilding "+target+" on "+connection.getRemoteHostname()+" timed out after "+timeoutMS+" ms.");
+				if (exitCode != 0 && exitCode != EXIT_MISMATCH) {
+					throw new IOException("Couldn't rebuild "+target+" on "+connection.getRemoteHostname()+" (exit code "+exitCode+"): "+stderr);
+				}
+				return exitCode;
+			} finally {
+				stderr.release();
+			}
+		} finally {
+			session.close();
+		}
+	}
+
+	/**
+	 * Writes the delta of the local file against the host copy and closes the stream.
+	 */
+	protected void writeDelta(File local, Signature remote, OutputStream out) throws IOException {
+		DeltaWriter writer = new DeltaWriter(new DataOutputStream(new BufferedOutputStream(out, MAX_LITERAL)));
+		MessageDigest fileDigest = digest();
+		InputStream in = new DigestInputStream(new FileInputStream(local), fileDigest);
+		try {
+			match(in, remote, writer);
+		} finally {
+			in.close();
+		}
+		writer.end(fileDigest.digest());
+	}
+
+	/**
+	 * Moves a window of one block over the local file and writes a block reference wherever the window
+	 * is a block of the host copy, the bytes in between as literal data.
+	 */
+	protected void match(InputStream in, Signature remote, DeltaWriter writer) throws IOException {
+		int block = remote.block;
+		byte[] buffer = new byte[Math.max(4 * block, 1 << 20)];
+		RollingChecksum weak = new RollingChecksum(block);
+		int pos = 0;  // start of the window
+		int lit = 0;  // start of the literal data not written yet
+		int end = 0;
+		boolean eof = false;
+		boolean fresh = true;  // the checksum is computed from scratch at pos
+		while (true) {
+			if (end - pos <= block && !eof) {
+				// the window has to move past the end of the buffer, the rest is moved to its start
+				writer.literal(buffer, lit, pos - lit);
+				System.arraycopy(buffer, pos, buffer, 0, end - pos);
+				end -= pos;
+				pos = 0;
+				lit = 0;
+				while (end < buffer.length) {
+					int n = in.read(buffer, end, buffer.length - end);
+					if (n == -1) {
+						eof = true;
+						break;
+					}
+					end += n;
+				}
+				continue;
+			}
+			if (end - pos < block) break;
+			if (fresh) {
+				weak.reset(buffer, pos, block);
+				fresh = false;
+			}
+			int index = remote.find(weak.getValue(), buffer, pos, block);
+			if (index >= 0) {
+				writer.literal(buffer, lit, pos - lit);
+				writer.copy(index);
+				matchedBytes += block;
+				pos += block;
+				lit = pos;
+				fresh = true;
+				continue;
+			}
+			if (pos - lit >= MAX_LITERAL) {
+				writer.literal(buffer, lit, pos - lit);
+				lit = pos;
+			}
+			if (pos + block >= end) break;
+			weak.roll(buffer[pos], buffer[pos + block]);
+			pos++;
+		}
+		// the last block of the host copy may be shorter than a block
+		int tail = remote.tailLength;
+		if (tail > 0 && end - lit >= tail && remote.isTail(buffer, end - tail, tail)) {
+			writer.literal(buffer, lit, end - tail - lit);
+			writer.copy(remote.count - 1);
+			matchedBytes += tail;
+			lit = end;
+		}
+		writer.literal(buffer, lit, end - lit);
+	}
+
+	protected int blockSize(long length) {
+		if (blockBytes > 0) return blockBytes;
+		long size = Math.max(MIN_BLOCK, Math.min(MAX_BLOCK, (long) Math.sqrt(length)));
+		return (int) (size / 1024 * 1024);
+	}
+
+	private static MessageDigest digest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static String quote(String s) {
+		return "'" + s.replace("'", "'\\''") + "'";
+	}
+
+	/**
+	 * Checksums of the blocks of the host copy.
+	 */
+	protected static class Signature {
+		final int block;
+		final int count;
+		final int tailLength;  // length of the last block if it is shorter, 0 otherwise
+		final byte[][] strong;
+		final Map<Integer, List<Integer>> weak = new HashMap<Integer, List<Integer>>();
+		private final MessageDigest digest = digest();
+
+		/**
+		 * @param lines - output of the signature script, after the target path
+		 */
+		Signature(String[] lines, int block) throws IOException {
+			this.block = block;
+			long size;
+			try {
+				size = Long.parseLong(lines[1].trim());
+			} catch (RuntimeException e) {
+				throw new IOException("Unexpected checksums of the host copy: "+Arrays.toString(lines));
+			}
+			count = lines.length - 2;
+			if (count != (size + block - 1) / block) throw new IOException("Expected "+((size + block - 1) / block)+" block checksums, got "+count);
+			tailLength = (int) (size % block);
+			strong = new byte[count][];
+			for (int i = 0; i < count; i++) {
+				String[] sums = lines[i + 2].trim().split(" ");
+				strong[i] = hex(sums[1]);
+				if (i == count - 1 && tailLength > 0) continue;  // never matched by a whole window
+				Integer key = (int) Long.parseLong(sums[0]);
+				List<Integer> indexes = weak.get(key);
+				if (indexes == null) weak.put(key, indexes = new ArrayList<Integer>(1));
+				indexes.add(i);
+			}
+		}
+
+		/**
+		 * @return the block with the given checksums, -1 if there is none
+		 */
+		int find(int weakSum, byte[] buffer, int off, int len) {
+			List<Integer> indexes = weak.get(weakSum);
+			if (indexes == null) return -1;
+			byte[] sum = strong(buffer, off, len);
+			for (Integer index: indexes) {
+				if (Arrays.equals(sum, strong[index])) return index;
+			}
+			return -1;
+		}
+
+		boolean isTail(byte[] buffer, int off, int len) {
+			return Arrays.equals(strong(buffer, off, len), strong[count - 1]);
+		}
+
+		private byte[] strong(byte[] buffer, int off, int len) {
+			digest.reset();
+			digest.update(buffer, off, len);
+			return Arrays.copyOf(digest.digest(), STRONG_BYTES);
+		}
+
+		private static byte[] hex(String s) {
+			byte[] bytes = new byte[s.length() / 2];
+			for (int i = 0; i < bytes.length; i++) bytes[i] = (byte) Integer.parseInt(s.substring(2 * i, 2 * i + 2), 16);
+			return bytes;
+		}
+	}
+
+	/**
+	 * Writes the delta, runs of neighbouring blocks go as one reference.
+	 */
+	protected class DeltaWriter {
+		private final DataOutputStream out;
+		private int runStart = -1;
+		private int runCount = 0;
+
+		DeltaWriter(DataOutputStream out) {
+			this.out = out;
+		}
+
+		void copy(int index) throws IOException {
+			if (runCount > 0 && index == runStart + runCount) {
+				runCount++;
+				return;
+			}
+			flushRun();
+			runStart = index;
+			runCount = 1;
+		}
+
+		void literal(byte[] buffer, int off, int len) throws IOException {
+			if (len == 0) return;
+			flushRun();
+			out.writeByte('L');
+			out.writeInt(len);
+			out.write(buffer, off, len);
+			sentBytes += 5 + len;
+		}
+
+		/**
+		 * Ends the delta by the hash of the whole file and closes the stream (EOF to the host).
+		 */
+		void end(byte[] sha256) throws IOException {
+			flushRun();
+			out.writeByte('E');
+			out.write(sha256);
+			sentBytes += 1 + sha256.length;
+			out.close();
+		}
+
+		private void flushRun() throws IOException {
+			if (runCount == 0) return;
+			out.writeByte('C');
+			out.writeInt(runStart);
+			out.writeInt(runCount);
+			sentBytes += 9;
+			runCount = 0;
+		}
+	}
+}
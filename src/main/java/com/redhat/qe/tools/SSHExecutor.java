@@ -0,0 +1,324 @@
+package com.redhat.qe.tools;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+import com.redhat.qe.jul.TestRecords;
+
+import net.schmizz.sshj.SSHClient;
+import net.schmizz.sshj.common.Message;
+import net.schmizz.sshj.common.SSHPacket;
+import net.schmizz.sshj.connection.ConnectionException;
+import net.schmizz.sshj.connection.channel.direct.Session;
+import net.schmizz.sshj.connection.channel.direct.Session.Command;
+import net.schmizz.sshj.connection.channel.direct.Signal;
+
+/**
+ * Runs many commands at once over a single SSHClient connection.  Every command gets its own channel,
+ * so nothing is shared between commands and the executor can be used from many threads.
+ * <pre>
+ * SSHExecutor executor = new SSHExecutor(runner.getConnection());
+ * CompletableFuture&lt;SSHCommandResult&gt; uptime = executor.submit("uptime");
+ * CompletableFuture&lt;SSHCommandResult&gt; df = executor.submit("df -h");
+ * System.out.println(uptime.get().getStdout() + df.get().getStdout());
+ * executor.shutdown();
+ * </pre>
+ * The number of threads is given by a system property `ssh.executor.threads` (8 by default).
+ * Keep in mind that sshd limits channels per connection (MaxSessions, 10 by default).
+ * @author jstavel
+ */
+public class SSHExecutor {
+	protected static Logger log = Logger.getLogger(SSHExecutor.class.getName());
+
+	private static ExecutorService helpers = null;
+	private static ScheduledExecutorService scheduler = null;
+
+	protected SSHClient connection;
+	protected ExecutorService executor;
+	protected boolean ownsExecutor;
+
+	public SSHExecutor(SSHClient connection) {
+		this(connection, Integer.parseInt(System.getProperty("ssh.executor.threads","8")));
+	}
+
+	public SSHExecutor(SSHClient connection, int threads) {
+		this(connection, Executors.newFixedThreadPool(threads, daemonThreadFactory("ssh-executor")));
+		this.ownsExecutor = true;
+	}
+
+	/**
+	 * @param executor - commands are run by this executor, it is not shut down by shutdown()
+	 */
+	public SSHExecutor(SSHClient connection, ExecutorService executor) {
+		this.connection = connection;
+		this.executor = executor;
+		this.ownsExecutor = false;
+	}
+
+	public CompletableFuture<SSHCommandResult> submit(String command) {
+		return submit(command, null);
+	}
+
+	/**
+	 * Runs the command asynchronously.
+	 * @param command - the remote command to run
+	 * @param timeoutMS - the channel is closed if the command doesn't complete in this many milliseconds
+	 * 	and the result has a null exit code (null means wait for command to complete, no matter how long it takes)
+	 * @return future completed by a result of the command, or exceptionally if the channel could not be opened
+	 */
+	public CompletableFuture<SSHCommandResult> submit(final String command, final Long timeoutMS) {
+		return CompletableFuture.supplyAsync(new Supplier<SSHCommandResult>() {
+			public SSHCommandResult get() {
+				try {
+					return execute(command, timeoutMS);
+				} catch (IOException e) {
+					throw new CompletionException(e);
+				}
+			}
+		}, executor);
+	}
+
+	/**
+	 * Runs the command in the calling thread on its own channel.
+	 * @param command - the remote command to run
+	 * @param timeoutMS - see submit(String, Long)
+	 */
+	public SSHCommandResult execute(String command, Long timeoutMS) throws IOException {
+		return execute(connection, command, timeoutMS);
+	}
+
+	/**
+	 * Runs the command in the calling thread on a new channel of the given connection.
+	 * Stdout and stderr are drained by helper threads so that the calling thread can give up at the timeout
+	 * even if the remote side never closes the channel.  The output read until then is kept in the result.
+	 * @param connection - an authenticated connection
+	 * @param command - the remote command to run
+	 * @param timeoutMS - see submit(String, Long)
+	 */
+	public static SSHCommandResult execute(SSHClient connection, String command, Long timeoutMS) throws IOException {
+		return execute(connection, command, timeoutMS, null);
+	}
+
+	/**
+	 * @param closed - run once the channel of the command has been closed (which may be after this method returns
+	 * 	if the command has timed out), or if the channel could not be opened; may be null
+	 * @see #execute(SSHClient, String, Long)
+	 */
+	public static SSHCommandResult execute(SSHClient connection, String command, Long timeoutMS, final Runnable closed) throws IOException {
+		LogRecord logRecord = TestRecords.fine();
+		logRecord.setMessage("ssh "+ connection.getRemoteHostname()+ " " + command);
+		log.log(logRecord);
+		long deadline = (timeoutMS == null) ? 0 : System.currentTimeMillis() + timeoutMS;
+		final SSHTiming timing = new SSHTiming(SSHTiming.Kind.COMMAND, connection.getRemoteHostname(), command);
+		final Session session;
+		try {
+			session = connection.startSession();
+		} catch (IOException e) {
+			if (closed != null) closed.run();
+			throw e;
+		}
+		timing.mark(SSHTiming.Phase.CHANNEL_OPEN);
+		boolean timedOut = false;
+		CancellableInputStream out = null;
+		CancellableInputStream err = null;
+		try {
+			Command cmd = session.exec(new String(command.getBytes("UTF-8"), "ISO-8859-1"));
+			timing.mark(SSHTiming.Phase.EXEC);
+			OutputCapture stdout = new OutputCapture();
+			OutputCapture stderr = new OutputCapture();
+			out = new CancellableInputStream(timing.watchFirstByte(cmd.getInputStream()));
+			err = new CancellableInputStream(timing.watchFirstByte(cmd.getErrorStream()));
+			Future<?> outReader = getHelpers().submit(copyTask(out, stdout));
+			Future<?> errReader = getHelpers().submit(copyTask(err, stderr));
+			try {
+				await(outReader, deadline);
+				await(errReader, deadline);
+				if (timeoutMS == null) cmd.join();
+				else cmd.join(Math.max(1, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+			} catch (TimeoutException e) {
+				timedOut = true;
+			} catch (ConnectionException e) {
+				// join has timed out, the exit status may have come anyway
+				timedOut = (cmd.getExitStatus() == null);
+			}
+			if (timedOut) {
+				log.fine("SSH command did not complete within timeout window: "+command);
+				// keep the output read until now, the readers are stopped below
+				return new SSHCommandResult(null, stdout, stderr);
+			}
+			timing.setExitCode(cmd.getExitStatus());
+			timing.mark(SSHTiming.Phase.EXIT_STATUS);
+			return new SSHCommandResult(cmd.getExitStatus(), stdout, stderr);
+		} finally {
+			if (timedOut) {
+				cancel(session, new Runnable() {
+					public void run() {
+						timing.mark(SSHTiming.Phase.CLOSE);
+						SSHInstrumentation.finish(timing);
+						if (closed != null) closed.run();
+					}
+				}, out, err);
+			} else {
+				closeQuietly(session);
+				timing.mark(SSHTiming.Phase.CLOSE);
+				SSHInstrumentation.finish(timing);
+				if (closed != null) closed.run();
+			}
+		}
+	}
+
+	/**
+	 * Stops accepting new commands.  The connection is left open.
+	 */
+	public void shutdown() {
+		if (ownsExecutor) executor.shutdown();
+	}
+
+	public SSHClient getConnection() {
+		return connection;
+	}
+
+	protected static Runnable copyTask(final InputStream is, final OutputCapture capture) {
+		return new Runnable() {
+			public void run() {
+				try {
+					capture.readFrom(is);
+				} catch (IOException e) {
+					// the channel has been closed (e.g. after the timeout), keep what has been read so far
+					log.log(Level.FINER, "Couldn't read the whole stream", e);
+				} catch (IllegalStateException e) {
+					// the capture has been released by a timed out command, the rest of the output is not wanted
+					log.log(Level.FINER, "Stopped reading the stream", e);
+				}
+			}
+		};
+	}
+
+	/**
+	 * Reads the stream to its end and throws the bytes away, so that an output nobody wants doesn't stall the channel.
+	 */
+	protected static Runnable drainTask(final InputStream is) {
+		return new Runnable() {
+			public void run() {
+				byte[] buffer = new byte[8192];
+				try {
+					try {
+						while (is.read(buffer) != -1);
+					} finally {
+						is.close();
+					}
+				} catch (IOException e) {
+					log.log(Level.FINER, "Couldn't read the whole stream", e);
+				}
+			}
+		};
+	}
+
+	/**
+	 * @param deadline - System.currentTimeMillis() based deadline, 0 means no deadline
+	 */
+	protected static void await(Future<?> future, long deadline) throws IOException, TimeoutException {
+		try {
+			if (deadline == 0) future.get();
+			else future.get(Math.max(1, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for a command");
+		} catch (ExecutionException e) {
+			throw new IOException(e.getCause());
+		}
+	}
+
+	/**
+	 * Closes the stdin of the remote command: flushes the stream and sends EOF over the channel
+	 * (sshj closes the stream locally only, a command reading its stdin to the end would never end).
+	 */
+	protected static void sendEOF(SSHClient connection, Session session, OutputStream stdin) throws IOException {
+		stdin.close();
+		connection.getTransport().write(new SSHPacket(Message.CHANNEL_EOF).putUInt32(session.getRecipient()));
+	}
+
+	protected static void closeQuietly(Session session) {
+		try {
+			session.close();
+		} catch (IOException e) {
+			log.log(Level.FINER, "Couldn't close a session", e);
+		}
+	}
+
+	/**
+	 * Stops a command that is still running: sends SIGTERM to the remote process over the channel, ends the
+	 * output streams, so that local readers return at once, and closes the channel in the background
+	 * (the remote side may not answer the close until its process ends).  An sshd that ignores signals
+	 * (OpenSSH before 7.9) leaves the process until it writes to the closed channel and gets SIGPIPE.
+	 * @param closed - run once the channel has been closed, may be null
+	 * @param streams - output streams of the command read by local threads
+	 */
+	protected static void cancel(final Session session, final Runnable closed, CancellableInputStream... streams) {
+		if (session instanceof Command && session.isOpen()) {
+			try {
+				((Command) session).signal(Signal.TERM);
+			} catch (IOException e) {
+				log.log(Level.FINER, "Couldn't signal a command", e);
+			}
+		}
+		for (CancellableInputStream stream: streams) {
+			if (stream != null) stream.cancel();
+		}
+		getHelpers().execute(new Runnable() {
+			public void run() {
+				closeQuietly(session);
+				if (closed != null) closed.run();
+			}
+		});
+	}
+
+	/**
+	 * @return daemon thread running deadlines, e.g. cancelling commands that have not completed in time
+	 */
+	protected static synchronized ScheduledExecutorService getScheduler() {
+		if (scheduler == null) {
+			ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, daemonThreadFactory("ssh-deadline"));
+			executor.setRemoveOnCancelPolicy(true);
+			scheduler = executor;
+		}
+		return scheduler;
+	}
+
+	/**
+	 * @return daemon threads draining output streams and closing abandoned channels
+	 */
+	protected static synchronized ExecutorService getHelpers() {
+		if (helpers == null) helpers = Executors.newCachedThreadPool(daemonThreadFactory("ssh-stream"));
+		return helpers;
+	}
+
+	protected static ThreadFactory daemonThreadFactory(final String name) {
+		return new ThreadFactory() {
+			private final AtomicInteger counter = new AtomicInteger();
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, name + "-" + counter.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		};
+	}
+}
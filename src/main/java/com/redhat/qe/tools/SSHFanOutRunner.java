@@ -0,0 +1,193 @@
+package com.redhat.qe.tools;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import net.schmizz.sshj.SSHClient;
+import net.schmizz.sshj.userauth.UserAuthException;
+
+import com.redhat.qe.tools.SSHHostResult.Outcome;
+
+/**
+ * Runs the same command on many hosts at once.
+ * <pre>
+ * SSHFanOutRunner fanOut = new SSHFanOutRunner("root", new File("/root/.ssh/id_rsa"), null);
+ * fanOut.setConcurrency(50);
+ * fanOut.setHostTimeout(30000l);
+ * Map&lt;String, SSHHostResult&gt; results = fanOut.run(hosts, "rpm -q openssl");
+ * </pre>
+ * Hosts may be given as "hostname" or "hostname:port".  Every host gets a result, a host that could not be
+ * reached or logged in has an outcome CONNECT_FAILED or AUTH_FAILED instead of an exit code.
+ * The default concurrency is given by a system property `ssh.fanout.concurrency` (32 by default).
+ * @author jstavel
+ */
+public class SSHFanOutRunner {
+	protected static Logger log = Logger.getLogger(SSHFanOutRunner.class.getName());
+
+	protected SSHConnectionPool pool = null;
+	protected String user;
+	protected File sshPemFile = null;
+	protected String pemPassphrase = null;
+	protected String password = null;
+	protected int concurrency = Integer.parseInt(System.getProperty("ssh.fanout.concurrency","32"));
+	protected Long hostTimeoutMS = null;
+
+	public SSHFanOutRunner(String user, String password) {
+		this(null, user, null, null, password);
+	}
+
+	public SSHFanOutRunner(String user, File sshPemFile, String pemPassphrase) {
+		this(null, user, sshPemFile, pemPassphrase, null);
+	}
+
+	/**
+	 * @param pool - connections are borrowed from this pool, if null a new connection is opened (and closed) for every host
+	 * @param user - remote user
+	 * @param sshPemFile - private key, may be null
+	 * @param pemPassphrase - passphrase of the private key, may be null
+	 * @param password - password of the user, may be null
+	 */
+	public SSHFanOutRunner(SSHConnectionPool pool, String user, File sshPemFile, String pemPassphrase, String password) {
+		this.pool = pool;
+		this.user = user;
+		this.sshPemFile = sshPemFile;
+		this.pemPassphrase = pemPassphrase;
+		this.password = password;
+	}
+
+	/**
+	 * @param concurrency - max number of hosts being worked on at once
+	 */
+	public void setConcurrency(int concurrency) {
+		this.concurrency = concurrency;
+	}
+
+	/**
+	 * @param hostTimeoutMS - deadline for one host including the connection setup, in milliseconds
+	 * 	(null means wait for command to complete, no matter how long it takes)
+	 */
+	public void setHostTimeout(Long hostTimeoutMS) {
+		this.hostTimeoutMS = hostTimeoutMS;
+	}
+
+	/**
+	 * Runs the command on all the hosts, at most `concurrency` hosts at once.
+	 * @param hosts - "hostname" or "hostname:port", duplicates are run only once
+	 * @param command - the remote command to run
+	 * @return a result for every host, in the order of the given hosts
+	 */
+	public Map<String, SSHHostResult> run(Collection<String> hosts, final String command) {
+		Set<String> inventory = new LinkedHashSet<String>(hosts);
+		Map<String, SSHHostResult> results = new LinkedHashMap<String, SSHHostResult>();
+		if (inventory.isEmpty()) return results;
+
+		long start = System.currentTimeMillis();
+		log.info(String.format("SSH: Running '%s' on %d hosts (concurrency %d)", command, inventory.size(), concurrency));
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(concurrency, inventory.size()),
+				SSHExecutor.daemonThreadFactory("ssh-fanout"));
+		Map<String, Future<SSHHostResult>> futures = new LinkedHashMap<String, Future<SSHHostResult>>();
+		try {
+			for (final String host: inventory) {
+				futures.put(host, executor.submit(new Callable<SSHHostResult>() {
+					public SSHHostResult call() {
+						return runOnHost(host, command);
+					}
+				}));
+			}
+			for (Map.Entry<String, Future<SSHHostResult>> entry: futures.entrySet()) {
+				try {
+					results.put(entry.getKey(), entry.getValue().get());
+				} catch (ExecutionException e) {
+					results.put(entry.getKey(), new SSHHostResult(entry.getKey(), Outcome.FAILED, null, null, null, e.getCause(), 0));
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while waiting for hosts to finish '"+command+"'", e);
+		} finally {
+			executor.shutdownNow();
+		}
+
+		int completed = 0;
+		for (SSHHostResult result: results.values()) {
+			if (result.getOutcome() == Outcome.COMPLETED) completed++;
+		}
+		log.info(String.format("SSH: '%s' completed on %d of %d hosts in %d ms", command, completed, results.size(), System.currentTimeMillis() - start));
+		return results;
+	}
+
+	/**
+	 * Connects to the host, runs the command and classifies what happened.
+	 */
+	protected SSHHostResult runOnHost(String host, String command) {
+		long start = System.currentTimeMillis();
+		Long deadline = (hostTimeoutMS == null) ? null : start + hostTimeoutMS;
+		String hostname = host;
+		int port = SSHClientFactory.DEFAULT_PORT;
+		int colon = host.lastIndexOf(':');
+		if (colon > 0 && host.indexOf(':') == colon && host.substring(colon + 1).matches("[0-9]+")) {
+			hostname = host.substring(0, colon);
+			port = Integer.parseInt(host.substring(colon + 1));
+		}
+
+		SSHClient client;
+		try {
+			// the deadline bounds the wait for a pooled connection, the TCP connect, key exchange and authentication
+			int setupTimeoutMS = (deadline == null) ? 0 : (int) Math.max(1, Math.min(Integer.MAX_VALUE, deadline - System.currentTimeMillis()));
+			if (pool != null) {
+				client = pool.borrow(hostname, port, user, sshPemFile, pemPassphrase, password, setupTimeoutMS);
+			} else {
+				client = SSHClientFactory.connect(hostname, port, user, sshPemFile, pemPassphrase, password, 0, SSHTransportProfile.getDefault(), setupTimeoutMS);
+			}
+		} catch (UserAuthException e) {
+			log.log(Level.FINE, "SSH: could not log in to "+host, e);
+			return new SSHHostResult(host, isPast(deadline) ? Outcome.TIMEOUT : Outcome.AUTH_FAILED, null, null, null, e, System.currentTimeMillis() - start);
+		} catch (IOException e) {
+			log.log(Level.FINE, "SSH: could not connect to "+host, e);
+			return new SSHHostResult(host, isPast(deadline) ? Outcome.TIMEOUT : Outcome.CONNECT_FAILED, null, null, null, e, System.currentTimeMillis() - start);
+		}
+
+		boolean healthy = true;
+		try {
+			Long remaining = (deadline == null) ? null : deadline - System.currentTimeMillis();
+			if (remaining != null && remaining <= 0) {
+				return new SSHHostResult(host, Outcome.TIMEOUT, null, null, null, null, System.currentTimeMillis() - start);
+			}
+			SSHCommandResult result = SSHExecutor.execute(client, command, remaining);
+			Outcome outcome = (result.getExitCode() == null) ? Outcome.TIMEOUT : Outcome.COMPLETED;
+			return new SSHHostResult(host, outcome, result.getExitCode(), result.getStdout(), result.getStderr(), null, System.currentTimeMillis() - start);
+		} catch (IOException e) {
+			healthy = false;
+			log.log(Level.FINE, "SSH: command failed on "+host, e);
+			return new SSHHostResult(host, Outcome.FAILED, null, null, null, e, System.currentTimeMillis() - start);
+		} finally {
+			if (pool == null) {
+				try {
+					client.disconnect();
+				} catch (IOException e) {
+					log.log(Level.FINER, "Couldn't close a connection to "+host, e);
+				}
+			} else if (healthy) {
+				pool.release(client);
+			} else {
+				pool.invalidate(client);
+			}
+		}
+	}
+
+	private static boolean isPast(Long deadline) {
+		return deadline != null && System.currentTimeMillis() >= deadline;
+	}
+}
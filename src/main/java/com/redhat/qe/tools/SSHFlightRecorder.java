@@ -0,0 +1,128 @@
+package com.redhat.qe.tools;
+
+import java.util.logging.Logger;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Java Flight Recorder events of connection setups, commands, transfers and port forwards.
+ * An event spans an SSHTiming: it begins when the timing is created and it is committed when the timing
+ * is finished (see SSHInstrumentation), so a recording shows which remote operations take the wall-clock time.
+ * <p>
+ * The events are emitted only on a JVM with the jdk.jfr module (JDK 11, or 8u262 and later); elsewhere, or with
+ * a system property `ssh.jfr=false`, nothing is done.  The event classes are touched only when JFR is available.
+ * Enable them in a recording by their names, e.g. `com.redhat.qe.tools.Command`, or by the category `SSH`.
+ * @author jstavel
+ */
+public class SSHFlightRecorder {
+	protected static Logger log = Logger.getLogger(SSHFlightRecorder.class.getName());
+
+	private static final boolean enabled = Boolean.parseBoolean(System.getProperty("ssh.jfr","true")) && isAvailable();
+
+	private static boolean isAvailable() {
+		try {
+			Class.forName("jdk.jfr.Event");
+			return true;
+		} catch (ClassNotFoundException e) {
+			log.fine("JFR is not available, no SSH events will be recorded");
+			return false;
+		} catch (LinkageError e) {
+			return false;
+		}
+	}
+
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * @return the begun event, null if JFR is not available
+	 */
+	static Object begin(SSHTiming.Kind kind) {
+		return enabled ? Events.begin(kind) : null;
+	}
+
+	/**
+	 * Fills in the event of the timing and commits it.
+	 */
+	static void commit(Object event, SSHTiming timing) {
+		if (event != null) Events.commit(event, timing);
+	}
+
+	/**
+	 * Only this class refers to jdk.jfr at run time.
+	 */
+	private static class Events {
+
+		static Object begin(SSHTiming.Kind kind) {
+			SSHEvent event;
+			switch (kind) {
+			case CONNECT: event = new ConnectEvent(); break;
+			case TRANSFER: event = new TransferEvent(); break;
+			case FORWARD: event = new ForwardEvent(); break;
+			default: event = new CommandEvent();
+			}
+			event.begin();
+			return event;
+		}
+
+		static void commit(Object object, SSHTiming timing) {
+			SSHEvent event = (SSHEvent) object;
+			event.end();
+			if (!event.shouldCommit()) return;
+			event.host = timing.getHost();
+			event.target = timing.getDescription();
+			event.bytes = timing.getBytes();
+			event.exitCode = (timing.getExitCode() == null) ? -1 : timing.getExitCode();
+			event.completed = timing.isCompleted();
+			event.commit();
+		}
+	}
+
+	@Category("SSH")
+	static abstract class SSHEvent extends Event {
+		@Label("Host")
+		String host;
+
+		@Label("Target")
+		@Description("Command, transferred path, user or forwarded address")
+		String target;
+
+		@Label("Bytes")
+		@DataAmount
+		long bytes;
+
+		@Label("Exit Code")
+		@Description("-1 if there is no exit status")
+		int exitCode;
+
+		@Label("Completed")
+		@Description("False if the operation has failed or timed out")
+		boolean completed;
+	}
+
+	@Name("com.redhat.qe.tools.Connect")
+	@Label("SSH Connect")
+	static class ConnectEvent extends SSHEvent {
+	}
+
+	@Name("com.redhat.qe.tools.Command")
+	@Label("SSH Command")
+	static class CommandEvent extends SSHEvent {
+	}
+
+	@Name("com.redhat.qe.tools.Transfer")
+	@Label("SSH Transfer")
+	static class TransferEvent extends SSHEvent {
+	}
+
+	@Name("com.redhat.qe.tools.Forward")
+	@Label("SSH Port Forward")
+	static class ForwardEvent extends SSHEvent {
+	}
+}
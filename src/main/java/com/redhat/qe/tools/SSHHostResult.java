@@ -0,0 +1,63 @@
+package com.redhat.qe.tools;
+
+/**
+ * A result of a command run on one host of many by SSHFanOutRunner.
+ * Unlike SSHCommandResult it tells why there is no exit code.
+ * @author jstavel
+ */
+public class SSHHostResult extends SSHCommandResult {
+
+	public enum Outcome {
+		/** the command has finished, see getExitCode() */
+		COMPLETED,
+		/** the host could not be reached (DNS, TCP connect, key exchange, host key verification) */
+		CONNECT_FAILED,
+		/** none of the given credentials was accepted */
+		AUTH_FAILED,
+		/** the host deadline has been reached before the command finished */
+		TIMEOUT,
+		/** the command could not be started or its channel failed */
+		FAILED
+	}
+
+	protected String host;
+	protected Outcome outcome;
+	protected Throwable failure = null;
+	protected long durationMS;
+
+	public SSHHostResult(String host, Outcome outcome, Integer exitCode, String stdout, String stderr, Throwable failure, long durationMS) {
+		super(exitCode, stdout, stderr);
+		this.host = host;
+		this.outcome = outcome;
+		this.failure = failure;
+		this.durationMS = durationMS;
+	}
+
+	public String getHost() {
+		return host;
+	}
+
+	public Outcome getOutcome() {
+		return outcome;
+	}
+
+	/**
+	 * @return an exception for CONNECT_FAILED, AUTH_FAILED and FAILED outcomes, null otherwise
+	 */
+	public Throwable getFailure() {
+		return failure;
+	}
+
+	/**
+	 * @return wall-clock time spent on the host including the connection setup
+	 */
+	public long getDurationMS() {
+		return durationMS;
+	}
+
+	public String toString() {
+		String string = String.format("host=%s outcome=%s durationMS=%d %s", host, outcome, durationMS, super.toString());
+		if (failure != null) string += String.format(" failure='%s'", failure);
+		return string.trim();
+	}
+}
@@ -0,0 +1,55 @@
+package com.redhat.qe.tools;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Hands the timings of connection setups, commands, transfers and port forwards to the registered listeners
+ * and to Java Flight Recorder (see SSHFlightRecorder).
+ * <pre>
+ * SSHInstrumentation.addListener(SSHTimingCollector.getDefault());
+ * ...
+ * log.info(SSHTimingCollector.getDefault().getReport());
+ * </pre>
+ * With a system property `ssh.timing.jmx=true` the default collector is registered with the first connection
+ * and published as an MBean `com.redhat.qe.tools:type=SSHTimingCollector`.
+ * @author jstavel
+ */
+public class SSHInstrumentation {
+	protected static Logger log = Logger.getLogger(SSHInstrumentation.class.getName());
+
+	private static final List<SSHTimingListener> listeners = new CopyOnWriteArrayList<SSHTimingListener>();
+
+	static {
+		if (Boolean.parseBoolean(System.getProperty("ssh.timing.jmx","false"))) {
+			addListener(SSHTimingCollector.getDefault());
+			SSHTimingCollector.getDefault().registerMBean();
+		}
+	}
+
+	public static void addListener(SSHTimingListener listener) {
+		if (!listeners.contains(listener)) listeners.add(listener);
+	}
+
+	public static void removeListener(SSHTimingListener listener) {
+		listeners.remove(listener);
+	}
+
+	/**
+	 * Reports the timing to all listeners, unless it has been reported already.
+	 */
+	public static void finish(SSHTiming timing) {
+		if (timing == null || !timing.finish()) return;
+		log.finer(timing.toString());
+		SSHFlightRecorder.commit(timing.event, timing);
+		for (SSHTimingListener listener: listeners) {
+			try {
+				listener.timed(timing);
+			} catch (RuntimeException e) {
+				log.log(Level.WARNING, "A timing listener has failed", e);
+			}
+		}
+	}
+}
@@ -0,0 +1,118 @@
+package com.redhat.qe.tools;
+
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import net.schmizz.concurrent.Promise;
+import net.schmizz.keepalive.KeepAlive;
+import net.schmizz.keepalive.KeepAliveRunner;
+import net.schmizz.sshj.SSHClient;
+import net.schmizz.sshj.common.SSHPacket;
+import net.schmizz.sshj.connection.ConnectionException;
+import net.schmizz.sshj.transport.TransportException;
+
+/**
+ * Heartbeats of the connections created by SSHClientFactory and runners: every interval a keepalive@openssh.com
+ * request is sent, and the transport is closed after maxMissed requests without an answer, so a host that has gone
+ * away is found out in seconds instead of after the TCP timeout.
+ * <pre>
+ * SSHLiveness liveness = SSHKeepAlive.getLiveness(runner.getConnection());
+ * </pre>
+ * System properties:
+ * <ul>
+ * <li>`ssh.keepAlive.intervalSeconds` - seconds between heartbeats, 10 by default, 0 switches them off</li>
+ * <li>`ssh.keepAlive.maxMissed` - heartbeats without an answer before the connection is closed, 3 by default</li>
+ * <li>`ssh.keepAlive.probeTimeoutMS` - how long probe(...) waits for an answer, 5000 by default</li>
+ * </ul>
+ * @author jstavel
+ */
+public class SSHKeepAlive {
+	protected static Logger log = Logger.getLogger(SSHKeepAlive.class.getName());
+
+	/**
+	 * @return value of the system property `ssh.keepAlive.intervalSeconds`
+	 */
+	public static int getInterval() {
+		return Integer.parseInt(System.getProperty("ssh.keepAlive.intervalSeconds","10"));
+	}
+
+	/**
+	 * @return value of the system property `ssh.keepAlive.maxMissed`
+	 */
+	public static int getMaxMissed() {
+		return Integer.parseInt(System.getProperty("ssh.keepAlive.maxMissed","3"));
+	}
+
+	/**
+	 * @return value of the system property `ssh.keepAlive.probeTimeoutMS`
+	 */
+	public static long getProbeTimeout() {
+		return Long.parseLong(System.getProperty("ssh.keepAlive.probeTimeoutMS","5000"));
+	}
+
+	/**
+	 * Starts the heartbeats of a connected client created by SSHClientFactory.newSSHClient(...).
+	 * The heartbeat thread is a daemon and ends when the client is disconnected.
+	 */
+	public static void start(SSHClient ssh) {
+		int interval = getInterval();
+		if (interval <= 0) return;
+		KeepAlive keepAlive = ssh.getConnection().getKeepAlive();
+		if (!(keepAlive instanceof KeepAliveRunner) || keepAlive.getState() != Thread.State.NEW) return;
+		((KeepAliveRunner) keepAlive).setMaxAliveCount(Math.max(1, getMaxMissed()));
+		keepAlive.setDaemon(true);
+		keepAlive.setName("ssh-keepalive " + ssh.getRemoteHostname());
+		keepAlive.setKeepAliveInterval(interval);
+	}
+
+	/**
+	 * Tells the state of a connection from what has been received over it, nothing is sent.
+	 * A connection without heartbeats is never SUSPECT, it is ALIVE until its transport is closed.
+	 */
+	public static SSHLiveness getLiveness(SSHClient ssh) {
+		if (ssh == null || !ssh.isConnected() || !ssh.isAuthenticated()) return SSHLiveness.DEAD;
+		int interval = ssh.getConnection().getKeepAlive().getKeepAliveInterval();
+		SSHTrafficStats stats = SSHTrafficStats.of(ssh);
+		if (interval <= 0 || stats == null) return SSHLiveness.ALIVE;
+		long silentMS = System.currentTimeMillis() - stats.getLastReadMillis();
+		return (silentMS > 2000L * interval) ? SSHLiveness.SUSPECT : SSHLiveness.ALIVE;
+	}
+
+	/**
+	 * Sends a keepalive request and waits up to `ssh.keepAlive.probeTimeoutMS` for any answer.
+	 * @return true if the server has answered
+	 */
+	public static boolean probe(SSHClient ssh) {
+		if (ssh == null || !ssh.isConnected()) return false;
+		Promise<SSHPacket, ConnectionException> reply;
+		try {
+			reply = ssh.getConnection().sendGlobalRequest("keepalive@openssh.com", true, new byte[0]);
+		} catch (TransportException e) {
+			log.log(Level.FINE, "Couldn't send a keepalive to "+ssh.getRemoteHostname(), e);
+			return false;
+		}
+		try {
+			reply.tryRetrieve(getProbeTimeout(), TimeUnit.MILLISECONDS);
+		} catch (ConnectionException e) {
+			// a server refusing the request has answered as well
+		}
+		return reply.isFulfilled();
+	}
+
+	/**
+	 * @return the liveness of the connection, a SUSPECT connection is probed and comes out as ALIVE or DEAD
+	 */
+	public static SSHLiveness check(SSHClient ssh) {
+		SSHLiveness liveness = getLiveness(ssh);
+		if (liveness != SSHLiveness.SUSPECT) return liveness;
+		if (probe(ssh)) return SSHLiveness.ALIVE;
+		log.info("SSH keepalive: "+ssh.getRemoteHostname()+" doesn't answer, closing the connection");
+		try {
+			ssh.disconnect();
+		} catch (Exception e) {
+			log.log(Level.FINER, "Couldn't close a connection", e);
+		}
+		return SSHLiveness.DEAD;
+	}
+}
@@ -0,0 +1,14 @@
+package com.redhat.qe.tools;
+
+/**
+ * What is known about a connection without sending anything over it, see SSHKeepAlive.getLiveness(...).
+ * @author jstavel
+ */
+public enum SSHLiveness {
+	/** the server has been heard from recently */
+	ALIVE,
+	/** the server hasn't answered for more than two keepalive intervals, a probe tells whether it is still there */
+	SUSPECT,
+	/** the transport has been closed (by the server, by a network error or after missed keepalives) */
+	DEAD
+}
@@ -0,0 +1,253 @@
+package com.redhat.qe.tools;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+import net.schmizz.sshj.SSHClient;
+import net.schmizz.sshj.xfer.FileTransfer;
+
+/**
+ * Copies many files at once, every file over its own channel.  The biggest files are started first,
+ * so that a big file doesn't start last and keep the others waiting for it.
+ * <pre>
+ * SSHParallelTransfer transfer = new SSHParallelTransfer(runner.getConnection());
+ * for (TransferResult result: transfer.put("/root/rpms", rpms)) {
+ *   if (!result.isSuccess()) log.warning(result.toString());
+ * }
+ * </pre>
+ * The channels are spread over the given connections, or over the connections of an SSHChannelScheduler
+ * (which opens more connections to the host as needed and keeps every one below MaxSessions).
+ * The default parallelism is given by a system property `ssh.transfer.parallelism` (4 by default),
+ * the protocol by `ssh.transfer.engine` (see SSHTransferEngine).
+ * @author jstavel
+ */
+public class SSHParallelTransfer {
+	protected static Logger log = Logger.getLogger(SSHParallelTransfer.class.getName());
+
+	private static final long SIZE_TIMEOUT_MS = 30000;
+
+	protected final List<SSHClient> connections;
+	protected final SSHChannelScheduler scheduler;
+	protected int parallelism = Integer.parseInt(System.getProperty("ssh.transfer.parallelism","4"));
+	protected SSHTransferEngine transferEngine = SSHTransferEngine.getDefault();
+
+	/**
+	 * @param connections - the files are spread over these connections one after another
+	 */
+	public SSHParallelTransfer(SSHClient... connections) {
+		if (connections.length == 0) throw new IllegalArgumentException("No connection given.");
+		this.connections = Arrays.asList(connections);
+		this.scheduler = null;
+	}
+
+	/**
+	 * @param scheduler - every file takes a channel slot of the scheduler, the scheduler is not closed here
+	 */
+	public SSHParallelTransfer(SSHChannelScheduler scheduler) {
+		this.connections = null;
+		this.scheduler = scheduler;
+	}
+
+	/**
+	 * @param parallelism - max number of files being copied at once
+	 */
+	public void setParallelism(int parallelism) {
+		this.parallelism = parallelism;
+	}
+
+	public int getParallelism() {
+		return parallelism;
+	}
+
+	public void setTransferEngine(SSHTransferEngine transferEngine) {
+		this.transferEngine = transferEngine;
+	}
+
+	/**
+	 * Copies local files (or directories) into a remote directory.
+	 * @return a result for every source, in the order of the given sources; failures are not thrown
+	 */
+	public List<TransferResult> put(String destDir, String... sources) {
+		long[] sizes = new long[sources.length];
+		for (int i = 0; i < sources.length; i++) sizes[i] = localSize(new File(sources[i]));
+		return transfer(true, destDir, sources, sizes);
+	}
+
+	/**
+	 * Copies remote files (or directories) into a local directory.
+	 * @return a result for every remote file, in the order of the given files; failures are not thrown
+	 */
+	public List<TransferResult> get(String localDir, String... remoteFiles) {
+		return transfer(false, localDir, remoteFiles, remoteSizes(remoteFiles));
+	}
+
+	protected List<TransferResult> transfer(final boolean upload, final String target, final String[] files, final long[] sizes) {
+		List<TransferResult> results = new ArrayList<TransferResult>();
+		if (files.length == 0) return results;
+
+		// the biggest first
+		List<Integer> order = new ArrayList<Integer>();
+		for (int i = 0; i < files.length; i++) order.add(i);
+		Collections.sort(order, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				return Long.compare(sizes[b], sizes[a]);
+			}
+		});
+
+		long start = System.currentTimeMillis();
+		log.info(String.format("SSH: Copying %d files %s %s (parallelism %d)", files.length, upload ? "to" : "from", target, parallelism));
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(parallelism, files.length)),
+				SSHExecutor.daemonThreadFactory("ssh-transfer"));
+		List<Future<TransferResult>> futures = new ArrayList<Future<TransferResult>>(Collections.<Future<TransferResult>>nCopies(files.length, null));
+		try {
+			for (int n = 0; n < order.size(); n++) {
+				final int index = order.get(n);
+				final int slot = n;
+				futures.set(index, executor.submit(new Callable<TransferResult>() {
+					public TransferResult call() {
+						return transferFile(upload, files[index], target, slot);
+					}
+				}));
+			}
+			long bytes = 0;
+			int failed = 0;
+			for (int i = 0; i < files.length; i++) {
+				TransferResult result;
+				try {
+					result = futures.get(i).get();
+				} catch (ExecutionException e) {
+					result = new TransferResult(files[i], target, 0, 0, e.getCause());
+				}
+				if (!result.isSuccess()) failed++;
+				bytes += result.getBytes();
+				results.add(result);
+			}
+			log.info(String.format("SSH: Copied %d of %d files (%d bytes) in %d ms", files.length - failed, files.length, bytes, System.currentTimeMillis() - start));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while waiting for the files to be copied", e);
+		} finally {
+			executor.shutdownNow();
+		}
+		return results;
+	}
+
+	/**
+	 * Copies one file over its own channel.
+	 * @param slot - position of the file in the order of the transfers, picks the connection
+	 */
+	protected TransferResult transferFile(boolean upload, String file, String target, int slot) {
+		SSHChannelScheduler.Lease lease = null;
+		SSHTiming timing = null;
+		long start = System.currentTimeMillis();
+		try {
+			SSHClient connection;
+			if (scheduler != null) {
+				lease = scheduler.acquire();
+				connection = lease.getConnection();
+			} else {
+				connection = connections.get(slot % connections.size());
+			}
+			start = System.currentTimeMillis();
+			timing = new SSHTiming(SSHTiming.Kind.TRANSFER, connection.getRemoteHostname(), (upload ? "put " : "get ")+file+" "+target);
+			FileTransfer xfer = transferEngine.newFileTransfer(connection);
+			xfer.setTransferListener(timing.watchTransfer(xfer.getTransferListener()));
+			if (upload) xfer.upload(file, target);
+			else xfer.download(file, target);
+			timing.mark(SSHTiming.Phase.CLOSE);
+			return new TransferResult(file, target, timing.getBytes(), System.currentTimeMillis() - start, null);
+		} catch (Exception e) {
+			log.log(Level.FINE, "Couldn't copy "+file, e);
+			return new TransferResult(file, target, (timing == null) ? 0 : timing.getBytes(), System.currentTimeMillis() - start, e);
+		} finally {
+			if (timing != null) SSHInstrumentation.finish(timing);
+			if (lease != null) lease.close();
+		}
+	}
+
+	/**
+	 * @return size of the file, or of all files in the directory tree
+	 */
+	protected static long localSize(File source) {
+		if (!source.isDirectory()) return source.length();
+		try {
+			Stream<Path> tree = Files.walk(source.toPath());
+			try {
+				long size = 0;
+				for (Iterator<Path> i = tree.iterator(); i.hasNext(); ) {
+					Path file = i.next();
+					if (Files.isRegularFile(file)) size += Files.size(file);
+				}
+				return size;
+			} finally {
+				tree.close();
+			}
+		} catch (IOException | UncheckedIOException e) {
+			log.log(Level.FINE, "Couldn't walk "+source+", it is ordered as empty", e);
+			return 0;
+		}
+	}
+
+	/**
+	 * Asks the host for the sizes of the files (of all files in a directory tree) by one command.
+	 * @return the sizes, 0 for files that could not be stat'ed (or all 0 if the command fails)
+	 */
+	protected long[] remoteSizes(String[] remoteFiles) {
+		long[] sizes = new long[remoteFiles.length];
+		if (remoteFiles.length < 2) return sizes;
+		StringBuilder command = new StringBuilder("for f in");
+		for (String file: remoteFiles) command.append(' ').append(quote(file));
+		command.append("; do if [ -d \"$f\" ]; then find -L \"$f\" -type f -printf '%s\\n' 2>/dev/null | awk '{s+=$1} END {print s+0}'; else stat -L -c %s -- \"$f\" 2>/dev/null; fi || echo 0; done");
+		SSHClient connection = null;
+		SSHChannelScheduler.Lease lease = null;
+		try {
+			if (scheduler != null) {
+				lease = scheduler.acquire();
+				connection = lease.getConnection();
+			} else {
+				connection = connections.get(0);
+			}
+			final SSHChannelScheduler.Lease held = lease;
+			SSHCommandResult result = SSHExecutor.execute(connection, command.toString(), SIZE_TIMEOUT_MS, new Runnable() {
+				public void run() {
+					if (held != null) held.close();
+				}
+			});
+			lease = null;  // closed by the executor
+			String[] lines = result.getStdout().split("\n");
+			for (int i = 0; i < remoteFiles.length && i < lines.length; i++) {
+				try {
+					sizes[i] = Long.parseLong(lines[i].trim());
+				} catch (NumberFormatException e) {
+					sizes[i] = 0;
+				}
+			}
+		} catch (Exception e) {
+			log.log(Level.FINE, "Couldn't get the sizes of the remote files, they are copied in the given order", e);
+		} finally {
+			if (lease != null) lease.close();
+		}
+		return sizes;
+	}
+
+	private static String quote(String s) {
+		return "'" + s.replace("'", "'\\''") + "'";
+	}
+}
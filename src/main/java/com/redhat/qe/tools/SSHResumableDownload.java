@@ -0,0 +1,373 @@
+package com.redhat.qe.tools;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import net.schmizz.sshj.SSHClient;
+import net.schmizz.sshj.sftp.FileAttributes;
+import net.schmizz.sshj.sftp.RemoteFile;
+import net.schmizz.sshj.sftp.SFTPClient;
+
+/**
+ * Downloads a big file so that a broken transfer can be continued: the file is written to `target.part`,
+ * and `target.part.state` records how many chunks have been written and how many verified.  The next download()
+ * of the same file (same size and modification time on the host) reads on from there by SFTP reads at an offset.
+ * <p>
+ * Every chunk is verified by its SHA-256, computed on the host (dd and sha256sum) while the file is being read.
+ * A chunk that differs is read again, not the whole file.  If the host cannot compute the hashes, the download fails
+ * (the part file is kept) unless `ssh.resume.allowUnverified` is true, then only the size of the file is checked.  Once all chunks are verified the part file is renamed
+ * to the target and gets the permissions and the modification time of the remote file.
+ * <pre>
+ * SSHResumableDownload download = new SSHResumableDownload(runner.getConnection());
+ * TransferResult result = download.download("/var/lib/libvirt/images/rhel.qcow2", "/tmp/images");
+ * </pre>
+ * System properties:
+ * <ul>
+ * <li>`ssh.resume.chunkBytes` - size of a verified chunk, 8 MiB by default</li>
+ * <li>`ssh.resume.attempts` - how many times a chunk that differs is read again, 3 by default</li>
+ * <li>`ssh.resume.allowUnverified` - accept a file whose chunks could not be hashed on the host, false by default</li>
+ * <li>`ssh.sftp.maxInFlight` - read requests in flight, see SFTPTransfer</li>
+ * </ul>
+ * @author jstavel
+ */
+public class SSHResumableDownload {
+	protected static Logger log = Logger.getLogger(SSHResumableDownload.class.getName());
+
+	private static final int READ_BYTES = 32768;
+
+	protected final SSHClient connection;
+	protected int chunkBytes = Integer.parseInt(System.getProperty("ssh.resume.chunkBytes", String.valueOf(8 * 1024 * 1024)));
+	protected int attempts = Integer.parseInt(System.getProperty("ssh.resume.attempts","3"));
+	protected int maxInFlight = Integer.parseInt(System.getProperty("ssh.sftp.maxInFlight","64"));
+	protected boolean allowUnverified = Boolean.parseBoolean(System.getProperty("ssh.resume.allowUnverified","false"));
+
+	protected long fetchedBytes = 0;
+
+	public SSHResumableDownload(SSHClient connection) {
+		this.connection = connection;
+	}
+
+	public void setChunkBytes(int chunkBytes) {
+		this.chunkBytes = chunkBytes;
+	}
+
+	public void setAttempts(int attempts) {
+		this.attempts = attempts;
+	}
+
+	/**
+	 * @param allowUnverified - true to accept the file by its size when the host cannot hash its chunks
+	 */
+	public void setAllowUnverified(boolean allowUnverified) {
+		this.allowUnverified = allowUnverified;
+	}
+
+	/**
+	 * Downloads the file, or continues a download that has been broken.
+	 * @param remoteFile - a remote file
+	 * @param localTarget - a local directory to put the file into, or the local file
+	 * @return bytes of the file and the time it took, see getFetchedBytes() for the bytes read by this call
+	 * @throws IOException if the download breaks; call download(...) again to continue
+	 */
+	public TransferResult download(String remoteFile, String localTarget) throws IOException {
+		long start = System.currentTimeMillis();
+		File target = new File(localTarget);
+		if (target.isDirectory()) target = new File(target, new File(remoteFile).getName());
+		File part = new File(target.getPath() + ".part");
+		File stateFile = new File(target.getPath() + ".part.state");
+		fetchedBytes = 0;
+		SSHTiming timing = new SSHTiming(SSHTiming.Kind.TRANSFER, connection.getRemoteHostname(), "resumable get "+remoteFile+" "+localTarget);
+		SFTPClient sftp = connection.newSFTPClient();
+		try {
+			FileAttributes attrs = sftp.stat(remoteFile);
+			State state = State.load(stateFile);
+			if (state == null || !part.isFile() || !state.isOf(remoteFile, attrs.getSize(), attrs.getMtime(), chunkBytes)) {
+				state = new State(remoteFile, attrs.getSize(), attrs.getMtime(), chunkBytes);
+				Files.deleteIfExists(part.toPath());
+			} else {
+				log.info("Continuing the download of "+remoteFile+" at "+((long) state.written * state.chunkBytes)+" bytes ("+state.verified+" chunks verified)");
+			}
+			Future<String[]> remoteHashes = remoteHashes(remoteFile, state.verified, state.getChunkCount());
+			final RemoteFile file = sftp.open(remoteFile);
+			try {
+				transfer(new ChunkSource() {
+					public InputStream open(long offset, int inFlight) {
+						return file.new ReadAheadRemoteFileInputStream(inFlight, offset);
+					}
+				}, part, stateFile, state, remoteHashes);
+			} finally {
+				file.close();
+			}
+			Files.move(part.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			Files.deleteIfExists(stateFile.toPath());
+			TarReader.setMode(target.toPath(), attrs.getMode().getPermissionsMask());
+			Files.setLastModifiedTime(target.toPath(), FileTime.from(attrs.getMtime(), TimeUnit.SECONDS));
+			timing.setBytes(fetchedBytes);
+			timing.mark(SSHTiming.Phase.CLOSE);
+			return new TransferResult(remoteFile, target.getPath(), state.size, System.currentTimeMillis() - start, null);
+		} finally {
+			sftp.close();
+			SSHInstrumentation.finish(timing);
+		}
+	}
+
+	/**
+	 * @return bytes read from the host by the last download(...)
+	 */
+	public long getFetchedBytes() {
+		return fetchedBytes;
+	}
+
+	/**
+	 * Fetches the chunks not written yet into the part file and verifies those not verified yet.
+	 */
+	protected void transfer(ChunkSource source, File part, File stateFile, State state, Future<String[]> remoteHashes) throws IOException {
+		String[] localHashes = new String[state.getChunkCount()];
+		FileChannel out = FileChannel.open(part.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		try {
+			fetch(source, out, state, stateFile, localHashes);
+			verify(source, out, state, stateFile, localHashes, remoteHashes);
+			out.truncate(state.size);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Reads the chunks not written yet, from one offset to the end of the file.
+	 */
+	protected void fetch(ChunkSource source, FileChannel out, State state, File stateFile, String[] localHashes) throws IOException {
+		int chunks = state.getChunkCount();
+		if (state.written >= chunks) return;
+		InputStream in = source.open((long) state.written * state.chunkBytes, maxInFlight);
+		byte[] buffer = new byte[READ_BYTES];
+		for (int i = state.written; i < chunks; i++) {
+			localHashes[i] = readChunk(in, out, state, i, buffer);
+			out.force(false);
+			state.written = i + 1;
+			state.save(stateFile);
+		}
+	}
+
+	/**
+	 * Compares every chunk not verified yet with its hash on the host, reads a chunk that differs again.
+	 */
+	protected void verify(ChunkSource source, FileChannel out, State state, File stateFile, String[] localHashes, Future<String[]> remoteHashes) throws IOException {
+		String remoteFile = state.remoteFile;
+		String[] remote;
+		try {
+			remote = remoteHashes.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for the checksums of "+remoteFile, e);
+		} catch (ExecutionException e) {
+			if (!allowUnverified) {
+				throw new IOException("Couldn't checksum "+remoteFile+" on the host, the download is kept unverified in the part file"
+						+" (ssh.resume.allowUnverified=true accepts it by its size)", e.getCause());
+			}
+			log.log(Level.WARNING, "Couldn't checksum "+remoteFile+" on the host, only its size is verified", e.getCause());
+			remote = null;
+		}
+		int chunks = state.getChunkCount();
+		int from = state.verified;
+		byte[] buffer = new byte[READ_BYTES];
+		for (int i = from; i < chunks && remote != null; i++) {
+			for (int attempt = 1; ; attempt++) {
+				String local = (localHashes[i] != null) ? localHashes[i] : hashOfPart(out, state, i);
+				if (local.equals(remote[i - from])) break;
+				if (attempt > attempts) {
+					throw new IOException("Chunk "+i+" of "+remoteFile+" differs from the one on the host after "+attempts+" attempts");
+				}
+				log.info("Chunk "+i+" of "+remoteFile+" differs from the one on the host, reading it again");
+				InputStream in = source.open((long) i * state.chunkBytes, Math.min(maxInFlight, state.chunkBytes / READ_BYTES + 1));
+				localHashes[i] = readChunk(in, out, state, i, buffer);
+				out.force(false);
+			}
+			state.verified = i + 1;
+			state.save(stateFile);
+		}
+		if (remote == null) {
+			state.verified = chunks;
+			state.save(stateFile);
+		}
+	}
+
+	/**
+	 * Copies one chunk from the stream to its place in the part file.
+	 * @return SHA-256 of the chunk
+	 */
+	private String readChunk(InputStream in, FileChannel out, State state, int index, byte[] buffer) throws IOException {
+		MessageDigest digest = digest();
+		long position = (long) index * state.chunkBytes;
+		long left = state.getChunkLength(index);
+		while (left > 0) {
+			int n = in.read(buffer, 0, (int) Math.min(buffer.length, left));
+			if (n == -1) throw new IOException("The remote file has ended at "+position+" bytes, expected "+state.size);
+			digest.update(buffer, 0, n);
+			ByteBuffer data = ByteBuffer.wrap(buffer, 0, n);
+			while (data.hasRemaining()) position += out.write(data, position);
+			left -= n;
+			fetchedBytes += n;
+		}
+		return hex(digest.digest());
+	}
+
+	private static String hashOfPart(FileChannel out, State state, int index) throws IOException {
+		MessageDigest digest = digest();
+		ByteBuffer buffer = ByteBuffer.allocate(READ_BYTES);
+		long position = (long) index * state.chunkBytes;
+		long end = position + state.getChunkLength(index);
+		while (position < end) {
+			buffer.clear();
+			buffer.limit((int) Math.min(buffer.capacity(), end - position));
+			int n = out.read(buffer, position);
+			if (n == -1) break;  // a shorter part file simply doesn't match
+			buffer.flip();
+			digest.update(buffer);
+			position += n;
+		}
+		return hex(digest.digest());
+	}
+
+	/**
+	 * Hashes the chunks on the host by one command on another channel, meanwhile the file is read.
+	 */
+	protected Future<String[]> remoteHashes(final String remoteFile, final int from, final int chunks) {
+		final long timeoutMS = 60000 + (long) (chunks - from) * chunkBytes / 10000;  // sha256sum reads far above 10 MB/s
+		final String command = "f="+quote(remoteFile)+"; i="+from+"; while [ $i -lt "+chunks+" ]; do "
+				+"dd if=\"$f\" bs="+chunkBytes+" skip=$i count=1 2>/dev/null | sha256sum | cut -d' ' -f1; i=$((i+1)); done";
+		return SSHExecutor.getHelpers().submit(new Callable<String[]>() {
+			public String[] call() throws Exception {
+				if (from >= chunks) return new String[0];
+				SSHCommandResult result = SSHExecutor.execute(connection, command, timeoutMS);
+				String[] hashes = result.getStdout().trim().split("\n");
+				if (result.getExitCode() == null || result.getExitCode() != 0 || hashes.length != chunks - from || hashes[0].length() != 64) {
+					throw new IOException("Unexpected checksums (exit code "+result.getExitCode()+"): "+result.getStderr());
+				}
+				return hashes;
+			}
+		});
+	}
+
+	private static MessageDigest digest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static String hex(byte[] bytes) {
+		StringBuilder hex = new StringBuilder();
+		for (byte b: bytes) hex.append(String.format("%02x", b));
+		return hex.toString();
+	}
+
+	private static String quote(String s) {
+		return "'" + s.replace("'", "'\\''") + "'";
+	}
+
+	/**
+	 * Reads the remote file from an offset on.
+	 */
+	protected interface ChunkSource {
+		InputStream open(long offset, int maxInFlight) throws IOException;
+	}
+
+	/**
+	 * Progress of a download, kept in the state file next to the part file.
+	 */
+	protected static class State {
+		final String remoteFile;
+		final long size;
+		final long mtime;
+		final int chunkBytes;
+		int written = 0;  // chunks written to the part file, from its start
+		int verified = 0;  // chunks verified, from its start
+
+		State(String remoteFile, long size, long mtime, int chunkBytes) {
+			this.remoteFile = remoteFile;
+			this.size = size;
+			this.mtime = mtime;
+			this.chunkBytes = chunkBytes;
+		}
+
+		boolean isOf(String remoteFile, long size, long mtime, int chunkBytes) {
+			return this.remoteFile.equals(remoteFile) && this.size == size && this.mtime == mtime && this.chunkBytes == chunkBytes;
+		}
+
+		int getChunkCount() {
+			return (int) ((size + chunkBytes - 1) / chunkBytes);
+		}
+
+		long getChunkLength(int index) {
+			return Math.min(chunkBytes, size - (long) index * chunkBytes);
+		}
+
+		/**
+		 * @return the state, null if there is none or it cannot be read
+		 */
+		static State load(File file) {
+			if (!file.isFile()) return null;
+			Properties properties = new Properties();
+			try {
+				InputStream in = new FileInputStream(file);
+				try {
+					properties.load(in);
+				} finally {
+					in.close();
+				}
+				State state = new State(properties.getProperty("remoteFile"), Long.parseLong(properties.getProperty("size")),
+						Long.parseLong(properties.getProperty("mtime")), Integer.parseInt(properties.getProperty("chunkBytes")));
+				state.written = Integer.parseInt(properties.getProperty("written"));
+				state.verified = Math.min(state.written, Integer.parseInt(properties.getProperty("verified")));
+				return state;
+			} catch (IOException e) {
+				log.log(Level.FINE, "Couldn't read "+file+", starting over", e);
+			} catch (RuntimeException e) {
+				log.log(Level.FINE, "Couldn't read "+file+", starting over", e);
+			}
+			return null;
+		}
+
+		/**
+		 * Writes a new state file and renames it over the old one, so that a broken write leaves the old one.
+		 */
+		void save(File file) throws IOException {
+			Properties properties = new Properties();
+			properties.setProperty("remoteFile", remoteFile);
+			properties.setProperty("size", String.valueOf(size));
+			properties.setProperty("mtime", String.valueOf(mtime));
+			properties.setProperty("chunkBytes", String.valueOf(chunkBytes));
+			properties.setProperty("written", String.valueOf(written));
+			properties.setProperty("verified", String.valueOf(verified));
+			File tmp = new File(file.getPath() + ".tmp");
+			OutputStream out = new FileOutputStream(tmp);
+			try {
+				properties.store(out, "download of " + remoteFile);
+			} finally {
+				out.close();
+			}
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+	}
+}
@@ -0,0 +1,230 @@
+package com.redhat.qe.tools;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.EnumSet;
+import java.util.logging.Logger;
+
+import net.schmizz.sshj.SSHClient;
+import net.schmizz.sshj.common.StreamCopier;
+import net.schmizz.sshj.sftp.FileAttributes;
+import net.schmizz.sshj.sftp.OpenMode;
+import net.schmizz.sshj.sftp.RemoteFile;
+import net.schmizz.sshj.sftp.SFTPClient;
+
+/**
+ * Writes a remote file from a stream or a channel, or reads a remote file into one, over SFTP with many requests
+ * in flight (like SFTPTransfer).  Nothing goes through a temporary file or the command line, so the content may be
+ * of any size and contain anything.
+ * <pre>
+ * SSHStreamTransfer stream = new SSHStreamTransfer(runner.getConnection());
+ * stream.upload(new ByteArrayInputStream(config.getBytes("UTF-8")), "/etc/yum.repos.d/test.repo", 0644);
+ * stream.download("/var/log/messages", System.out);
+ * </pre>
+ * A local file (FileChannel, FileInputStream) is read by its channel; one of `ssh.stream.mmapThresholdBytes`
+ * (8 MiB by default) or more is mapped into memory and sent from the mapping, a window at a time.
+ * The streams and channels given are not closed.
+ * @author jstavel
+ */
+public class SSHStreamTransfer {
+	protected static Logger log = Logger.getLogger(SSHStreamTransfer.class.getName());
+
+	private static final long MAP_WINDOW_BYTES = 64 * 1024 * 1024;
+
+	protected final SSHClient connection;
+	protected int maxInFlight = Integer.parseInt(System.getProperty("ssh.sftp.maxInFlight","64"));
+	protected int chunkBytes = Integer.parseInt(System.getProperty("ssh.sftp.chunkBytes","32768"));
+	protected long mmapThresholdBytes = Long.parseLong(System.getProperty("ssh.stream.mmapThresholdBytes", String.valueOf(8 * 1024 * 1024)));
+
+	public SSHStreamTransfer(SSHClient connection) {
+		this.connection = connection;
+	}
+
+	/**
+	 * @param mmapThresholdBytes - local files of this size or bigger are memory-mapped, Long.MAX_VALUE never maps
+	 */
+	public void setMmapThresholdBytes(long mmapThresholdBytes) {
+		this.mmapThresholdBytes = mmapThresholdBytes;
+	}
+
+	/**
+	 * Writes the remote file (created or truncated) from the rest of the stream.
+	 * @param mode - permissions of the remote file, e.g. 0644; null keeps those of an existing file
+	 * 	(a new one gets the default of the server)
+	 * @return bytes written
+	 */
+	public long upload(InputStream in, String remoteFile, Integer mode) throws IOException {
+		if (in instanceof FileInputStream) return upload(((FileInputStream) in).getChannel(), remoteFile, mode);
+		return upload(null, in, remoteFile, mode, "stream");
+	}
+
+	/**
+	 * Writes the remote file (created or truncated) from the rest of the channel.
+	 * A FileChannel is read from its position on and is left at its end.
+	 * @param mode - permissions of the remote file, e.g. 0644; null keeps those of an existing file
+	 * @return bytes written
+	 */
+	public long upload(ReadableByteChannel in, String remoteFile, Integer mode) throws IOException {
+		return upload(in, null, remoteFile, mode, "channel");
+	}
+
+	/**
+	 * Writes the remote file from a local file, read by its FileChannel.
+	 * @param mode - permissions of the remote file, e.g. 0644; null keeps those of an existing file
+	 * @return bytes written
+	 */
+	public long upload(Path localFile, String remoteFile, Integer mode) throws IOException {
+		FileChannel in = FileChannel.open(localFile, StandardOpenOption.READ);
+		try {
+			return upload(in, null, remoteFile, mode, localFile.toString());
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Reads the whole remote file into the stream.
+	 * @return bytes read
+	 */
+	public long download(String remoteFile, OutputStream out) throws IOException {
+		return download(remoteFile, out, null);
+	}
+
+	/**
+	 * Reads the whole remote file into the channel.
+	 * @return bytes read
+	 */
+	public long download(String remoteFile, WritableByteChannel out) throws IOException {
+		return download(remoteFile, null, out);
+	}
+
+	protected long upload(ReadableByteChannel channel, InputStream stream, String remoteFile, Integer mode, String what) throws IOException {
+		SSHTiming timing = new SSHTiming(SSHTiming.Kind.TRANSFER, connection.getRemoteHostname(), "put "+what+" "+remoteFile);
+		SFTPClient sftp = connection.newSFTPClient();
+		try {
+			timing.mark(SSHTiming.Phase.CHANNEL_OPEN);
+			FileAttributes attrs = (mode == null) ? FileAttributes.EMPTY : new FileAttributes.Builder().withPermissions(mode).build();
+			RemoteFile file = sftp.open(remoteFile, EnumSet.of(OpenMode.WRITE, OpenMode.CREAT, OpenMode.TRUNC), attrs);
+			long bytes;
+			try {
+				int chunk = SFTPTransfer.chunkSize(sftp, file, chunkBytes);
+				OutputStream out = file.new RemoteFileOutputStream(0, maxInFlight);
+				if (channel instanceof FileChannel) bytes = copy((FileChannel) channel, out, chunk, null);
+				else if (channel != null) bytes = copy(channel, out, chunk, null);
+				else bytes = copy(stream, out, chunk);
+				out.close();  // waits for the writes still in flight
+				// the mode of an open request applies to a new file only (and the umask of the server may cut it)
+				if (mode != null) file.setAttributes(attrs);
+			} finally {
+				file.close();
+			}
+			SSHTrafficStats.addDeliveredOut(connection, bytes);
+			timing.setBytes(bytes);
+			timing.mark(SSHTiming.Phase.CLOSE);
+			return bytes;
+		} finally {
+			sftp.close();
+			SSHInstrumentation.finish(timing);
+		}
+	}
+
+	protected long download(String remoteFile, OutputStream stream, WritableByteChannel channel) throws IOException {
+		SSHTiming timing = new SSHTiming(SSHTiming.Kind.TRANSFER, connection.getRemoteHostname(), "get "+remoteFile+" "+((channel != null) ? "channel" : "stream"));
+		SFTPClient sftp = connection.newSFTPClient();
+		try {
+			timing.mark(SSHTiming.Phase.CHANNEL_OPEN);
+			RemoteFile file = sftp.open(remoteFile);
+			long bytes = 0;
+			try {
+				int chunk = SFTPTransfer.chunkSize(sftp, file, chunkBytes);
+				InputStream in = timing.watchFirstByte(file.new ReadAheadRemoteFileInputStream(maxInFlight));
+				byte[] buffer = new byte[chunk];
+				int n;
+				// every read asks for a whole chunk, the read-ahead stream sizes its requests by it
+				while ((n = in.read(buffer, 0, chunk)) != -1) {
+					if (channel != null) {
+						ByteBuffer data = ByteBuffer.wrap(buffer, 0, n);
+						while (data.hasRemaining()) channel.write(data);
+					} else {
+						stream.write(buffer, 0, n);
+					}
+					bytes += n;
+				}
+				if (stream != null) stream.flush();
+			} finally {
+				file.close();
+			}
+			SSHTrafficStats.addDeliveredIn(connection, bytes);
+			timing.setBytes(bytes);
+			timing.mark(SSHTiming.Phase.CLOSE);
+			return bytes;
+		} finally {
+			sftp.close();
+			SSHInstrumentation.finish(timing);
+		}
+	}
+
+	/**
+	 * A big file is sent from its mapping, a smaller one read by the channel, both without a stream in between.
+	 * @param listener - told the bytes copied after every chunk, may be null
+	 */
+	protected long copy(FileChannel in, OutputStream out, int chunk, StreamCopier.Listener listener) throws IOException {
+		long start = in.position();
+		long size = in.size() - start;
+		if (size < mmapThresholdBytes) return copy((ReadableByteChannel) in, out, chunk, listener);
+		long bytes = 0;
+		byte[] buffer = new byte[chunk];
+		for (long offset = 0; offset < size; offset += MAP_WINDOW_BYTES) {
+			MappedByteBuffer window = in.map(FileChannel.MapMode.READ_ONLY, start + offset, Math.min(MAP_WINDOW_BYTES, size - offset));
+			while (window.hasRemaining()) {
+				int n = Math.min(chunk, window.remaining());
+				window.get(buffer, 0, n);
+				out.write(buffer, 0, n);
+				bytes += n;
+				if (listener != null) listener.reportProgress(bytes);
+			}
+		}
+		in.position(start + size);
+		return size;
+	}
+
+	protected long copy(ReadableByteChannel in, OutputStream out, int chunk, StreamCopier.Listener listener) throws IOException {
+		byte[] buffer = new byte[chunk];
+		ByteBuffer wrapped = ByteBuffer.wrap(buffer);
+		long bytes = 0;
+		int n;
+		while ((n = in.read(wrapped)) != -1) {
+			if (wrapped.hasRemaining()) continue;  // fill a whole chunk, one write request each
+			out.write(buffer, 0, wrapped.position());
+			bytes += wrapped.position();
+			if (listener != null) listener.reportProgress(bytes);
+			wrapped.clear();
+		}
+		if (wrapped.position() > 0) {
+			out.write(buffer, 0, wrapped.position());
+			bytes += wrapped.position();
+			if (listener != null) listener.reportProgress(bytes);
+		}
+		return bytes;
+	}
+
+	protected long copy(InputStream in, OutputStream out, int chunk) throws IOException {
+		byte[] buffer = new byte[chunk];
+		long bytes = 0;
+		int n;
+		while ((n = in.read(buffer, 0, chunk)) != -1) {
+			out.write(buffer, 0, n);
+			bytes += n;
+		}
+		return bytes;
+	}
+}
@@ -0,0 +1,188 @@
+package com.redhat.qe.tools;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import net.schmizz.sshj.common.StreamCopier;
+import net.schmizz.sshj.xfer.TransferListener;
+
+/**
+ * Timestamps of the phases of one connection setup, command, transfer or port forward, see SSHInstrumentation.
+ * A phase is stored as nanoseconds since the start, a phase that has not happened (e.g. EXIT_STATUS
+ * of a command that timed out) is -1.  FIRST_BYTE is the moment the first byte of the output has been
+ * read by this library (or by a caller reading the output streams).
+ * @author jstavel
+ */
+public class SSHTiming {
+
+	public enum Kind {
+		CONNECT, COMMAND, TRANSFER, FORWARD
+	}
+
+	public enum Phase {
+		CONNECT, AUTH, CHANNEL_OPEN, EXEC, FIRST_BYTE, EXIT_STATUS, CLOSE
+	}
+
+	protected final Kind kind;
+	protected final String host;
+	protected final String description;
+	protected final long startMillis = System.currentTimeMillis();
+	protected final long startNanos = System.nanoTime();
+	protected final AtomicLongArray phases = new AtomicLongArray(Phase.values().length);
+	protected final AtomicBoolean finished = new AtomicBoolean(false);
+	protected volatile Integer exitCode = null;
+	protected volatile long bytes = 0;
+	protected final Object event;  // see SSHFlightRecorder
+
+	/**
+	 * @param kind - what is timed
+	 * @param host - remote host
+	 * @param description - the command, transferred path or user
+	 */
+	public SSHTiming(Kind kind, String host, String description) {
+		this.kind = kind;
+		this.host = host;
+		this.description = description;
+		for (int i = 0; i < phases.length(); i++) phases.set(i, -1);
+		this.event = SSHFlightRecorder.begin(kind);
+	}
+
+	/**
+	 * Records the phase now, unless it has already been recorded.
+	 */
+	public void mark(Phase phase) {
+		phases.compareAndSet(phase.ordinal(), -1, Math.max(0, System.nanoTime() - startNanos));
+	}
+
+	/**
+	 * @return nanoseconds from the start to the phase, -1 if the phase has not happened
+	 */
+	public long getNanos(Phase phase) {
+		return phases.get(phase.ordinal());
+	}
+
+	/**
+	 * @return nanoseconds from the start to the last phase recorded
+	 */
+	public long getTotalNanos() {
+		long total = 0;
+		for (int i = 0; i < phases.length(); i++) total = Math.max(total, phases.get(i));
+		return total;
+	}
+
+	/**
+	 * @return true if the connection has been authenticated, the command has sent its exit status,
+	 * 	or the transfer or forward has been closed
+	 */
+	public boolean isCompleted() {
+		switch (kind) {
+		case CONNECT: return getNanos(Phase.AUTH) >= 0;
+		case COMMAND: return getNanos(Phase.EXIT_STATUS) >= 0;
+		default: return getNanos(Phase.CLOSE) >= 0;
+		}
+	}
+
+	/**
+	 * @return a stream marking FIRST_BYTE when the first byte is read from it
+	 */
+	public InputStream watchFirstByte(InputStream stream) {
+		if (stream == null) return null;
+		return new FilterInputStream(stream) {
+			public int read() throws IOException {
+				int b = super.read();
+				if (b != -1) SSHTiming.this.mark(Phase.FIRST_BYTE);
+				return b;
+			}
+
+			public int read(byte[] b, int off, int len) throws IOException {
+				int n = super.read(b, off, len);
+				if (n > 0) SSHTiming.this.mark(Phase.FIRST_BYTE);
+				return n;
+			}
+		};
+	}
+
+	/**
+	 * @return a listener adding the sizes of the transferred files to getBytes() and marking FIRST_BYTE
+	 * 	when the first data have been copied; everything is passed to the delegate
+	 */
+	public TransferListener watchTransfer(final TransferListener delegate) {
+		return new TransferListener() {
+			public TransferListener directory(String name) {
+				return watchTransfer(delegate.directory(name));
+			}
+
+			public StreamCopier.Listener file(String name, long size) {
+				synchronized (SSHTiming.this) {
+					bytes += size;
+				}
+				final StreamCopier.Listener listener = delegate.file(name, size);
+				return new StreamCopier.Listener() {
+					public void reportProgress(long transferred) throws IOException {
+						if (transferred > 0) mark(Phase.FIRST_BYTE);
+						listener.reportProgress(transferred);
+					}
+				};
+			}
+		};
+	}
+
+	/**
+	 * @return true the first time only, so that a timing is reported once
+	 */
+	protected boolean finish() {
+		return finished.compareAndSet(false, true);
+	}
+
+	public Kind getKind() {
+		return kind;
+	}
+
+	public String getHost() {
+		return host;
+	}
+
+	public String getDescription() {
+		return description;
+	}
+
+	/**
+	 * @return System.currentTimeMillis() of the start
+	 */
+	public long getStartMillis() {
+		return startMillis;
+	}
+
+	public Integer getExitCode() {
+		return exitCode;
+	}
+
+	public void setExitCode(Integer exitCode) {
+		this.exitCode = exitCode;
+	}
+
+	/**
+	 * @return bytes transferred, for TRANSFER only
+	 */
+	public long getBytes() {
+		return bytes;
+	}
+
+	public void setBytes(long bytes) {
+		this.bytes = bytes;
+	}
+
+	public String toString() {
+		StringBuilder string = new StringBuilder(String.format("%s %s '%s'", kind, host, description));
+		for (Phase phase: Phase.values()) {
+			long nanos = getNanos(phase);
+			if (nanos >= 0) string.append(String.format(" %s=%.1fms", phase.name().toLowerCase(), nanos / 1e6));
+		}
+		if (exitCode != null) string.append(" exitCode=").append(exitCode);
+		if (kind == Kind.TRANSFER) string.append(" bytes=").append(bytes);
+		return string.toString();
+	}
+}
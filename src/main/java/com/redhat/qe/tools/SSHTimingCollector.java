@@ -0,0 +1,193 @@
+package com.redhat.qe.tools;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Keeps latency histograms per host and phase for all timings it gets, see SSHInstrumentation.
+ * The value recorded for a phase is the time from the start to the phase (time to first byte etc.),
+ * TOTAL is the time to the last phase of the timing.  Connection setups, commands and transfers
+ * are kept apart, a host is reported as `host` (commands), `host [connect]` and `host [transfer]`.
+ * <p>
+ * The histograms have power of two buckets in microseconds, so a percentile is exact
+ * to a factor of two; count, mean and max are exact.
+ * @author jstavel
+ */
+public class SSHTimingCollector implements SSHTimingListener, SSHTimingCollectorMBean {
+	protected static Logger log = Logger.getLogger(SSHTimingCollector.class.getName());
+
+	public static final String OBJECT_NAME = "com.redhat.qe.tools:type=SSHTimingCollector";
+	public static final String TOTAL = "TOTAL";
+
+	private static final SSHTimingCollector defaultCollector = new SSHTimingCollector();
+
+	protected final ConcurrentMap<String, ConcurrentMap<String, Histogram>> histograms = new ConcurrentHashMap<String, ConcurrentMap<String, Histogram>>();
+
+	/**
+	 * @return the collector published by `ssh.timing.jmx=true`; it is not registered as a listener until then,
+	 * 	or until SSHInstrumentation.addListener(SSHTimingCollector.getDefault())
+	 */
+	public static SSHTimingCollector getDefault() {
+		return defaultCollector;
+	}
+
+	public void timed(SSHTiming timing) {
+		String key = timing.getHost();
+		if (timing.getKind() != SSHTiming.Kind.COMMAND) key += " [" + timing.getKind().name().toLowerCase() + "]";
+		ConcurrentMap<String, Histogram> host = histograms.get(key);
+		if (host == null) {
+			histograms.putIfAbsent(key, new ConcurrentHashMap<String, Histogram>());
+			host = histograms.get(key);
+		}
+		for (SSHTiming.Phase phase: SSHTiming.Phase.values()) {
+			long nanos = timing.getNanos(phase);
+			if (nanos >= 0) histogram(host, phase.name()).record(nanos);
+		}
+		histogram(host, TOTAL).record(timing.getTotalNanos());
+	}
+
+	private static Histogram histogram(ConcurrentMap<String, Histogram> host, String phase) {
+		Histogram histogram = host.get(phase);
+		if (histogram == null) {
+			host.putIfAbsent(phase, new Histogram());
+			histogram = host.get(phase);
+		}
+		return histogram;
+	}
+
+	/**
+	 * @return null if nothing has been recorded
+	 */
+	public Histogram getHistogram(String host, String phase) {
+		Map<String, Histogram> phases = histograms.get(host);
+		return (phases == null) ? null : phases.get(phase);
+	}
+
+	public String[] getHosts() {
+		return new TreeMap<String, Object>(histograms).keySet().toArray(new String[0]);
+	}
+
+	public long getCount(String host, String phase) {
+		Histogram histogram = getHistogram(host, phase);
+		return (histogram == null) ? 0 : histogram.getCount();
+	}
+
+	public double getMeanMS(String host, String phase) {
+		Histogram histogram = getHistogram(host, phase);
+		return (histogram == null) ? 0 : histogram.getMeanNanos() / 1e6;
+	}
+
+	public double getMaxMS(String host, String phase) {
+		Histogram histogram = getHistogram(host, phase);
+		return (histogram == null) ? 0 : histogram.getMaxNanos() / 1e6;
+	}
+
+	public double getPercentileMS(String host, String phase, double percentile) {
+		Histogram histogram = getHistogram(host, phase);
+		return (histogram == null) ? 0 : histogram.getPercentileNanos(percentile) / 1e6;
+	}
+
+	/**
+	 * @return count, mean, 50th, 99th percentile and max of every phase, one host per paragraph
+	 */
+	public String getReport() {
+		StringBuilder report = new StringBuilder();
+		for (String host: getHosts()) {
+			report.append(host).append('\n');
+			Map<String, Histogram> phases = histograms.get(host);
+			for (String phase: phaseNames()) {
+				Histogram histogram = phases.get(phase);
+				if (histogram == null) continue;
+				report.append(String.format("  %-12s count=%d mean=%.1fms p50=%.1fms p99=%.1fms max=%.1fms%n",
+						phase.toLowerCase(), histogram.getCount(), histogram.getMeanNanos() / 1e6,
+						histogram.getPercentileNanos(50) / 1e6, histogram.getPercentileNanos(99) / 1e6,
+						histogram.getMaxNanos() / 1e6));
+			}
+		}
+		return report.toString();
+	}
+
+	private static String[] phaseNames() {
+		SSHTiming.Phase[] phases = SSHTiming.Phase.values();
+		String[] names = new String[phases.length + 1];
+		for (int i = 0; i < phases.length; i++) names[i] = phases[i].name();
+		names[phases.length] = TOTAL;
+		return names;
+	}
+
+	public void reset() {
+		histograms.clear();
+	}
+
+	/**
+	 * Publishes the collector as a standard MBean `com.redhat.qe.tools:type=SSHTimingCollector`
+	 * (with `,name=...` appended for other collectors than the default one).
+	 * @return false if it couldn't be registered (e.g. the name is taken)
+	 */
+	public boolean registerMBean() {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName((this == defaultCollector) ? OBJECT_NAME : OBJECT_NAME + ",name=" + System.identityHashCode(this));
+			if (!server.isRegistered(name)) server.registerMBean(this, name);
+			return true;
+		} catch (JMException e) {
+			log.log(Level.WARNING, "Couldn't register the timing MBean", e);
+			return false;
+		}
+	}
+
+	/**
+	 * Latencies in power of two buckets of microseconds (bucket i holds values below 2^i microseconds).
+	 */
+	public static class Histogram {
+		private final long[] buckets = new long[48];
+		private long count = 0;
+		private long sum = 0;
+		private long max = 0;
+
+		public synchronized void record(long nanos) {
+			long micros = Math.max(0, nanos / 1000);
+			int bucket = Math.min(buckets.length - 1, 64 - Long.numberOfLeadingZeros(micros));
+			buckets[bucket]++;
+			count++;
+			sum += nanos;
+			max = Math.max(max, nanos);
+		}
+
+		public synchronized long getCount() {
+			return count;
+		}
+
+		public synchronized double getMeanNanos() {
+			return (count == 0) ? 0 : (double) sum / count;
+		}
+
+		public synchronized long getMaxNanos() {
+			return max;
+		}
+
+		/**
+		 * @param percentile - 0 to 100
+		 * @return upper bound of the bucket holding the percentile (never above the max)
+		 */
+		public synchronized long getPercentileNanos(double percentile) {
+			if (count == 0) return 0;
+			long rank = (long) Math.ceil(count * Math.min(100, Math.max(0, percentile)) / 100);
+			long seen = 0;
+			for (int i = 0; i < buckets.length; i++) {
+				seen += buckets[i];
+				if (seen >= Math.max(1, rank)) return Math.min(max, (1L << i) * 1000);
+			}
+			return max;
+		}
+	}
+}
@@ -0,0 +1,25 @@
+package com.redhat.qe.tools;
+
+/**
+ * JMX view of SSHTimingCollector.  Phases are named as in SSHTiming.Phase, plus TOTAL.
+ * @author jstavel
+ */
+public interface SSHTimingCollectorMBean {
+
+	String[] getHosts();
+
+	long getCount(String host, String phase);
+
+	double getMeanMS(String host, String phase);
+
+	double getMaxMS(String host, String phase);
+
+	/**
+	 * @param percentile - 0 to 100
+	 */
+	double getPercentileMS(String host, String phase, double percentile);
+
+	String getReport();
+
+	void reset();
+}
@@ -0,0 +1,11 @@
+package com.redhat.qe.tools;
+
+/**
+ * Gets the phase timestamps of every connection setup, command and transfer, see SSHInstrumentation.
+ * It is called by the thread that has finished the work, keep it quick.
+ * @author jstavel
+ */
+public interface SSHTimingListener {
+
+	void timed(SSHTiming timing);
+}
@@ -0,0 +1,197 @@
+package com.redhat.qe.tools;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.SocketFactory;
+
+import net.schmizz.sshj.SSHClient;
+
+/**
+ * Bytes of one connection as they go over the wire (after encryption and compression) and as they are
+ * delivered to the caller (command output, transferred files).  Comparing both tells how much the compression gains.
+ * <pre>
+ * SSHTrafficStats stats = SSHTrafficStats.of(runner.getConnection());
+ * log.info(stats.toString());
+ * </pre>
+ * Wire bytes are counted for the connections created by SSHClientFactory only.
+ * @author jstavel
+ */
+public class SSHTrafficStats {
+
+	protected final AtomicLong wireBytesIn = new AtomicLong();
+	protected final AtomicLong wireBytesOut = new AtomicLong();
+	protected final AtomicLong deliveredBytesIn = new AtomicLong();
+	protected final AtomicLong deliveredBytesOut = new AtomicLong();
+	protected volatile long lastReadMillis = System.currentTimeMillis();  // see SSHKeepAlive.getLiveness(...)
+
+	/**
+	 * @return statistics of the connection, null if the connection has not been created by SSHClientFactory
+	 */
+	public static SSHTrafficStats of(SSHClient connection) {
+		if (connection != null && connection.getSocketFactory() instanceof CountingSocketFactory) {
+			return ((CountingSocketFactory) connection.getSocketFactory()).stats;
+		}
+		return null;
+	}
+
+	/**
+	 * Counts bytes delivered by the connection to the caller (command output, downloaded files).
+	 */
+	public static void addDeliveredIn(SSHClient connection, long bytes) {
+		SSHTrafficStats stats = of(connection);
+		if (stats != null) stats.deliveredBytesIn.addAndGet(bytes);
+	}
+
+	/**
+	 * Counts bytes handed by the caller to the connection (uploaded files).
+	 */
+	public static void addDeliveredOut(SSHClient connection, long bytes) {
+		SSHTrafficStats stats = of(connection);
+		if (stats != null) stats.deliveredBytesOut.addAndGet(bytes);
+	}
+
+	public long getWireBytesIn() {
+		return wireBytesIn.get();
+	}
+
+	public long getWireBytesOut() {
+		return wireBytesOut.get();
+	}
+
+	public long getDeliveredBytesIn() {
+		return deliveredBytesIn.get();
+	}
+
+	public long getDeliveredBytesOut() {
+		return deliveredBytesOut.get();
+	}
+
+	/**
+	 * @return when the last bytes have come from the server (System.currentTimeMillis())
+	 */
+	public long getLastReadMillis() {
+		return lastReadMillis;
+	}
+
+	/**
+	 * @return delivered bytes per byte on the wire, both directions together (above 1 means the compression pays off)
+	 */
+	public double getCompressionRatio() {
+		long wire = getWireBytesIn() + getWireBytesOut();
+		return (wire == 0) ? 0 : (double) (getDeliveredBytesIn() + getDeliveredBytesOut()) / wire;
+	}
+
+	public String toString() {
+		return String.format("wireIn=%d wireOut=%d deliveredIn=%d deliveredOut=%d ratio=%.2f",
+				getWireBytesIn(), getWireBytesOut(), getDeliveredBytesIn(), getDeliveredBytesOut(), getCompressionRatio());
+	}
+
+	/**
+	 * Creates sockets counting the bytes going through them.  A factory belongs to one SSHClient.
+	 */
+	public static class CountingSocketFactory extends SocketFactory {
+		protected final SSHTrafficStats stats = new SSHTrafficStats();
+		protected boolean tcpNoDelay = false;
+
+		/**
+		 * @param tcpNoDelay - TCP_NODELAY of the sockets created from now on, see SSHTransportProfile
+		 */
+		public void setTcpNoDelay(boolean tcpNoDelay) {
+			this.tcpNoDelay = tcpNoDelay;
+		}
+
+		public Socket createSocket() throws IOException {
+			Socket socket = new CountingSocket(stats);
+			if (tcpNoDelay) socket.setTcpNoDelay(true);
+			return socket;
+		}
+
+		public Socket createSocket(String host, int port) throws IOException {
+			Socket socket = createSocket();
+			socket.connect(new InetSocketAddress(host, port));
+			return socket;
+		}
+
+		public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+			Socket socket = createSocket();
+			socket.bind(new InetSocketAddress(localHost, localPort));
+			socket.connect(new InetSocketAddress(host, port));
+			return socket;
+		}
+
+		public Socket createSocket(InetAddress host, int port) throws IOException {
+			Socket socket = createSocket();
+			socket.connect(new InetSocketAddress(host, port));
+			return socket;
+		}
+
+		public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException {
+			Socket socket = createSocket();
+			socket.bind(new InetSocketAddress(localAddress, localPort));
+			socket.connect(new InetSocketAddress(address, port));
+			return socket;
+		}
+	}
+
+	protected static class CountingSocket extends Socket {
+		protected final SSHTrafficStats stats;
+		protected InputStream input = null;
+		protected OutputStream output = null;
+
+		public CountingSocket(SSHTrafficStats stats) {
+			this.stats = stats;
+		}
+
+		@Override
+		public synchronized InputStream getInputStream() throws IOException {
+			if (input == null) {
+				input = new FilterInputStream(super.getInputStream()) {
+					public int read() throws IOException {
+						int b = super.read();
+						if (b != -1) {
+							stats.wireBytesIn.incrementAndGet();
+							stats.lastReadMillis = System.currentTimeMillis();
+						}
+						return b;
+					}
+
+					public int read(byte[] b, int off, int len) throws IOException {
+						int n = super.read(b, off, len);
+						if (n > 0) {
+							stats.wireBytesIn.addAndGet(n);
+							stats.lastReadMillis = System.currentTimeMillis();
+						}
+						return n;
+					}
+				};
+			}
+			return input;
+		}
+
+		@Override
+		public synchronized OutputStream getOutputStream() throws IOException {
+			if (output == null) {
+				output = new FilterOutputStream(super.getOutputStream()) {
+					public void write(int b) throws IOException {
+						out.write(b);
+						stats.wireBytesOut.incrementAndGet();
+					}
+
+					public void write(byte[] b, int off, int len) throws IOException {
+						out.write(b, off, len);
+						stats.wireBytesOut.addAndGet(len);
+					}
+				};
+			}
+			return output;
+		}
+	}
+}
@@ -0,0 +1,83 @@
+package com.redhat.qe.tools;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Compression of single file transfers by gzip on the host, see SSHCompressedTransfer.  Unlike SSHCompression
+ * (of the whole connection) it costs nothing to the commands and other channels of the connection.
+ * The default is given by a system property `ssh.transfer.compression` (off by default).
+ * @author jstavel
+ */
+public enum SSHTransferCompression {
+	/** copy files as they are */
+	OFF,
+	/** always compress */
+	GZIP,
+	/** compress text by its file name (.log, .txt, .xml, ...), never what is compressed already (.gz, .rpm, .jpg, ...);
+	 * other files only if bigger than `ssh.transfer.compression.autoThresholdBytes` (1 MiB by default) and a sample
+	 * of 64 KiB shrinks at least `ssh.transfer.compression.minRatio` times (1.5 by default) */
+	AUTO;
+
+	private static final Set<String> TEXT = new HashSet<String>(Arrays.asList(
+			"log", "txt", "out", "err", "xml", "json", "csv", "html", "htm", "sql", "conf", "cfg", "ini", "yaml", "yml",
+			"md", "properties", "sh", "py", "java", "js", "css", "svg", "tar"));
+	private static final Set<String> COMPRESSED = new HashSet<String>(Arrays.asList(
+			"gz", "tgz", "bz2", "tbz2", "xz", "txz", "zst", "lz4", "lzma", "zip", "7z", "rar", "jar", "war", "ear", "whl",
+			"rpm", "deb", "iso", "qcow2", "png", "jpg", "jpeg", "gif", "webp", "mp3", "mp4", "mkv", "avi", "pdf"));
+
+	/**
+	 * @return value of the system property `ssh.transfer.compression`
+	 */
+	public static SSHTransferCompression getDefault() {
+		return valueOf(System.getProperty("ssh.transfer.compression","off").toUpperCase());
+	}
+
+	/**
+	 * @return value of the system property `ssh.transfer.compression.autoThresholdBytes`
+	 */
+	public static long getAutoThresholdBytes() {
+		return Long.parseLong(System.getProperty("ssh.transfer.compression.autoThresholdBytes", String.valueOf(1024 * 1024)));
+	}
+
+	/**
+	 * @return value of the system property `ssh.transfer.compression.minRatio`
+	 */
+	public static double getMinRatio() {
+		return Double.parseDouble(System.getProperty("ssh.transfer.compression.minRatio","1.5"));
+	}
+
+	/**
+	 * @return value of the system property `ssh.transfer.compression.level` (gzip -1 ... -9), 1 by default
+	 */
+	public static int getLevel() {
+		return Integer.parseInt(System.getProperty("ssh.transfer.compression.level","1"));
+	}
+
+	/**
+	 * @return TRUE or FALSE if the name tells whether the file compresses, null if a sample has to tell
+	 */
+	public static Boolean byName(String fileName) {
+		String name = fileName.toLowerCase();
+		int slash = name.lastIndexOf('/');
+		if (slash != -1) name = name.substring(slash + 1);
+		int dot = name.lastIndexOf('.');
+		if (dot == -1) return null;
+		String extension = name.substring(dot + 1);
+		if (TEXT.contains(extension)) return Boolean.TRUE;
+		if (COMPRESSED.contains(extension)) return Boolean.FALSE;
+		return null;
+	}
+
+	/**
+	 * @param size - size of the whole file
+	 * @param sampleBytes - size of a sample of the file
+	 * @param compressedSampleBytes - size of the sample compressed
+	 * @return true if the file is worth compressing
+	 */
+	public static boolean bySample(long size, long sampleBytes, long compressedSampleBytes) {
+		if (size < getAutoThresholdBytes() || compressedSampleBytes <= 0) return false;
+		return (double) sampleBytes / compressedSampleBytes >= getMinRatio();
+	}
+}
@@ -0,0 +1,30 @@
+package com.redhat.qe.tools;
+
+import net.schmizz.sshj.SSHClient;
+import net.schmizz.sshj.xfer.FileTransfer;
+
+/**
+ * Protocol of the file transfers of RemoteFileTasks and SCPTools.
+ * The default is given by a system property `ssh.transfer.engine` (scp by default).
+ * @author jstavel
+ */
+public enum SSHTransferEngine {
+	/** SCPFileTransfer of sshj: one block at a time, needs scp on the host */
+	SCP,
+	/** SFTPTransfer: many requests of a file in flight, needs the sftp subsystem of sshd */
+	SFTP;
+
+	/**
+	 * @return value of the system property `ssh.transfer.engine`
+	 */
+	public static SSHTransferEngine getDefault() {
+		return valueOf(System.getProperty("ssh.transfer.engine","scp").toUpperCase());
+	}
+
+	/**
+	 * @return a new file transfer of this engine over the connection
+	 */
+	public FileTransfer newFileTransfer(SSHClient connection) {
+		return (this == SFTP) ? new SFTPTransfer(connection) : connection.newSCPFileTransfer();
+	}
+}
@@ -0,0 +1,127 @@
+package com.redhat.qe.tools;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Logger;
+
+import net.schmizz.sshj.Config;
+import net.schmizz.sshj.DefaultConfig;
+import net.schmizz.sshj.SSHClient;
+import net.schmizz.sshj.common.Factory;
+import net.schmizz.sshj.transport.cipher.Cipher;
+import net.schmizz.sshj.transport.mac.MAC;
+
+/**
+ * Named sets of transport settings: preferred ciphers and MACs, channel window and max packet size, TCP_NODELAY.
+ * <ul>
+ * <li>DEFAULT - sshj defaults: algorithms in the order of DefaultConfig, 2 MiB window, 32 KiB packets, no TCP_NODELAY;
+ * 	applied to a connection another profile has been applied to, it switches the connection back</li>
+ * <li>LOW_LATENCY - cheap ciphers, TCP_NODELAY, default window; for many short commands</li>
+ * <li>BULK_THROUGHPUT - fast ciphers and a 16 MiB window, so that a link with a long round trip
+ * 	is not throttled by the window; for transfers and big outputs</li>
+ * </ul>
+ * Preferred algorithms are only moved to the front of the list offered to the server, an algorithm
+ * the library doesn't implement (AES-GCM and ChaCha20-Poly1305 with sshj 0.23) is skipped and the rest
+ * of the list stays, so a profile never makes the key exchange fail.  Window and packet sizes apply to channels
+ * opened after the profile has been applied.
+ * <p>
+ * The default is given by a system property `ssh.transportProfile` (`default`, `low-latency` or `bulk-throughput`).
+ * @author jstavel
+ */
+public enum SSHTransportProfile {
+	DEFAULT(null, null, 2 * 1024 * 1024, 32 * 1024, false),
+	LOW_LATENCY(Arrays.asList("chacha20-poly1305@openssh.com", "aes128-gcm@openssh.com", "aes128-ctr"),
+			Arrays.asList("hmac-sha2-256", "hmac-sha1"),
+			2 * 1024 * 1024, 32 * 1024, true),
+	BULK_THROUGHPUT(Arrays.asList("aes128-gcm@openssh.com", "aes256-gcm@openssh.com", "chacha20-poly1305@openssh.com", "aes128-ctr"),
+			Arrays.asList("hmac-sha1", "hmac-sha2-256"),
+			16 * 1024 * 1024, 64 * 1024, false);
+
+	protected static Logger log = Logger.getLogger(SSHTransportProfile.class.getName());
+
+	protected final List<String> ciphers;  // null for the order of DefaultConfig
+	protected final List<String> macs;
+	protected final long windowSize;
+	protected final int maxPacketSize;
+	protected final boolean tcpNoDelay;
+
+	SSHTransportProfile(List<String> ciphers, List<String> macs, long windowSize, int maxPacketSize, boolean tcpNoDelay) {
+		this.ciphers = ciphers;
+		this.macs = macs;
+		this.windowSize = windowSize;
+		this.maxPacketSize = maxPacketSize;
+		this.tcpNoDelay = tcpNoDelay;
+	}
+
+	/**
+	 * @return value of the system property `ssh.transportProfile`
+	 */
+	public static SSHTransportProfile getDefault() {
+		return forName(System.getProperty("ssh.transportProfile","default"));
+	}
+
+	/**
+	 * @param name - `low-latency`, `LOW_LATENCY` etc.
+	 */
+	public static SSHTransportProfile forName(String name) {
+		return valueOf(name.trim().toUpperCase().replace('-', '_'));
+	}
+
+	/**
+	 * Applies the profile to a connected or not yet connected client.  A connected client re-runs
+	 * the key exchange if the preferred algorithms have changed.
+	 */
+	public void applyTo(SSHClient ssh) throws IOException {
+		Config config = ssh.getTransport().getConfig();
+		boolean changed = false;
+		List<Factory.Named<Cipher>> preferredCiphers = prefer(config.getCipherFactories(), (ciphers == null) ? names(SSHJDefaults.CONFIG.getCipherFactories()) : ciphers);
+		changed |= !preferredCiphers.equals(config.getCipherFactories());
+		config.setCipherFactories(preferredCiphers);
+		List<Factory.Named<MAC>> preferredMACs = prefer(config.getMACFactories(), (macs == null) ? names(SSHJDefaults.CONFIG.getMACFactories()) : macs);
+		changed |= !preferredMACs.equals(config.getMACFactories());
+		config.setMACFactories(preferredMACs);
+		ssh.getConnection().setWindowSize(windowSize);
+		ssh.getConnection().setMaxPacketSize(maxPacketSize);
+		if (ssh.getSocketFactory() instanceof SSHTrafficStats.CountingSocketFactory) {
+			((SSHTrafficStats.CountingSocketFactory) ssh.getSocketFactory()).setTcpNoDelay(tcpNoDelay);
+		}
+		if (ssh.isConnected()) {
+			ssh.getSocket().setTcpNoDelay(tcpNoDelay);
+			if (changed) {
+				log.fine("Re-running the key exchange with "+ssh.getRemoteHostname()+" for a transport profile "+this);
+				ssh.rekey();
+			}
+		}
+	}
+
+	protected static <T> List<String> names(List<Factory.Named<T>> factories) {
+		List<String> names = new ArrayList<String>();
+		for (Factory.Named<T> factory: factories) names.add(factory.getName());
+		return names;
+	}
+
+	/**
+	 * sshj's own configuration, created on first use
+	 */
+	private static class SSHJDefaults {
+		static final Config CONFIG = new DefaultConfig();
+	}
+
+	/**
+	 * @return the factories with the given names first (in the given order), then the others in their original order
+	 */
+	protected static <T> List<Factory.Named<T>> prefer(List<Factory.Named<T>> factories, List<String> names) {
+		List<Factory.Named<T>> result = new ArrayList<Factory.Named<T>>();
+		for (String name: names) {
+			for (Factory.Named<T> factory: factories) {
+				if (factory.getName().equals(name)) result.add(factory);
+			}
+		}
+		for (Factory.Named<T> factory: factories) {
+			if (!result.contains(factory)) result.add(factory);
+		}
+		return result;
+	}
+}
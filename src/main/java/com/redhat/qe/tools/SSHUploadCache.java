@@ -0,0 +1,299 @@
+package com.redhat.qe.tools;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import net.schmizz.sshj.SSHClient;
+
+/**
+ * Tells which files to upload are already on the host with the same content, so that RemoteFileTasks.putFile(...)
+ * and putFiles(...) skip them (if `ssh.transfer.skipIdentical` is true).
+ * <p>
+ * The SHA-256 of a local file is kept keyed by its path, and computed again only when its size or modification
+ * time changes.  The remote files are checked by one command for all files of a call: sha256sum of every file,
+ * except a file whose stamp is the one recorded by an earlier check or upload as the same user on the same host,
+ * whose recorded SHA-256 is used.  The stamp is the size, inode and the modification and change times in nanoseconds,
+ * so a file rewritten within a second, or replaced by another one, is hashed again.  Both are kept in the file given
+ * by a system property `ssh.uploadCache.file` (~/.cache/ssh-tools/upload-cache.properties by default, empty for none).
+ * @author jstavel
+ */
+public class SSHUploadCache {
+	protected static Logger log = Logger.getLogger(SSHUploadCache.class.getName());
+
+	private static final long CHECK_TIMEOUT_MS = 600000;
+	private static final long USER_TIMEOUT_MS = 30000;
+	// prints the stamp of a file: size, inode, mtime and ctime with nanoseconds, without spaces
+	private static final String STAMP = "stat -L -c '%s %i %y %z' -- \"$f\" 2>/dev/null | tr ' ' _";
+	private static SSHUploadCache defaultCache = null;
+
+	/** local canonical path -> "size mtime sha256" */
+	protected final ConcurrentMap<String, String> local = new ConcurrentHashMap<String, String>();
+	/** user@host:port remote path -> "stamp sha256" */
+	protected final ConcurrentMap<String, String> remote = new ConcurrentHashMap<String, String>();
+	protected final File file;
+	/** the remote user of a connection, asked once */
+	protected final Map<SSHClient, String> users = Collections.synchronizedMap(new WeakHashMap<SSHClient, String>());
+
+	/**
+	 * @param file - where the cache is kept between processes, null for nowhere
+	 */
+	public SSHUploadCache(File file) {
+		this.file = file;
+		load();
+	}
+
+	/**
+	 * @return the cache used by RemoteFileTasks, kept in the file given by `ssh.uploadCache.file`
+	 */
+	public static synchronized SSHUploadCache getDefault() {
+		if (defaultCache == null) {
+			String path = System.getProperty("ssh.uploadCache.file",
+					System.getProperty("user.home") + File.separator + ".cache" + File.separator + "ssh-tools" + File.separator + "upload-cache.properties");
+			defaultCache = new SSHUploadCache(path.isEmpty() ? null : new File(path));
+		}
+		return defaultCache;
+	}
+
+	/**
+	 * @return true if RemoteFileTasks.putFile(...) and putFiles(...) should skip identical files (`ssh.transfer.skipIdentical`)
+	 */
+	public static boolean isEnabled() {
+		return Boolean.parseBoolean(System.getProperty("ssh.transfer.skipIdentical","false"));
+	}
+
+	/**
+	 * @param dest - the remote file, or a directory to put the file into
+	 * @return the remote file with the same content as the source, null if there is none
+	 */
+	public String identicalCopy(SSHClient connection, String source, String dest) throws IOException {
+		return check(connection, dest, source)[0];
+	}
+
+	/**
+	 * @param destDir - a remote directory
+	 * @return the sources that are not in the directory with the same content (directories always), in their order
+	 */
+	public List<String> changed(SSHClient connection, String destDir, String... sources) throws IOException {
+		String[] identical = check(connection, destDir, sources);
+		List<String> changed = new ArrayList<String>();
+		for (int i = 0; i < sources.length; i++) {
+			if (identical[i] == null) changed.add(sources[i]);
+		}
+		return changed;
+	}
+
+	/**
+	 * @return SHA-256 of the local file, computed again only if its size or modification time have changed
+	 */
+	public String localHash(File source) throws IOException {
+		String key = source.getCanonicalPath();
+		String stamp = source.length() + " " + source.lastModified();
+		String entry = local.get(key);
+		if (entry != null && entry.startsWith(stamp + " ")) return entry.substring(stamp.length() + 1);
+		// the file is stamped before it is read, so a change made meanwhile is noticed next time
+		String hash = sha256(source);
+		local.put(key, stamp + " " + hash);
+		return hash;
+	}
+
+	/**
+	 * Records the content of files just uploaded, so that the next check needn't hash them on the host.
+	 * @param dest - the remote file, or a directory the files have been put into
+	 * @param sources - the local files uploaded
+	 */
+	public void uploaded(SSHClient connection, String dest, String... sources) throws IOException {
+		String[] hashes = new String[sources.length];
+		String host = hostKey(connection);
+		StringBuilder command = new StringBuilder("t() { f=$1; d=f; if [ -d \"$f\" ]; then f=\"$f/$2\"; d=d; fi; "
+				+ "s=$(" + STAMP + "); echo \"$d ${s:--}\"; }");
+		int files = 0;
+		for (int i = 0; i < sources.length; i++) {
+			File source = new File(sources[i]);
+			if (!source.isFile()) continue;
+			hashes[i] = localHash(source);
+			command.append("; t ").append(quote(dest)).append(' ').append(quote(source.getName()));
+			files++;
+		}
+		if (files == 0) return;
+		SSHCommandResult result = SSHExecutor.execute(connection, command.toString(), CHECK_TIMEOUT_MS);
+		String[] lines = result.getStdout().split("\n");
+		if (result.getExitCode() == null || lines.length != files) {
+			log.fine("Couldn't stat the uploaded files on " + connection.getRemoteHostname() + ": " + result.getStderr().trim());
+			return;
+		}
+		int line = 0;
+		for (int i = 0; i < sources.length; i++) {
+			if (hashes[i] == null) continue;
+			String[] fields = lines[line++].trim().split(" ");
+			String path = fields[0].equals("d") ? child(dest, new File(sources[i]).getName()) : dest;
+			if (fields.length == 2 && !fields[1].equals("-")) remote.put(host + path, fields[1] + " " + hashes[i]);
+			else remote.remove(host + path);
+		}
+		save();
+	}
+
+	/**
+	 * One remote command for all sources: prints "f" or "d" (dest is a directory) and either "-" (no such file),
+	 * "= stamp" (as recorded) or "sha256 stamp" per source.
+	 * @return for every source the remote path of its identical copy, or null
+	 */
+	protected String[] check(SSHClient connection, String dest, String... sources) throws IOException {
+		String[] identical = new String[sources.length];
+		String[] hashes = new String[sources.length];
+		String host = hostKey(connection);
+		StringBuilder command = new StringBuilder("h() { f=$1; d=f; r=$3; if [ -d \"$f\" ]; then f=\"$f/$2\"; d=d; r=$4; fi; "
+				+ "s=$(" + STAMP + "); [ -n \"$s\" ] || { echo \"$d -\"; return; }; "
+				+ "if [ -n \"$r\" ] && [ \"$s\" = \"$r\" ]; then echo \"$d = $s\"; "
+				+ "else echo \"$d $(sha256sum < \"$f\" 2>/dev/null | cut -d' ' -f1) $s\"; fi; }");
+		int files = 0;
+		for (int i = 0; i < sources.length; i++) {
+			File source = new File(sources[i]);
+			if (!source.isFile()) continue;
+			hashes[i] = localHash(source);
+			String name = source.getName();
+			command.append("; h ").append(quote(dest)).append(' ').append(quote(name))
+				.append(' ').append(quote(recordedStat(host + dest))).append(' ').append(quote(recordedStat(host + child(dest, name))));
+			files++;
+		}
+		if (files == 0) return identical;
+		SSHCommandResult result = SSHExecutor.execute(connection, command.toString(), CHECK_TIMEOUT_MS);
+		String[] lines = result.getStdout().split("\n");
+		if (result.getExitCode() == null || lines.length != files) {
+			log.warning("Couldn't check the files on " + connection.getRemoteHostname() + ", uploading them all: " + result.getStderr().trim());
+			return identical;
+		}
+		int line = 0;
+		for (int i = 0; i < sources.length; i++) {
+			if (hashes[i] == null) continue;
+			String[] fields = lines[line++].trim().split(" ");
+			String path = fields[0].equals("d") ? child(dest, new File(sources[i]).getName()) : dest;
+			String remoteHash = null;
+			if (fields.length == 3 && fields[1].equals("=")) {
+				String entry = remote.get(host + path);
+				if (entry != null) remoteHash = entry.substring(entry.lastIndexOf(' ') + 1);
+			} else if (fields.length == 3 && fields[1].length() == 64) {
+				remoteHash = fields[1];
+				remote.put(host + path, fields[2] + " " + remoteHash);
+			}
+			if (remoteHash == null) remote.remove(host + path);
+			if (hashes[i].equals(remoteHash)) identical[i] = path;
+		}
+		save();
+		return identical;
+	}
+
+	/**
+	 * @return "user@host:port " of the connection, the user is asked for once per connection
+	 */
+	protected String hostKey(SSHClient connection) throws IOException {
+		String user = users.get(connection);
+		if (user == null) {
+			SSHCommandResult result = SSHExecutor.execute(connection, "id -un", USER_TIMEOUT_MS);
+			user = result.getStdout().trim();
+			if (result.getExitCode() == null || result.getExitCode() != 0 || user.isEmpty() || user.contains(" ")) {
+				throw new IOException("Couldn't find out the user on " + connection.getRemoteHostname() + ": " + result.getStderr().trim());
+			}
+			users.put(connection, user);
+		}
+		return user + "@" + connection.getRemoteHostname() + ":" + connection.getRemotePort() + " ";
+	}
+
+	/**
+	 * @return stamp recorded for the remote file, "" if none
+	 */
+	private String recordedStat(String key) {
+		String entry = remote.get(key);
+		return (entry == null) ? "" : entry.substring(0, entry.lastIndexOf(' '));
+	}
+
+	protected void load() {
+		if (file == null || !file.isFile()) return;
+		Properties properties = new Properties();
+		try {
+			InputStream in = new FileInputStream(file);
+			try {
+				properties.load(in);
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			log.log(Level.FINE, "Couldn't read " + file + ", starting empty", e);
+			return;
+		}
+		for (String key: properties.stringPropertyNames()) {
+			if (key.startsWith("local ")) local.put(key.substring(6), properties.getProperty(key));
+			// entries without the user are of an older version, whose stamps are not trusted
+			else if (key.startsWith("remote ") && key.indexOf('@') > 0) remote.put(key.substring(7), properties.getProperty(key));
+		}
+	}
+
+	/**
+	 * Writes a new file and renames it over the old one, so that processes sharing it don't read half of it.
+	 */
+	protected synchronized void save() {
+		if (file == null) return;
+		Properties properties = new Properties();
+		for (Map.Entry<String, String> entry: local.entrySet()) properties.setProperty("local " + entry.getKey(), entry.getValue());
+		for (Map.Entry<String, String> entry: remote.entrySet()) properties.setProperty("remote " + entry.getKey(), entry.getValue());
+		try {
+			File dir = file.getAbsoluteFile().getParentFile();
+			dir.mkdirs();
+			File tmp = File.createTempFile(file.getName(), ".tmp", dir);
+			OutputStream out = new FileOutputStream(tmp);
+			try {
+				properties.store(out, "ssh-tools upload cache");
+			} finally {
+				out.close();
+			}
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			log.log(Level.FINE, "Couldn't write " + file, e);
+		}
+	}
+
+	private static String sha256(File source) throws IOException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		InputStream in = new FileInputStream(source);
+		try {
+			byte[] buffer = new byte[64 * 1024];
+			int n;
+			while ((n = in.read(buffer)) != -1) digest.update(buffer, 0, n);
+		} finally {
+			in.close();
+		}
+		StringBuilder hex = new StringBuilder();
+		for (byte b: digest.digest()) hex.append(String.format("%02x", b));
+		return hex.toString();
+	}
+
+	private static String child(String dir, String name) {
+		return dir.endsWith("/") ? dir + name : dir + "/" + name;
+	}
+
+	private static String quote(String s) {
+		return "'" + s.replace("'", "'\\''") + "'";
+	}
+}
@@ -1,14 +1,14 @@
 package com.redhat.qe.tools;
 
-import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
- * Logs the output of an SSH command
+ * Logs the output of an SSH command.  A line longer than `ssh.output.maxLineBytes` is logged in pieces,
+ * like OutputLineIterator returns it.
  * @author weissj
  *
  */
@@ -21,6 +21,8 @@ public class SplitStreamLogger {
 
 	StreamLogger sl_out;
 	StreamLogger sl_err;
+	Thread t_out;
+	Thread t_err;
 	
 	public SplitStreamLogger(SSHCommandRunner runner){
 		this.runner = runner;
@@ -36,10 +38,18 @@ public class SplitStreamLogger {
 	public void log(Level outlevel, Level errlevel){
 		sl_out = new StreamLogger(stdout, outlevel,"Stdout");
 		sl_err = new StreamLogger(stderr, errlevel,"Stderr");
-		Thread out = new Thread(sl_out);
-		Thread err = new Thread(sl_err);
-		out.start();
-		err.start();
+		t_out = new Thread(sl_out);
+		t_err = new Thread(sl_err);
+		t_out.start();
+		t_err.start();
+	}
+
+	/**
+	 * Waits until both streams are logged to the end.
+	 */
+	public void join() throws InterruptedException {
+		if (t_out != null) t_out.join();
+		if (t_err != null) t_err.join();
 	}
 	
 	public String getStdout(){
@@ -49,16 +59,37 @@ public class SplitStreamLogger {
 	public String getStderr(){
 		return sl_err.toString();
 	}
+
+	/**
+	 * @return raw bytes of stdout logged so far
+	 */
+	public OutputCapture getStdoutCapture(){
+		return sl_out.capture;
+	}
+
+	/**
+	 * @return raw bytes of stderr logged so far
+	 */
+	public OutputCapture getStderrCapture(){
+		return sl_err.capture;
+	}
 	
 	public void log(){
 		log(Level.INFO, Level.SEVERE);
 	}
 		
+	/**
+	 * Copies raw bytes of the stream into an OutputCapture and logs every complete line.
+	 * The bytes are stored as they come (CR/LF included), lines are split only for logging.
+	 */
 	class StreamLogger implements Runnable{
 		protected String name;
 		protected InputStream stream;
 		protected Level level;
-		protected StringBuffer sb = new StringBuffer();
+		protected OutputCapture capture = new OutputCapture();
+		protected ByteArrayOutputStream line = new ByteArrayOutputStream();
+		protected int maxLineBytes = OutputLineIterator.defaultMaxLineBytes();
+		protected boolean continued = false;  // the line logged next continues a piece already logged
 		
 		public StreamLogger(InputStream stream, Level level, String name){
 			this.name = name;
@@ -67,34 +98,59 @@ public class SplitStreamLogger {
 		}
 		
 		public String toString(){
-			synchronized (sb) {
-				return sb.toString();
-			}
+			return capture.toString();
 		}
 		
 		public void run(){
-			String line;
-			BufferedReader reader = new BufferedReader(new InputStreamReader(stream));
+			byte[] buffer = new byte[8192];
+			int len;
 			try {
-				while ((line = reader.readLine()) != null){
-					synchronized (sb) {
-						sb.append(line + "\n");
-// The user@hostname information is already logged by the prior SSHCommandRunner call to run a command.  No need to log it again on every line of command output.  jsefler 4/5/2010
-//						if (runner!=null)	log.log(level, String.format("[%s@%s] %s: %s", runner.user,runner.getConnection().getHostname(),name,line));
-//						else				log.log(level, String.format("%s: %s", name,line));
-						log.log(level, String.format("%s: %s", name,line));
-					}		
+				while ((len = stream.read(buffer)) != -1){
+					capture.write(buffer, 0, len);
+					int start = 0;
+					for (int i = 0; i < len; i++) {
+						if (buffer[i] == '\n') {
+							line.write(buffer, start, i - start);
+							logLine();
+							start = i + 1;
+						} else if (line.size() + i + 1 - start >= maxLineBytes) {
+							// a line without an end yet mustn't grow without a limit
+							line.write(buffer, start, i + 1 - start);
+							logText(OutputLineIterator.splitLine(line));
+							continued = true;
+							start = i + 1;
+						}
+					}
+					line.write(buffer, start, len - start);
 				}
+				if (line.size() > 0) logLine();
 			}
 			catch (IOException e) {
 				e.printStackTrace();
 			} finally {
 				try {
-					reader.close();
+					stream.close();
 				} catch (IOException e) {
 					e.printStackTrace();
 				}
 			}
 		}
+
+		private void logLine(){
+			String text = new String(line.toByteArray(), OutputCapture.CHARSET);
+			if (text.endsWith("\r")) text = text.substring(0, text.length() - 1);
+			line.reset();
+			// the line has ended right after its last piece
+			boolean rest = continued && text.isEmpty();
+			continued = false;
+			if (!rest) logText(text);
+		}
+
+		private void logText(String text){
+// The user@hostname information is already logged by the prior SSHCommandRunner call to run a command.  No need to log it again on every line of command output.  jsefler 4/5/2010
+//			if (runner!=null)	log.log(level, String.format("[%s@%s] %s: %s", runner.user,runner.getConnection().getHostname(),name,line));
+//			else				log.log(level, String.format("%s: %s", name,line));
+			log.log(level, String.format("%s: %s", name,text));
+		}
 	}
 }
@@ -0,0 +1,285 @@
+package com.redhat.qe.tools;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Unpacks a tar stream (ustar, pax and GNU long names, as written by GNU tar, bsdtar or TarWriter) into a local
+ * directory.  Modes and modification times are kept, owners are not.  Entries that would end up outside
+ * of the directory (absolute names, "..", paths through a link) are refused.
+ * @author jstavel
+ */
+public class TarReader {
+	protected static Logger log = Logger.getLogger(TarReader.class.getName());
+
+	private static final int BLOCK = TarWriter.BLOCK;
+
+	protected final InputStream in;
+	protected long read = 0;
+	private final byte[] buffer = new byte[64 * 1024];
+
+	public TarReader(InputStream in) {
+		this.in = in;
+	}
+
+	/**
+	 * Unpacks the whole stream.
+	 * @param dir - an existing directory
+	 * @return number of entries unpacked
+	 */
+	public int extractTo(Path dir) throws IOException {
+		Path root = dir.toRealPath();
+		byte[] header = new byte[BLOCK];
+		String longName = null;
+		String longLink = null;
+		Long paxSize = null;
+		List<Path> directories = new ArrayList<Path>();
+		List<Long> directoryTimes = new ArrayList<Long>();
+		List<Integer> directoryModes = new ArrayList<Integer>();
+		int count = 0;
+		while (readBlock(header)) {
+			if (isZero(header)) break;
+			verifyChecksum(header);
+			char type = (char) header[156];
+			long size = (paxSize != null) ? paxSize : number(header, 124, 12);
+			if (type == 'x' || type == 'L' || type == 'K') {
+				String content = new String(readData(size), StandardCharsets.UTF_8);
+				if (type == 'L') longName = cString(content);
+				else if (type == 'K') longLink = cString(content);
+				else {
+					for (String[] record: paxRecords(content)) {
+						if (record[0].equals("path")) longName = record[1];
+						else if (record[0].equals("linkpath")) longLink = record[1];
+						else if (record[0].equals("size")) paxSize = Long.parseLong(record[1]);
+					}
+				}
+				continue;
+			}
+			String name = (longName != null) ? longName : name(header);
+			String link = (longLink != null) ? longLink : string(header, 157, 100);
+			longName = null;
+			longLink = null;
+			paxSize = null;
+			int mode = (int) number(header, 100, 8);
+			long mtime = number(header, 136, 12);
+			Path target = resolve(root, name);
+			if (target == null) {
+				log.warning("Skipping tar entry " + name + ", it would be outside of " + root);
+				skip(size);
+				continue;
+			}
+			switch (type) {
+			case '0':
+			case '\0':
+			case '7':
+				Files.deleteIfExists(target);
+				OutputStream out = Files.newOutputStream(target);
+				try {
+					copy(size, out);
+				} finally {
+					out.close();
+				}
+				setMode(target, mode);
+				Files.setLastModifiedTime(target, FileTime.from(mtime, TimeUnit.SECONDS));
+				break;
+			case '5':
+				if (!Files.isDirectory(target, LinkOption.NOFOLLOW_LINKS)) Files.createDirectory(target);
+				setMode(target, mode | 0700);  // the entries below still have to be written
+				directories.add(target);
+				directoryTimes.add(mtime);
+				directoryModes.add(mode);
+				skip(size);
+				break;
+			case '2':
+				Files.deleteIfExists(target);
+				Files.createSymbolicLink(target, Paths.get(link));
+				skip(size);
+				break;
+			case '1':
+				Path existing = resolve(root, link);
+				if (existing == null) throw new IOException("Tar entry " + name + " links to " + link + " outside of " + root);
+				Files.deleteIfExists(target);
+				Files.createLink(target, existing);
+				skip(size);
+				break;
+			default:
+				log.fine("Skipping tar entry " + name + " of type " + type);
+				skip(size);
+				continue;
+			}
+			count++;
+		}
+		// the directories get their modes and times once their entries are written
+		for (int i = directories.size() - 1; i >= 0; i--) {
+			setMode(directories.get(i), directoryModes.get(i));
+			Files.setLastModifiedTime(directories.get(i), FileTime.from(directoryTimes.get(i), TimeUnit.SECONDS));
+		}
+		return count;
+	}
+
+	/**
+	 * @return bytes of the tar stream read so far
+	 */
+	public long getRead() {
+		return read;
+	}
+
+	/**
+	 * @return the path of the entry below root, null if it would not be below root
+	 */
+	protected static Path resolve(Path root, String name) throws IOException {
+		if (name.startsWith("/")) return null;
+		Path target = root.resolve(name).normalize();
+		if (!target.startsWith(root)) return null;
+		if (target.equals(root)) return target;  // "./" of tar -c .
+		// the parent may not be a link that leads out of root
+		Path parent = target.getParent();
+		Files.createDirectories(parent);
+		if (!parent.toRealPath().startsWith(root)) return null;
+		return target;
+	}
+
+	static void setMode(Path path, int mode) throws IOException {
+		Set<PosixFilePermission> permissions = EnumSet.noneOf(PosixFilePermission.class);
+		for (PosixFilePermission permission: PosixFilePermission.values()) {
+			if ((mode & (0400 >> permission.ordinal())) != 0) permissions.add(permission);
+		}
+		try {
+			Files.setPosixFilePermissions(path, permissions);
+		} catch (UnsupportedOperationException e) {
+			// not a POSIX file system
+			path.toFile().setExecutable((mode & 0100) != 0);
+		}
+	}
+
+	private boolean readBlock(byte[] block) throws IOException {
+		int filled = 0;
+		while (filled < BLOCK) {
+			int n = in.read(block, filled, BLOCK - filled);
+			if (n == -1) {
+				if (filled == 0) return false;
+				throw new IOException("The tar stream ends in the middle of a header");
+			}
+			filled += n;
+		}
+		read += BLOCK;
+		return true;
+	}
+
+	private void copy(long size, OutputStream out) throws IOException {
+		long left = size;
+		while (left > 0) {
+			int n = in.read(buffer, 0, (int) Math.min(buffer.length, left));
+			if (n == -1) throw new IOException("The tar stream ends in the middle of a file");
+			if (out != null) out.write(buffer, 0, n);
+			left -= n;
+			read += n;
+		}
+		long padding = (BLOCK - size % BLOCK) % BLOCK;
+		while (padding > 0) {
+			int n = in.read(buffer, 0, (int) padding);
+			if (n == -1) break;
+			padding -= n;
+			read += n;
+		}
+	}
+
+	private void skip(long size) throws IOException {
+		copy(size, null);
+	}
+
+	private byte[] readData(long size) throws IOException {
+		if (size > 1024 * 1024) throw new IOException("A tar extension header of " + size + " bytes");
+		ByteArrayOutputStream data = new ByteArrayOutputStream((int) size);
+		copy(size, data);
+		return data.toByteArray();
+	}
+
+	private static void verifyChecksum(byte[] header) throws IOException {
+		long expected = number(header, 148, 8);
+		long sum = 0;
+		for (int i = 0; i < BLOCK; i++) sum += (i >= 148 && i < 156) ? ' ' : (header[i] & 0xff);
+		if (sum != expected) throw new IOException("Not a tar stream, or a damaged one (header checksum " + expected + " != " + sum + ")");
+	}
+
+	private static boolean isZero(byte[] header) {
+		for (byte b: header) if (b != 0) return false;
+		return true;
+	}
+
+	private static String name(byte[] header) {
+		String name = string(header, 0, 100);
+		String magic = string(header, 257, 6);
+		if (magic.equals("ustar")) {
+			// POSIX ustar has a prefix, GNU tar ("ustar  ") keeps other fields there
+			String prefix = string(header, 345, 155);
+			if (!prefix.isEmpty()) name = prefix + "/" + name;
+		}
+		return name;
+	}
+
+	private static String string(byte[] header, int off, int len) {
+		int end = off;
+		while (end < off + len && header[end] != 0) end++;
+		return new String(header, off, end - off, StandardCharsets.UTF_8);
+	}
+
+	private static String cString(String s) {
+		int nul = s.indexOf('\0');
+		return (nul == -1) ? s : s.substring(0, nul);
+	}
+
+	/**
+	 * Octal, or big-endian base-256 if the first byte has its top bit set (GNU tar, for big sizes and times).
+	 */
+	static long number(byte[] header, int off, int len) {
+		if ((header[off] & 0x80) != 0) {
+			long value = header[off] & 0x7f;
+			for (int i = off + 1; i < off + len; i++) value = (value << 8) | (header[i] & 0xff);
+			return value;
+		}
+		int i = off;
+		while (i < off + len && header[i] == ' ') i++;
+		long value = 0;
+		for (; i < off + len && header[i] >= '0' && header[i] <= '7'; i++) value = (value << 3) + (header[i] - '0');
+		return value;
+	}
+
+	private static List<String[]> paxRecords(String content) {
+		List<String[]> records = new ArrayList<String[]>();
+		byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+		int pos = 0;
+		while (pos < bytes.length) {
+			int space = pos;
+			while (space < bytes.length && bytes[space] != ' ') space++;
+			if (space == bytes.length) break;
+			int length;
+			try {
+				length = Integer.parseInt(new String(bytes, pos, space - pos, StandardCharsets.US_ASCII));
+			} catch (NumberFormatException e) {
+				break;
+			}
+			if (length <= 0 || pos + length > bytes.length) break;
+			String record = new String(bytes, space + 1, pos + length - space - 2, StandardCharsets.UTF_8);  // without '\n'
+			int equals = record.indexOf('=');
+			if (equals > 0) records.add(new String[] {record.substring(0, equals), record.substring(equals + 1)});
+			pos += length;
+		}
+		return records;
+	}
+}
@@ -0,0 +1,218 @@
+package com.redhat.qe.tools;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Writes local files and directories as a tar stream (POSIX ustar, pax headers for long names and big files),
+ * which GNU tar and bsdtar read.  Modes and modification times are kept, owners are not.
+ * Symbolic links are stored as links, not followed.
+ * @author jstavel
+ */
+public class TarWriter implements Closeable {
+	protected static Logger log = Logger.getLogger(TarWriter.class.getName());
+
+	static final int BLOCK = 512;
+	private static final long MAX_OCTAL_SIZE = 077777777777L;
+
+	protected final OutputStream out;
+	protected long written = 0;
+	private final byte[] buffer = new byte[64 * 1024];
+	private boolean finished = false;
+
+	public TarWriter(OutputStream out) {
+		this.out = out;
+	}
+
+	/**
+	 * Adds the file, or the directory with everything below it, under its own name.
+	 */
+	public void addTree(Path path) throws IOException {
+		Path name = path.toAbsolutePath().normalize().getFileName();
+		addTree(path, (name == null) ? "." : name.toString());
+	}
+
+	/**
+	 * Adds the file, or the directory with everything below it, as the given name.
+	 */
+	public void addTree(Path path, String name) throws IOException {
+		BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+		int mode = mode(path, attrs);
+		long mtime = attrs.lastModifiedTime().to(TimeUnit.SECONDS);
+		if (attrs.isSymbolicLink()) {
+			writeHeader(name, '2', mode, 0, mtime, Files.readSymbolicLink(path).toString());
+		} else if (attrs.isDirectory()) {
+			writeHeader(name.endsWith("/") ? name : name + "/", '5', mode, 0, mtime, "");
+			List<Path> children = new ArrayList<Path>();
+			DirectoryStream<Path> stream = Files.newDirectoryStream(path);
+			try {
+				for (Path child: stream) children.add(child);
+			} finally {
+				stream.close();
+			}
+			Collections.sort(children);
+			String prefix = name.endsWith("/") ? name : name + "/";
+			for (Path child: children) addTree(child, prefix + child.getFileName());
+		} else if (attrs.isRegularFile()) {
+			long size = attrs.size();
+			writeHeader(name, '0', mode, size, mtime, "");
+			InputStream in = Files.newInputStream(path);
+			try {
+				long left = size;
+				while (left > 0) {
+					int n = in.read(buffer, 0, (int) Math.min(buffer.length, left));
+					if (n == -1) break;
+					write(buffer, 0, n);
+					left -= n;
+				}
+				if (left > 0) {
+					// the file has got shorter meanwhile, the entry must still have the size of its header
+					log.warning(path + " has changed while being archived");
+					Arrays.fill(buffer, (byte) 0);
+					while (left > 0) {
+						int n = (int) Math.min(buffer.length, left);
+						write(buffer, 0, n);
+						left -= n;
+					}
+				}
+			} finally {
+				in.close();
+			}
+			pad();
+		} else {
+			log.fine("Skipping " + path + ", it is neither a file, a directory nor a link");
+		}
+	}
+
+	/**
+	 * @return bytes of the tar stream written so far
+	 */
+	public long getWritten() {
+		return written;
+	}
+
+	/**
+	 * Writes the end of the archive, the stream is left open.
+	 */
+	public void finish() throws IOException {
+		if (finished) return;
+		finished = true;
+		write(new byte[2 * BLOCK], 0, 2 * BLOCK);
+		out.flush();
+	}
+
+	/**
+	 * Finishes the archive and closes the stream.
+	 */
+	public void close() throws IOException {
+		try {
+			finish();
+		} finally {
+			out.close();
+		}
+	}
+
+	protected void writeHeader(String name, char type, int mode, long size, long mtime, String link) throws IOException {
+		byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+		byte[] linkBytes = link.getBytes(StandardCharsets.UTF_8);
+		StringBuilder pax = new StringBuilder();
+		if (nameBytes.length > 100) pax.append(paxRecord("path", name));
+		if (linkBytes.length > 100) pax.append(paxRecord("linkpath", link));
+		if (size > MAX_OCTAL_SIZE) pax.append(paxRecord("size", Long.toString(size)));
+		if (pax.length() > 0) {
+			byte[] records = pax.toString().getBytes(StandardCharsets.UTF_8);
+			write(header("././@PaxHeader", 'x', 0644, records.length, mtime, ""), 0, BLOCK);
+			write(records, 0, records.length);
+			pad();
+		}
+		write(header(name, type, mode, size, mtime, link), 0, BLOCK);
+	}
+
+	private byte[] header(String name, char type, int mode, long size, long mtime, String link) {
+		byte[] header = new byte[BLOCK];
+		put(header, 0, 100, name.getBytes(StandardCharsets.UTF_8));  // cut, a pax header has the whole name then
+		octal(header, 100, 8, mode & 07777);
+		octal(header, 108, 8, 0);
+		octal(header, 116, 8, 0);
+		octal(header, 124, 12, Math.min(size, MAX_OCTAL_SIZE));
+		octal(header, 136, 12, Math.max(0, Math.min(mtime, MAX_OCTAL_SIZE)));
+		header[156] = (byte) type;
+		put(header, 157, 100, link.getBytes(StandardCharsets.UTF_8));
+		put(header, 257, 6, "ustar\0".getBytes(StandardCharsets.US_ASCII));
+		put(header, 263, 2, "00".getBytes(StandardCharsets.US_ASCII));
+		int checksum = 0;
+		for (int i = 0; i < BLOCK; i++) checksum += (i >= 148 && i < 156) ? ' ' : (header[i] & 0xff);
+		octal(header, 148, 7, checksum);
+		header[155] = ' ';
+		return header;
+	}
+
+	/**
+	 * @return "length key=value\n", the length counts itself
+	 */
+	static String paxRecord(String key, String value) {
+		int rest = key.getBytes(StandardCharsets.UTF_8).length + value.getBytes(StandardCharsets.UTF_8).length + 3;  // ' ', '=', '\n'
+		int length = rest + Integer.toString(rest).length();
+		if (Integer.toString(length).length() != Integer.toString(rest).length()) length++;
+		return length + " " + key + "=" + value + "\n";
+	}
+
+	private void write(byte[] b, int off, int len) throws IOException {
+		out.write(b, off, len);
+		written += len;
+	}
+
+	private void pad() throws IOException {
+		int rest = (int) (written % BLOCK);
+		if (rest > 0) write(new byte[BLOCK - rest], 0, BLOCK - rest);
+	}
+
+	private static void put(byte[] header, int off, int len, byte[] value) {
+		System.arraycopy(value, 0, header, off, Math.min(len, value.length));
+	}
+
+	/**
+	 * Octal digits ended by NUL, filling the field.
+	 */
+	private static void octal(byte[] header, int off, int len, long value) {
+		String digits = Long.toOctalString(value);
+		while (digits.length() < len - 1) digits = "0" + digits;
+		put(header, off, len - 1, digits.getBytes(StandardCharsets.US_ASCII));
+		header[off + len - 1] = 0;
+	}
+
+	private static int mode(Path path, BasicFileAttributes attrs) throws IOException {
+		if (attrs instanceof PosixFileAttributes) return mode(((PosixFileAttributes) attrs).permissions());
+		try {
+			return mode(Files.readAttributes(path, PosixFileAttributes.class, LinkOption.NOFOLLOW_LINKS).permissions());
+		} catch (UnsupportedOperationException e) {
+			// not a POSIX file system
+			if (attrs.isDirectory() || Files.isExecutable(path)) return 0755;
+			return 0644;
+		}
+	}
+
+	static int mode(Iterable<PosixFilePermission> permissions) {
+		int mode = 0;
+		for (PosixFilePermission permission: permissions) {
+			mode |= 0400 >> permission.ordinal();
+		}
+		return mode;
+	}
+}
@@ -0,0 +1,98 @@
+package com.redhat.qe.tools;
+
+/**
+ * A result of one file of many copied by SSHParallelTransfer, or of a file copied by SSHCompressedTransfer.
+ * @author jstavel
+ */
+public class TransferResult {
+
+	protected String source;
+	protected String target;
+	protected long bytes;
+	protected long wireBytes;
+	protected long durationMS;
+	protected Throwable failure = null;
+
+	public TransferResult(String source, String target, long bytes, long durationMS, Throwable failure) {
+		this(source, target, bytes, bytes, durationMS, failure);
+	}
+
+	/**
+	 * @param wireBytes - bytes sent over the channel, less than bytes if the file has been compressed
+	 */
+	public TransferResult(String source, String target, long bytes, long wireBytes, long durationMS, Throwable failure) {
+		this.source = source;
+		this.target = target;
+		this.bytes = bytes;
+		this.wireBytes = wireBytes;
+		this.durationMS = durationMS;
+		this.failure = failure;
+	}
+
+	/**
+	 * @return the local file of an upload, the remote file of a download
+	 */
+	public String getSource() {
+		return source;
+	}
+
+	/**
+	 * @return the remote directory of an upload, the local directory of a download (the file itself by SSHCompressedTransfer)
+	 */
+	public String getTarget() {
+		return target;
+	}
+
+	/**
+	 * @return size of the file(s) copied, a directory counts with all its files
+	 */
+	public long getBytes() {
+		return bytes;
+	}
+
+	/**
+	 * @return bytes sent over the channel, the same as getBytes() unless the file has been compressed
+	 */
+	public long getWireBytes() {
+		return wireBytes;
+	}
+
+	/**
+	 * @return how many times faster the file went than it would uncompressed over a link of the same speed
+	 */
+	public double getThroughputGain() {
+		return (wireBytes > 0) ? (double) bytes / wireBytes : 1;
+	}
+
+	/**
+	 * @return bytes of the file(s) per second
+	 */
+	public double getThroughput() {
+		return (durationMS > 0) ? bytes * 1000.0 / durationMS : 0;
+	}
+
+	/**
+	 * @return time of the transfer itself, without waiting for a free channel
+	 */
+	public long getDurationMS() {
+		return durationMS;
+	}
+
+	/**
+	 * @return why the file has not been copied, null if it has
+	 */
+	public Throwable getFailure() {
+		return failure;
+	}
+
+	public boolean isSuccess() {
+		return failure == null;
+	}
+
+	public String toString() {
+		String string = String.format("source=%s target=%s bytes=%d durationMS=%d", source, target, bytes, durationMS);
+		if (wireBytes != bytes) string += String.format(" wireBytes=%d gain=%.1fx", wireBytes, getThroughputGain());
+		if (failure != null) string += String.format(" failure='%s'", failure);
+		return string;
+	}
+}
@@ -0,0 +1,33 @@
+import static org.junit.Assert.*;
+
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+
+import org.junit.Test;
+
+import com.redhat.qe.tools.CancellableInputStream;
+
+public class CancellableInputStreamTest {
+
+	@Test(timeout = 5000)
+	public void cancelWakesBlockedReader() throws Exception {
+		PipedOutputStream source = new PipedOutputStream();
+		final CancellableInputStream stream = new CancellableInputStream(new PipedInputStream(source));
+		source.write('a');
+		assertEquals('a', stream.read());
+		new Thread() {
+			public void run() {
+				try {
+					Thread.sleep(200);
+				} catch (InterruptedException e) {
+				}
+				stream.cancel();
+			}
+		}.start();
+		assertEquals(-1, stream.read(new byte[10], 0, 10));
+		assertFalse(Thread.currentThread().isInterrupted());
+		source.write('b');
+		assertEquals(-1, stream.read());
+		assertEquals(0, stream.available());
+	}
+}
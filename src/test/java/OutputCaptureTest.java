@@ -0,0 +1,86 @@
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.junit.Test;
+
+import com.redhat.qe.tools.OutputCapture;
+import com.redhat.qe.tools.SSHCommandResult;
+
+public class OutputCaptureTest {
+
+	@Test
+	public void keepsLineEndings() throws IOException {
+		OutputCapture capture = new OutputCapture();
+		capture.write("a\r\nb\n\u010d".getBytes("UTF-8"));
+		assertEquals("a\r\nb\n\u010d", capture.toString());
+		assertFalse(capture.isSpilled());
+	}
+
+	@Test
+	public void spillsAboveMemoryLimit() throws IOException {
+		byte[] data = new byte[100000];
+		for (int i = 0; i < data.length; i++) data[i] = (byte) ('a' + i % 26);
+		OutputCapture capture = new OutputCapture(1000);
+		assertEquals(data.length, capture.readFrom(new ByteArrayInputStream(data)));
+		assertTrue(capture.isSpilled());
+		assertEquals(data.length, capture.size());
+
+		ByteArrayOutputStream copy = new ByteArrayOutputStream();
+		InputStream is = capture.getInputStream();
+		int b;
+		while ((b = is.read()) != -1) copy.write(b);
+		is.close();
+		assertArrayEquals(data, copy.toByteArray());
+
+		String decoded = capture.toString();
+		capture.release();
+		assertEquals(decoded, capture.toString());
+	}
+
+	@Test
+	public void resultReleasesSpilledCaptures() throws IOException {
+		byte[] data = new byte[5000];
+		for (int i = 0; i < data.length; i++) data[i] = (byte) ('a' + i % 26);
+		SpillProbe stdout = new SpillProbe();
+		SpillProbe stderr = new SpillProbe();
+		stdout.readFrom(new ByteArrayInputStream(data));
+		stderr.write("error\n".getBytes("UTF-8"));
+		File spilled = stdout.spillFile();
+		assertTrue(spilled.isFile());
+
+		SSHCommandResult result = new SSHCommandResult(0, stdout, stderr);
+		// nothing is decoded before it is asked for
+		assertNull(stdout.decoded());
+		assertTrue(spilled.exists());
+		assertEquals(new String(data, "UTF-8"), result.getStdout());
+		assertFalse(spilled.exists());
+		assertEquals(new String(data, "UTF-8"), result.getStdout());
+
+		result.release();
+		try {
+			result.getStderr();
+			fail("stderr has been released before it was read");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+	}
+
+	static class SpillProbe extends OutputCapture {
+		SpillProbe() {
+			super(1000);
+		}
+
+		File spillFile() {
+			return spillFile;
+		}
+
+		String decoded() {
+			return decoded;
+		}
+	}
+}
@@ -0,0 +1,44 @@
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+import org.junit.Test;
+
+import com.redhat.qe.tools.OutputLineIterator;
+
+public class OutputLineIteratorTest {
+
+	@Test
+	public void splitsLines() throws IOException {
+		OutputLineIterator lines = new OutputLineIterator(new ByteArrayInputStream("a\r\n\nb\nlast".getBytes("UTF-8")));
+		assertEquals("a", lines.next());
+		assertEquals("", lines.next());
+		assertEquals("b", lines.next());
+		assertEquals("last", lines.next());
+		assertFalse(lines.hasNext());
+	}
+
+	@Test
+	public void emptyStream() {
+		assertFalse(new OutputLineIterator(new ByteArrayInputStream(new byte[0])).hasNext());
+		assertFalse(new OutputLineIterator(null).hasNext());
+	}
+
+	@Test
+	public void splitsLongLines() throws IOException {
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < 25; i++) text.append((char) ('a' + i));
+		// "\u010d" takes two bytes and would be cut in half at byte 10
+		String input = "abcdefghi\u010djklmnop\r\n" + text + "\r\nshort\n0123456789\n";
+		OutputLineIterator lines = new OutputLineIterator(new ByteArrayInputStream(input.getBytes("UTF-8")), 10);
+		assertEquals("abcdefghi", lines.next());
+		assertEquals("\u010djklmnop", lines.next());
+		assertEquals(text.substring(0, 10), lines.next());
+		assertEquals(text.substring(10, 20), lines.next());
+		assertEquals(text.substring(20), lines.next());
+		assertEquals("short", lines.next());
+		assertEquals("0123456789", lines.next());
+		assertFalse(lines.hasNext());
+	}
+}
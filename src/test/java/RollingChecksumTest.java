@@ -0,0 +1,42 @@
+import static org.junit.Assert.*;
+
+import java.util.Random;
+import java.util.zip.Adler32;
+
+import org.junit.Test;
+
+import com.redhat.qe.tools.RollingChecksum;
+
+public class RollingChecksumTest {
+
+	private static int adler32(byte[] data, int off, int len) {
+		Adler32 adler = new Adler32();
+		adler.update(data, off, len);
+		return (int) adler.getValue();
+	}
+
+	@Test
+	public void rollingGivesTheChecksumOfTheWindow() {
+		byte[] data = new byte[5000];
+		new Random(7).nextBytes(data);
+		int window = 700;
+		RollingChecksum checksum = new RollingChecksum(window);
+		checksum.reset(data, 0, window);
+		assertEquals(adler32(data, 0, window), checksum.getValue());
+		for (int pos = 1; pos + window <= data.length; pos++) {
+			checksum.roll(data[pos - 1], data[pos + window - 1]);
+			assertEquals("window at " + pos, adler32(data, pos, window), checksum.getValue());
+		}
+	}
+
+	@Test
+	public void sameBytesGiveSameChecksumAnywhere() {
+		byte[] data = new byte[300];
+		for (int i = 0; i < data.length; i++) data[i] = (byte) (i % 100 + 200);
+		RollingChecksum checksum = new RollingChecksum(100);
+		checksum.reset(data, 0, 100);
+		int first = checksum.getValue();
+		for (int pos = 1; pos <= 100; pos++) checksum.roll(data[pos - 1], data[pos + 99]);
+		assertEquals(first, checksum.getValue());
+	}
+}
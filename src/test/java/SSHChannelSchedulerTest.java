@@ -0,0 +1,145 @@
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import org.junit.Test;
+
+import com.redhat.qe.tools.SSHChannelScheduler;
+import com.redhat.qe.tools.SSHConnectionPool;
+
+import net.schmizz.sshj.SSHClient;
+
+public class SSHChannelSchedulerTest {
+
+	@Test
+	public void fillsConnectionsAndSpills() throws IOException {
+		StubPool pool = new StubPool();
+		SSHChannelScheduler scheduler = scheduler(pool, 2, 2);
+		SSHChannelScheduler.Lease a1 = scheduler.acquire();
+		SSHChannelScheduler.Lease a2 = scheduler.acquire();
+		assertSame(a1.getConnection(), a2.getConnection());
+		assertEquals(1, scheduler.getConnectionCount());
+		assertEquals(0, scheduler.getSpillCount());
+
+		SSHChannelScheduler.Lease b1 = scheduler.acquire();
+		SSHChannelScheduler.Lease b2 = scheduler.acquire();
+		assertNotSame(a1.getConnection(), b1.getConnection());
+		assertSame(b1.getConnection(), b2.getConnection());
+		assertEquals(2, scheduler.getConnectionCount());
+		assertEquals(1, scheduler.getSpillCount());
+		assertEquals(4, scheduler.getSessionCount());
+
+		// the extra connection goes back to the pool once its channels are closed
+		b1.close();
+		b1.close();
+		assertEquals(3, scheduler.getSessionCount());
+		b2.close();
+		assertEquals(1, scheduler.getConnectionCount());
+		assertEquals(1, pool.released.size());
+		assertSame(b1.getConnection(), pool.released.get(0));
+
+		scheduler.close();
+		assertEquals(2, pool.released.size());
+	}
+
+	@Test
+	public void queuesBeyondLimits() throws Exception {
+		StubPool pool = new StubPool();
+		final SSHChannelScheduler scheduler = scheduler(pool, 1, 1);
+		SSHChannelScheduler.Lease first = scheduler.acquire();
+		try {
+			scheduler.acquire();
+			fail("no slot should be free");
+		} catch (IOException e) {
+			// expected
+		}
+		assertEquals(0, scheduler.getQueueDepth());
+		assertEquals(1, scheduler.getMaxQueueDepth());
+
+		scheduler.setAcquireTimeout(10000);
+		CompletableFuture<SSHChannelScheduler.Lease> waiting = CompletableFuture.supplyAsync(new Supplier<SSHChannelScheduler.Lease>() {
+			public SSHChannelScheduler.Lease get() {
+				try {
+					return scheduler.acquire();
+				} catch (IOException e) {
+					throw new RuntimeException(e);
+				}
+			}
+		});
+		long until = System.currentTimeMillis() + 5000;
+		while (scheduler.getQueueDepth() == 0 && System.currentTimeMillis() < until) Thread.sleep(10);
+		assertEquals(1, scheduler.getQueueDepth());
+		first.close();
+		SSHChannelScheduler.Lease second = waiting.get(5, TimeUnit.SECONDS);
+		assertSame(first.getConnection(), second.getConnection());
+		assertEquals(1, pool.borrowed);
+		scheduler.close();
+	}
+
+	@Test
+	public void failedConnectionFreesItsPlace() throws IOException {
+		StubPool pool = new StubPool();
+		SSHChannelScheduler scheduler = scheduler(pool, 1, 1);
+		pool.failures = 1;
+		try {
+			scheduler.acquire();
+			fail("the connection should have failed");
+		} catch (IOException e) {
+			assertEquals("refused", e.getMessage());
+		}
+		assertEquals(0, scheduler.getConnectionCount());
+		// the reservation of the failed connection is given back, so the only place is free again
+		SSHChannelScheduler.Lease lease = scheduler.acquire();
+		assertEquals(1, scheduler.getConnectionCount());
+		lease.close();
+		scheduler.close();
+	}
+
+	private static SSHChannelScheduler scheduler(SSHConnectionPool pool, int maxSessions, int maxConnections) {
+		SSHChannelScheduler scheduler = new SSHChannelScheduler(pool, "host", 22, "user", null, null, "password");
+		scheduler.setMaxSessions(maxSessions);
+		scheduler.setMaxConnections(maxConnections);
+		scheduler.setAcquireTimeout(200);
+		return scheduler;
+	}
+
+	/**
+	 * Lends clients that pretend to be connected, without any server.
+	 */
+	static class StubPool extends SSHConnectionPool {
+		int failures = 0;
+		int borrowed = 0;
+		final List<SSHClient> released = new ArrayList<SSHClient>();
+
+		@Override
+		public synchronized SSHClient borrow(String server, int port, String user, File sshPemFile, String pemPassphrase, String password) throws IOException {
+			if (failures > 0) {
+				failures--;
+				throw new IOException("refused");
+			}
+			borrowed++;
+			return new SSHClient() {
+				@Override
+				public boolean isConnected() {
+					return true;
+				}
+			};
+		}
+
+		@Override
+		public synchronized void release(SSHClient client) {
+			released.add(client);
+		}
+
+		@Override
+		public synchronized void invalidate(SSHClient client) {
+			released.add(client);
+		}
+	}
+}
@@ -0,0 +1,38 @@
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.redhat.qe.tools.SSHCommandBatch;
+import com.redhat.qe.tools.SSHCommandResult;
+
+public class SSHCommandBatchTest {
+
+	@Test
+	public void splitsOutputPerCommand() {
+		SSHCommandBatch batch = new SSHCommandBatch(Arrays.asList("echo one", "printf two; exit 3"));
+		String m = batch.getMarker();
+		String stdout = "one\n\n"+m+":0:0\ntwo\n"+m+":1:3\n";
+		String stderr = "\n"+m+":0\nerr\n\n"+m+":1\n";
+		List<SSHCommandResult> results = batch.parse(new SSHCommandResult(0, stdout, stderr));
+		assertEquals(2, results.size());
+		assertEquals(Integer.valueOf(0), results.get(0).getExitCode());
+		assertEquals("one\n", results.get(0).getStdout());
+		assertEquals("", results.get(0).getStderr());
+		assertEquals(Integer.valueOf(3), results.get(1).getExitCode());
+		assertEquals("two", results.get(1).getStdout());
+		assertEquals("err\n", results.get(1).getStderr());
+	}
+
+	@Test
+	public void unfinishedCommandHasNoExitCode() {
+		SSHCommandBatch batch = new SSHCommandBatch(Arrays.asList("echo one", "echo part; sleep 100", "echo never"));
+		String m = batch.getMarker();
+		List<SSHCommandResult> results = batch.parse(new SSHCommandResult(null, "one\n\n"+m+":0:0\npart\n", "\n"+m+":0\n"));
+		assertEquals(2, results.size());
+		assertNull(results.get(1).getExitCode());
+		assertEquals("part\n", results.get(1).getStdout());
+	}
+}
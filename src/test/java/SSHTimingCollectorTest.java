@@ -0,0 +1,41 @@
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import com.redhat.qe.tools.SSHTiming;
+import com.redhat.qe.tools.SSHTimingCollector;
+
+public class SSHTimingCollectorTest {
+
+	@Test
+	public void percentilesAreWithinTheirBucket() {
+		SSHTimingCollector.Histogram histogram = new SSHTimingCollector.Histogram();
+		for (int i = 1; i <= 100; i++) histogram.record(i * 1000000L);
+		assertEquals(100, histogram.getCount());
+		assertEquals(50.5e6, histogram.getMeanNanos(), 1);
+		assertEquals(100000000L, histogram.getMaxNanos());
+		long p50 = histogram.getPercentileNanos(50);
+		assertTrue(p50 >= 50000000L && p50 <= 2 * 50000000L);
+		assertEquals(100000000L, histogram.getPercentileNanos(100));
+	}
+
+	@Test
+	public void phasesAreKeptPerHostAndKind() {
+		SSHTimingCollector collector = new SSHTimingCollector();
+		SSHTiming command = new SSHTiming(SSHTiming.Kind.COMMAND, "host1", "true");
+		command.mark(SSHTiming.Phase.CHANNEL_OPEN);
+		command.mark(SSHTiming.Phase.EXEC);
+		command.mark(SSHTiming.Phase.CLOSE);
+		collector.timed(command);
+		SSHTiming connect = new SSHTiming(SSHTiming.Kind.CONNECT, "host1", "root");
+		connect.mark(SSHTiming.Phase.CONNECT);
+		collector.timed(connect);
+		assertArrayEquals(new String[] {"host1", "host1 [connect]"}, collector.getHosts());
+		assertEquals(1, collector.getCount("host1", "EXEC"));
+		assertEquals(0, collector.getCount("host1", "FIRST_BYTE"));
+		assertEquals(1, collector.getCount("host1 [connect]", SSHTimingCollector.TOTAL));
+		assertTrue(collector.getReport().contains("channel_open"));
+		collector.reset();
+		assertEquals(0, collector.getHosts().length);
+	}
+}
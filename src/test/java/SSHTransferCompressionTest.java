@@ -0,0 +1,26 @@
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import com.redhat.qe.tools.SSHTransferCompression;
+
+public class SSHTransferCompressionTest {
+
+	@Test
+	public void fileNameTellsTextFromCompressedData() {
+		assertEquals(Boolean.TRUE, SSHTransferCompression.byName("/var/log/audit/audit.log"));
+		assertEquals(Boolean.TRUE, SSHTransferCompression.byName("results.XML"));
+		assertEquals(Boolean.FALSE, SSHTransferCompression.byName("/tmp/sosreport-host-2024.tar.xz"));
+		assertEquals(Boolean.FALSE, SSHTransferCompression.byName("package-1.0-1.el8.x86_64.rpm"));
+		assertNull(SSHTransferCompression.byName("/var/log/messages"));
+		assertNull(SSHTransferCompression.byName("/var/log/messages-20240101.1"));
+	}
+
+	@Test
+	public void sampleDecidesBigFilesOnly() {
+		long big = 100L * 1024 * 1024;
+		assertTrue(SSHTransferCompression.bySample(big, 65536, 10000));
+		assertFalse(SSHTransferCompression.bySample(big, 65536, 60000));
+		assertFalse(SSHTransferCompression.bySample(1000, 1000, 100));
+	}
+}
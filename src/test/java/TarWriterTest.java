@@ -0,0 +1,61 @@
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFilePermissions;
+
+import org.junit.Test;
+
+import com.redhat.qe.tools.TarReader;
+import com.redhat.qe.tools.TarWriter;
+
+public class TarWriterTest {
+
+	@Test
+	public void treeIsUnpackedWithModesAndTimes() throws Exception {
+		Path src = Files.createTempDirectory("tar-src");
+		Path tree = Files.createDirectories(src.resolve("tree/sub"));
+		StringBuilder longName = new StringBuilder();
+		for (int i = 0; i < 30; i++) longName.append("long-");
+		Path script = Files.write(tree.resolve("run.sh"), "#!/bin/sh\necho hi\n".getBytes("UTF-8"));
+		Files.setPosixFilePermissions(script, PosixFilePermissions.fromString("rwxr-x---"));
+		Files.setLastModifiedTime(script, FileTime.fromMillis(1500000000000L));
+		byte[] big = new byte[70000];
+		for (int i = 0; i < big.length; i++) big[i] = (byte) i;
+		Files.write(tree.resolve(longName + "file"), big);
+		Files.createSymbolicLink(tree.resolve("link"), tree.relativize(script));
+
+		ByteArrayOutputStream tar = new ByteArrayOutputStream();
+		TarWriter writer = new TarWriter(tar);
+		writer.addTree(src.resolve("tree"));
+		writer.close();
+		assertEquals(0, tar.size() % 512);
+
+		Path dest = Files.createTempDirectory("tar-dest");
+		assertEquals(5, new TarReader(new ByteArrayInputStream(tar.toByteArray())).extractTo(dest));
+		Path copy = dest.resolve("tree/sub/run.sh");
+		assertEquals("#!/bin/sh\necho hi\n", new String(Files.readAllBytes(copy), "UTF-8"));
+		assertEquals("rwxr-x---", PosixFilePermissions.toString(Files.getPosixFilePermissions(copy)));
+		assertEquals(1500000000000L, Files.getLastModifiedTime(copy).toMillis());
+		assertArrayEquals(big, Files.readAllBytes(dest.resolve("tree/sub/" + longName + "file")));
+		assertEquals("run.sh", Files.readSymbolicLink(dest.resolve("tree/sub/link")).toString());
+	}
+
+	@Test
+	public void entriesOutsideOfTheDirectoryAreSkipped() throws Exception {
+		Path src = Files.createTempDirectory("tar-src");
+		Path file = Files.write(src.resolve("f"), "x".getBytes("UTF-8"));
+		ByteArrayOutputStream tar = new ByteArrayOutputStream();
+		TarWriter writer = new TarWriter(tar);
+		writer.addTree(file, "../escaped");
+		writer.addTree(file, "kept");
+		writer.close();
+		Path dest = Files.createTempDirectory("tar-dest");
+		assertEquals(1, new TarReader(new ByteArrayInputStream(tar.toByteArray())).extractTo(dest.resolve(".")));
+		assertFalse(Files.exists(dest.resolveSibling("escaped")));
+		assertTrue(Files.exists(dest.resolve("kept")));
+	}
+}
@@ -0,0 +1,18 @@
+package com.redhat.qe.tools;
+
+import static org.junit.Assert.*;
+
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+public class RemoteFileTasksEchoTest {
+
+	@Test
+	public void escapesAreInterpretedLikeEcho() throws Exception {
+		assertArrayEquals("it's \"quoted\"\n\tx\\".getBytes(StandardCharsets.UTF_8), RemoteFileTasks.echoBytes("it's \"quoted\"\\n\\tx\\\\"));
+		assertArrayEquals(new byte[] {'A', 'B', 0, 7, '\\', 'q'}, RemoteFileTasks.echoBytes("\\x41\\0102\\0\\a\\q"));
+		assertArrayEquals("ab".getBytes(StandardCharsets.UTF_8), RemoteFileTasks.echoBytes("ab\\cdef"));
+		assertArrayEquals("\u017elu\u0165\\".getBytes(StandardCharsets.UTF_8), RemoteFileTasks.echoBytes("\u017elu\u0165\\"));
+	}
+}
@@ -0,0 +1,110 @@
+package com.redhat.qe.tools;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Runs the scripts of the host by a local python, with the delta written by SSHDeltaUpload in between.
+ */
+public class SSHDeltaUploadTest {
+
+	private static final int BLOCK = 2048;
+
+	@Test
+	public void rebuildsTheFile() throws Exception {
+		assumeTrue(python() != null);
+		byte[] old = random(50000, 1);
+		byte[] changed = new byte[old.length + 1000 - 3000];
+		// 1000 bytes inserted at 10000, 3000 bytes removed at 30000, one byte changed near the end
+		System.arraycopy(old, 0, changed, 0, 10000);
+		System.arraycopy(random(1000, 2), 0, changed, 10000, 1000);
+		System.arraycopy(old, 10000, changed, 11000, 20000);
+		System.arraycopy(old, 33000, changed, 31000, old.length - 33000);
+		changed[changed.length - 100] ^= 1;
+
+		File target = write(old);
+		File local = write(changed);
+		SSHDeltaUpload delta = new SSHDeltaUpload(null);
+		assertEquals(0, rebuild(delta, local, target, null));
+		assertArrayEquals(changed, Files.readAllBytes(target.toPath()));
+		assertTrue(delta.getMatchedBytes() > 40000);
+		assertTrue(delta.getSentBytes() < 10000);
+		assertFalse(new File(target.getPath() + ".delta-tmp").exists());
+	}
+
+	@Test
+	public void keepsTheOldCopyOnMismatch() throws Exception {
+		assumeTrue(python() != null);
+		byte[] old = random(20000, 3);
+		byte[] changed = Arrays.copyOf(old, old.length);
+		changed[5] ^= 1;
+		File target = write(old);
+		File local = write(changed);
+		// the host copy changes after its checksums have been taken
+		byte[] meanwhile = Arrays.copyOf(old, old.length);
+		meanwhile[15000] ^= 1;
+		assertEquals(SSHDeltaUpload.EXIT_MISMATCH, rebuild(new SSHDeltaUpload(null), local, target, meanwhile));
+		assertArrayEquals(meanwhile, Files.readAllBytes(target.toPath()));
+		assertFalse(new File(target.getPath() + ".delta-tmp").exists());
+	}
+
+	/**
+	 * @param meanwhile - written to the target between its checksums and the rebuild, if not null
+	 * @return exit code of the rebuild script
+	 */
+	private static int rebuild(SSHDeltaUpload delta, File local, File target, byte[] meanwhile) throws Exception {
+		Process signature = new ProcessBuilder(python(), "-c", SSHDeltaUpload.SIGNATURE_SCRIPT, target.getPath(), String.valueOf(BLOCK)).start();
+		String output = new String(readAll(signature), "UTF-8");
+		assertEquals(0, signature.waitFor());
+		String[] lines = (target.getPath() + "\n" + output).split("\n");
+		if (meanwhile != null) Files.write(target.toPath(), meanwhile);
+
+		Process rebuild = new ProcessBuilder(python(), "-c", SSHDeltaUpload.REBUILD_SCRIPT, target.getPath(), String.valueOf(BLOCK))
+				.redirectError(ProcessBuilder.Redirect.INHERIT).start();
+		OutputStream stdin = rebuild.getOutputStream();
+		delta.writeDelta(local, new SSHDeltaUpload.Signature(lines, BLOCK), stdin);
+		return rebuild.waitFor();
+	}
+
+	private static String python() {
+		for (String dir: System.getenv("PATH").split(File.pathSeparator)) {
+			for (String name: new String[] {"python3", "python"}) {
+				if (new File(dir, name).canExecute()) return new File(dir, name).getPath();
+			}
+		}
+		return null;
+	}
+
+	private static byte[] readAll(Process process) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		InputStream in = process.getInputStream();
+		byte[] buffer = new byte[8192];
+		int n;
+		while ((n = in.read(buffer)) != -1) bytes.write(buffer, 0, n);
+		return bytes.toByteArray();
+	}
+
+	private static byte[] random(int size, long seed) {
+		byte[] data = new byte[size];
+		new Random(seed).nextBytes(data);
+		return data;
+	}
+
+	private static File write(byte[] data) throws IOException {
+		File file = File.createTempFile("delta-", ".bin");
+		file.deleteOnExit();
+		Files.write(file.toPath(), data);
+		return file;
+	}
+}
@@ -0,0 +1,148 @@
+package com.redhat.qe.tools;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+/**
+ * Fetches and verifies a part file from an in-memory source, the hashes of the host are computed here.
+ */
+public class SSHResumableDownloadTest {
+
+	private static final int CHUNK = 40000;
+
+	@Test
+	public void resumesAfterTruncation() throws Exception {
+		byte[] data = random(5 * CHUNK + 123);
+		File part = tempFile();
+		File stateFile = new File(part.getPath() + ".state");
+		SSHResumableDownload.State state = new SSHResumableDownload.State("/remote", data.length, 1000, CHUNK);
+		// 3 chunks recorded as written, but the part file has lost the second half of the third one
+		state.written = 3;
+		state.verified = 1;
+		state.save(stateFile);
+		Files.write(part.toPath(), Arrays.copyOf(data, 2 * CHUNK + CHUNK / 2));
+
+		SSHResumableDownload download = download();
+		Source source = new Source(data);
+		download.transfer(source, part, stateFile, SSHResumableDownload.State.load(stateFile), hashes(data, 1));
+		assertArrayEquals(data, Files.readAllBytes(part.toPath()));
+		// chunks 3.. to the end, and the truncated chunk 2 again; chunks 0 and 1 are not read
+		assertEquals(data.length - 3 * CHUNK + CHUNK, download.getFetchedBytes());
+		assertEquals(Arrays.asList(3L * CHUNK, 2L * CHUNK), source.offsets);
+		SSHResumableDownload.State done = SSHResumableDownload.State.load(stateFile);
+		assertEquals(6, done.written);
+		assertEquals(6, done.verified);
+	}
+
+	@Test
+	public void fetchesCorruptedChunkAgain() throws Exception {
+		byte[] data = random(4 * CHUNK);
+		File part = tempFile();
+		File stateFile = new File(part.getPath() + ".state");
+		SSHResumableDownload download = download();
+		Source source = new Source(data);
+		source.corruptOnce = 2 * CHUNK + 7;
+		download.transfer(source, part, stateFile, new SSHResumableDownload.State("/remote", data.length, 1000, CHUNK), hashes(data, 0));
+		assertArrayEquals(data, Files.readAllBytes(part.toPath()));
+		assertEquals(data.length + CHUNK, download.getFetchedBytes());
+		assertEquals(Arrays.asList(0L, 2L * CHUNK), source.offsets);
+	}
+
+	@Test
+	public void failsWithoutRemoteHashes() throws Exception {
+		byte[] data = random(2 * CHUNK);
+		File part = tempFile();
+		File stateFile = new File(part.getPath() + ".state");
+		CompletableFuture<String[]> failed = new CompletableFuture<String[]>();
+		failed.completeExceptionally(new IOException("no sha256sum"));
+		SSHResumableDownload download = download();
+		try {
+			download.transfer(new Source(data), part, stateFile, new SSHResumableDownload.State("/remote", data.length, 1000, CHUNK), failed);
+			fail("an unverified download should fail");
+		} catch (IOException e) {
+			assertEquals("no sha256sum", e.getCause().getMessage());
+		}
+		SSHResumableDownload.State state = SSHResumableDownload.State.load(stateFile);
+		assertEquals(2, state.written);
+		assertEquals(0, state.verified);
+
+		download = download();
+		download.setAllowUnverified(true);
+		download.transfer(new Source(data), part, stateFile, state, failed);
+		assertArrayEquals(data, Files.readAllBytes(part.toPath()));
+		assertEquals(0, download.getFetchedBytes());
+	}
+
+	private static SSHResumableDownload download() {
+		SSHResumableDownload download = new SSHResumableDownload(null);
+		download.setChunkBytes(CHUNK);
+		download.setAllowUnverified(false);
+		return download;
+	}
+
+	/**
+	 * @return SHA-256 of the chunks from the given one on, as the host prints them
+	 */
+	private static Future<String[]> hashes(byte[] data, int from) throws Exception {
+		int chunks = (data.length + CHUNK - 1) / CHUNK;
+		String[] hashes = new String[chunks - from];
+		for (int i = from; i < chunks; i++) {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			digest.update(data, i * CHUNK, Math.min(CHUNK, data.length - i * CHUNK));
+			StringBuilder hex = new StringBuilder();
+			for (byte b: digest.digest()) hex.append(String.format("%02x", b));
+			hashes[i - from] = hex.toString();
+		}
+		return CompletableFuture.completedFuture(hashes);
+	}
+
+	private static byte[] random(int size) {
+		byte[] data = new byte[size];
+		new Random(size).nextBytes(data);
+		return data;
+	}
+
+	private static File tempFile() throws IOException {
+		File file = File.createTempFile("resume-", ".part");
+		file.deleteOnExit();
+		new File(file.getPath() + ".state").deleteOnExit();
+		return file;
+	}
+
+	/**
+	 * The remote file, remembers the offsets read from and corrupts one byte of the first read covering it.
+	 */
+	static class Source implements SSHResumableDownload.ChunkSource {
+		final byte[] data;
+		final List<Long> offsets = new ArrayList<Long>();
+		long corruptOnce = -1;
+
+		Source(byte[] data) {
+			this.data = data;
+		}
+
+		public InputStream open(long offset, int maxInFlight) {
+			offsets.add(offset);
+			byte[] rest = Arrays.copyOfRange(data, (int) offset, data.length);
+			if (corruptOnce >= offset) {
+				rest[(int) (corruptOnce - offset)] ^= 1;
+				corruptOnce = -1;
+			}
+			return new ByteArrayInputStream(rest);
+		}
+	}
+}
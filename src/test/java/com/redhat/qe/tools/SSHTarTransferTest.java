@@ -0,0 +1,67 @@
+package com.redhat.qe.tools;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.TreeSet;
+
+import org.junit.Test;
+
+/**
+ * Runs the download command of SSHTarTransfer by a local sh and tar, and lists what it packs.
+ */
+public class SSHTarTransferTest {
+
+	@Test
+	public void packsRelativePathsFromTheStartingDirectory() throws Exception {
+		assumeTrue(new File("/bin/sh").canExecute() && tar() != null);
+		Path home = Files.createTempDirectory("tar-home");
+		Files.createDirectories(home.resolve("a/x"));
+		Files.write(home.resolve("a/x/one"), "1".getBytes("UTF-8"));
+		Files.createDirectories(home.resolve("b"));
+		Files.write(home.resolve("b/y"), "2".getBytes("UTF-8"));
+		Files.write(home.resolve("results"), "3".getBytes("UTF-8"));
+		Path absolute = Files.createTempDirectory("tar-abs");
+		Files.write(absolute.resolve("messages"), "4".getBytes("UTF-8"));
+
+		String command = SSHTarTransfer.downloadCommand(false, "a/x", absolute.resolve("messages").toString(), "b/y/", "results");
+		assertEquals(new TreeSet<String>(Arrays.asList("x/", "x/one", "messages", "y", "results")), list(command, home.toFile()));
+	}
+
+	/**
+	 * @return entries of the tar stream printed by the command run in the directory
+	 */
+	private static TreeSet<String> list(String command, File dir) throws Exception {
+		File archive = File.createTempFile("tar-", ".tar");
+		archive.deleteOnExit();
+		Process pack = new ProcessBuilder("/bin/sh", "-c", command).directory(dir)
+				.redirectOutput(archive).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+		assertEquals(0, pack.waitFor());
+		Process list = new ProcessBuilder(tar(), "-tf", archive.getPath()).start();
+		String output = new String(readAll(list.getInputStream()), "UTF-8");
+		assertEquals(0, list.waitFor());
+		return new TreeSet<String>(Arrays.asList(output.split("\n")));
+	}
+
+	private static String tar() {
+		for (String dir: System.getenv("PATH").split(File.pathSeparator)) {
+			if (new File(dir, "tar").canExecute()) return new File(dir, "tar").getPath();
+		}
+		return null;
+	}
+
+	private static byte[] readAll(InputStream in) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		int n;
+		while ((n = in.read(buffer)) != -1) bytes.write(buffer, 0, n);
+		return bytes.toByteArray();
+	}
+}
@@ -0,0 +1,59 @@
+package com.redhat.qe.tools;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+import org.junit.Test;
+
+public class SplitStreamLoggerTest {
+
+	@Test
+	public void logsLongLinesInPieces() throws Exception {
+		// a 10 byte line, a 12 byte line ending at a piece boundary, and 2-byte characters across a boundary
+		String output = "0123456789\nabcdefghijkl\nx\u00e9\u00e9\u00e9yz\n";
+		List<String> logged = log(output, 4);
+		assertEquals(Arrays.asList("Stdout: 0123", "Stdout: 4567", "Stdout: 89", "Stdout: abcd", "Stdout: efgh", "Stdout: ijkl",
+				"Stdout: x\u00e9", "Stdout: \u00e9\u00e9", "Stdout: yz"), logged);
+	}
+
+	/**
+	 * @return messages logged for the stdout
+	 */
+	private static List<String> log(String stdout, int maxLineBytes) throws Exception {
+		final List<String> messages = new ArrayList<String>();
+		Handler handler = new Handler() {
+			public void publish(LogRecord record) {
+				synchronized (messages) {
+					if (record.getMessage().startsWith("Stdout: ")) messages.add(record.getMessage());
+				}
+			}
+			public void flush() {
+			}
+			public void close() {
+			}
+		};
+		Logger logger = Logger.getLogger(SplitStreamLogger.class.getName());
+		String previous = System.getProperty("ssh.output.maxLineBytes");
+		System.setProperty("ssh.output.maxLineBytes", String.valueOf(maxLineBytes));
+		logger.addHandler(handler);
+		try {
+			SplitStreamLogger splitLogger = new SplitStreamLogger(new ByteArrayInputStream(stdout.getBytes("UTF-8")), new ByteArrayInputStream(new byte[0]));
+			splitLogger.log(Level.INFO, Level.INFO);
+			splitLogger.join();
+			assertEquals(stdout, splitLogger.getStdout());
+		} finally {
+			logger.removeHandler(handler);
+			if (previous == null) System.clearProperty("ssh.output.maxLineBytes");
+			else System.setProperty("ssh.output.maxLineBytes", previous);
+		}
+		return messages;
+	}
+}